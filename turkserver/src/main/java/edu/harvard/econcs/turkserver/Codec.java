@@ -14,6 +14,11 @@ public class Codec {
 	public static final String status_sessionoverlap = "status.sessionoverlap";
 	public static final String status_toomanysessions = "status.toomanysessions";
 	public final static String status_error = "status.error";
+	
+	// Server is too busy to handle a message right now; resend it after a while
+	public static final String status_busy = "status.busy";
+	// Too many workers are being admitted right now; resend after a while
+	public static final String status_overloaded = "status.overloaded";
 		
 	// Update messages
 	public static final String status_quizneeded = "status.quizrequired";			
@@ -28,6 +33,17 @@ public class Codec {
 	public final static String status_connectlobby = "status.connectlobby";	
 	public final static String status_connectexp = "status.connectexp";
 	
+	// Lobby messages: a full update, or a numbered change to it
+	public static final String lobby_update = "update";
+	public static final String lobby_join = "join";
+	public static final String lobby_quit = "quit";
+	public static final String lobby_ready = "ready";
+	public static final String lobby_message = "message";
+	// Changes sent together, in order
+	public static final String lobby_batch = "batch";
+	// Sent to the lobby to ask for a full update
+	public static final String lobby_snapshot = "snapshot";
+	
 	public static final String startExpError = "experror";
 	
 	public static final String roundStartMsg = "roundstart";	
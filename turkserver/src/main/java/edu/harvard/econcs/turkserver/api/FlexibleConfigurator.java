@@ -0,0 +1,29 @@
+package edu.harvard.econcs.turkserver.api;
+
+/**
+ * Configurator for experiments that can run with a range of group sizes.
+ * 
+ * {@link #groupSize()} is the size groups normally start with. When 
+ * workers are arriving too slowly to fill that in time, the lobby may 
+ * start smaller groups, or take in a few extra workers rather than leave
+ * them waiting. {@link #configure(Object, String, HITWorkerGroup)} gets 
+ * the group that was actually formed.
+ * 
+ * @author mao
+ *
+ */
+public interface FlexibleConfigurator extends Configurator {
+
+	/**
+	 * Smallest group an experiment can run with
+	 * @return
+	 */
+	int minGroupSize();
+	
+	/**
+	 * Largest group an experiment can run with
+	 * @return
+	 */
+	int maxGroupSize();
+	
+}
@@ -0,0 +1,36 @@
+package edu.harvard.econcs.turkserver.api;
+
+import java.util.Map;
+
+/**
+ * Decides who is grouped with whom, for treatments that need groups
+ * made up of particular kinds of workers.
+ *
+ * Waiting workers are sorted into buckets by their attributes, such as
+ * past sets or quiz score, and groups are drawn from the buckets.
+ *
+ * @author mao
+ *
+ */
+public interface GroupMatcher {
+
+	/**
+	 * The bucket a worker waits in, from whatever attributes matter
+	 * @param worker
+	 * @return
+	 */
+	String bucketOf(HITWorker worker);
+
+	/**
+	 * How many workers to take from each bucket for the next group.
+	 *
+	 * @param waiting number of workers waiting in each non-empty bucket
+	 * @param groupSize
+	 * @param relaxed true once someone has waited long enough
+	 * that any reasonable group is better than waiting more
+	 * @return workers to take from each bucket adding up to groupSize,
+	 * or null if no group can be made yet
+	 */
+	Map<String, Integer> pick(Map<String, Integer> waiting, int groupSize, boolean relaxed);
+
+}
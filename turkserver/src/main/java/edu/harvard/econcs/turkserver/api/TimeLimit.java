@@ -6,10 +6,15 @@ import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Defines methods that should be called when a pre-specified time limit for an experiment is reached. 
  * 
+ * The limit is counted from the start of the experiment. If it is not given here, 
+ * the experiment.timelimit setting (in seconds) is used, and if neither is set
+ * the methods are never called.
+ * 
  * @author mao
  *
  */
@@ -18,5 +23,6 @@ import java.lang.annotation.Target;
 @Inherited
 @Documented
 public @interface TimeLimit {
-
+	long limit() default 0;
+	TimeUnit unit() default TimeUnit.SECONDS;
 }
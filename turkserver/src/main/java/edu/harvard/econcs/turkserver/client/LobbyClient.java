@@ -4,6 +4,7 @@ import edu.harvard.econcs.turkserver.*;
 import edu.harvard.econcs.turkserver.api.ClientLobbyController;
 
 import java.util.Map;
+import java.util.TimerTask;
 import java.util.TreeMap;
 
 import org.cometd.annotation.*;
@@ -13,12 +14,20 @@ import org.cometd.bayeux.client.ClientSession;
 public class LobbyClient<C> extends SessionClient<C> implements ClientLobbyController {
 
 	public static enum State { DISCONNECTED, LOBBY, EXPERIMENT }
+	
+	// Don't ask for the whole lobby more often than this
+	static final long SNAPSHOT_RETRY_MILLIS = 1000;
 
 	volatile State state;
 	boolean isReady = false;	
 	
 	LobbyService lobbySvc = null;
 	
+	final LobbyState lobbyState = new LobbyState();
+	long snapshotRequested = 0;
+	// Held back by the limit above, to be sent when allowed
+	boolean snapshotPending = false;
+	
 	public LobbyClient() {		
 		super();
 		
@@ -120,10 +129,44 @@ public class LobbyClient<C> extends SessionClient<C> implements ClientLobbyContr
 //				state = State.LOBBY;
 			}
 			
-			// TODO process lobby information with correct data
 			Map<String, Object> data = service.getDataAsMap();			
-			clientWrapper.triggerUpdateLobby(data);			
+			
+			if( !lobbyState.apply(data) ) {
+				requestLobbySnapshot();
+				return;
+			}
+			
+			// Pass on the whole lobby, once we have it
+			if( data.containsKey("status") && lobbyState.getVersion() >= 0 )
+				clientWrapper.triggerUpdateLobby(lobbyState.toMap());			
+		}
+	}
+	
+	synchronized void requestLobbySnapshot() {
+		long wait = snapshotRequested + SNAPSHOT_RETRY_MILLIS - System.currentTimeMillis();
+		if( wait > 0 ) {
+			// Ask again when allowed, rather than waiting for another missed update
+			if( !snapshotPending ) {
+				snapshotPending = true;
+				retryTimer.schedule(new TimerTask() {
+					public void run() { retryLobbySnapshot(); }
+				}, wait);
+			}
+			return;
 		}
+		snapshotRequested = System.currentTimeMillis();
+		
+		logger.info("Missed a lobby update, asking for the whole lobby");
+		
+		Map<String, Object> data = new TreeMap<String, Object>();
+		data.put(Codec.lobby_snapshot, true);
+		
+		bayeuxClient.getChannel("/lobby").publish(data);
+	}
+	
+	synchronized void retryLobbySnapshot() {
+		snapshotPending = false;
+		if( state == State.LOBBY ) requestLobbySnapshot();
 	}
 
 	@Override
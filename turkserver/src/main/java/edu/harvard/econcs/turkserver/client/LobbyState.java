@@ -0,0 +1,131 @@
+package edu.harvard.econcs.turkserver.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.harvard.econcs.turkserver.Codec;
+
+/**
+ * The lobby as seen by a client, rebuilt from the full updates
+ * and numbered changes the server sends to the lobby.
+ *
+ * @author mao
+ *
+ */
+public class LobbyState {
+
+	// Everything but the users, as of the last message
+	private final Map<String, Object> info = new TreeMap<String, Object>();
+	private final Map<String, Map<String, Object>> users = new LinkedHashMap<String, Map<String, Object>>();
+
+	// No full update yet
+	private long version = -1;
+	// Part of a sharded lobby that the version is for, if any
+	private Object shard = null;
+
+	/**
+	 * Apply a lobby message from the server
+	 * @param data
+	 * @return false if a change was missed and a full update is needed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized boolean apply(Map<String, Object> data) {
+		Object status = data.get("status");
+		Object v = data.get("version");
+
+		if( Codec.lobby_batch.equals(status) ) {
+			for( Object o : toArray(data.get("changes")) )
+				if( !apply((Map<String, Object>) o) ) return false;
+			return true;
+		}
+
+		// Not something from the lobby itself
+		if( status == null || v == null ) return true;
+		long msgVersion = ((Number) v).longValue();
+
+		if( Codec.lobby_update.equals(status) ) {
+			// An older full update could arrive after the one that we asked for
+			if( sameShard(data) && msgVersion < version ) return true;
+			shard = data.get("shard");
+
+			users.clear();
+			for( Object o : toArray(data.get("users")) ) {
+				Map<String, Object> user = (Map<String, Object>) o;
+				users.put(user.get("id").toString(), user);
+			}
+			copyInfo(data);
+
+			version = msgVersion;
+			return true;
+		}
+
+		// From a shard we've been moved out of
+		if( version >= 0 && !sameShard(data) ) return true;
+		// Already seen, or part of a full update
+		if( version >= 0 && msgVersion <= version ) return true;
+		// Nothing to apply this to, or something was missed
+		if( version < 0 || msgVersion != version + 1 ) return false;
+
+		if( Codec.lobby_join.equals(status) || Codec.lobby_ready.equals(status) ) {
+			Map<String, Object> user = new TreeMap<String, Object>();
+			user.put("id", data.get("id"));
+			user.put("username", data.get("username"));
+			user.put("ready", data.get("ready"));
+
+			users.put(data.get("id").toString(), user);
+		}
+		else if( Codec.lobby_quit.equals(status) ) {
+			users.remove(data.get("id").toString());
+		}
+		copyInfo(data);
+
+		version = msgVersion;
+		return true;
+	}
+
+	private boolean sameShard(Map<String, Object> data) {
+		Object s = data.get("shard");
+		return shard == null ? s == null : shard.equals(s);
+	}
+
+	private void copyInfo(Map<String, Object> data) {
+		for( Map.Entry<String, Object> e : data.entrySet() ) {
+			String key = e.getKey();
+			if( "status".equals(key) || "id".equals(key) || "username".equals(key)
+					|| "ready".equals(key) || "users".equals(key) ) continue;
+
+			info.put(key, e.getValue());
+		}
+	}
+
+	// Lists come across as arrays from CometD, but can be lists locally
+	private static Object[] toArray(Object o) {
+		if( o == null ) return new Object[0];
+		if( o instanceof List ) return ((List<?>) o).toArray();
+		return (Object[]) o;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized int getUserCount() {
+		return users.size();
+	}
+
+	/**
+	 * @return the whole lobby, in the same form as a full update
+	 */
+	public synchronized Map<String, Object> toMap() {
+		Map<String, Object> data = new TreeMap<String, Object>(info);
+
+		data.put("status", Codec.lobby_update);
+		data.put("users", new ArrayList<Object>(users.values()));
+
+		return data;
+	}
+
+}
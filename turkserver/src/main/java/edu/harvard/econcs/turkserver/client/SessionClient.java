@@ -2,6 +2,8 @@ package edu.harvard.econcs.turkserver.client;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
@@ -36,6 +38,8 @@ public class SessionClient<C> implements ClientController {
 	
 	private MessageListener broadcastListener = null;
 	private MessageListener serviceListener = null;
+	// Whether the server subscribed us, so we only added listeners
+	private boolean expListening = false;
 	
 	protected ClientAnnotationManager<C> clientWrapper;
 	
@@ -47,6 +51,9 @@ public class SessionClient<C> implements ClientController {
 	private volatile boolean wasConnected;
 	private volatile boolean isError = false;
 	
+	// For resending messages that the server was too busy for
+	protected final Timer retryTimer = new Timer(true);
+	
 	protected SessionClient() {				
 
 	}	
@@ -117,14 +124,7 @@ public class SessionClient<C> implements ClientController {
 		if( bayeuxClient == null || !bayeuxClient.isConnected() ) return;
 		
 		// unsubscribe from any experiment channel too
-		if( broadcastListener != null ) {
-			bayeuxClient.getChannel(expBroadcastChan).unsubscribe(broadcastListener);
-			broadcastListener = null;
-		}
-		if( serviceListener != null ) {
-			bayeuxClient.getChannel(expServiceChan).removeListener(serviceListener);
-			serviceListener = null;
-		}
+		removeExpListeners();
 		
 		processor.deprocess(ucl);
 		
@@ -156,31 +156,73 @@ public class SessionClient<C> implements ClientController {
 		bayeuxClient.getChannel(expServiceChan).publish(data);
 	}	
 
-	public void subscribeExpChannel(String chan) {
+	private void removeExpListeners() {
+		if( broadcastListener != null ) {
+			if( expListening )
+				bayeuxClient.getChannel(expBroadcastChan).removeListener(broadcastListener);
+			else
+				bayeuxClient.getChannel(expBroadcastChan).unsubscribe(broadcastListener);
+			broadcastListener = null;
+		}
+		if( serviceListener != null ) {
+			if( expListening )
+				bayeuxClient.getChannel(expServiceChan).removeListener(serviceListener);
+			else
+				bayeuxClient.getChannel(expServiceChan).unsubscribe(serviceListener);
+			serviceListener = null;
+		}
+	}
+	
+	private void createExpListeners(String chan) {
+		// Drop listeners from before a reconnect
+		removeExpListeners();
+		
 		expBroadcastChan = Codec.expChanPrefix + chan;
-		logger.info("Subscribing to exp broadcast channel: " + expBroadcastChan);
 		expServiceChan = Codec.expSvcPrefix + chan;
-		logger.info("Subscribing to exp service channel: " + expServiceChan);
 		
 		broadcastListener = new MessageListener() {
 			@Override
-			public void onMessage(ClientSessionChannel channel, Message message) {				
+			public void onMessage(ClientSessionChannel channel, Message message) {
+				// Listeners also get the replies to our own publishes
+				if( message.isPublishReply() ) return;
 				clientWrapper.deliverBroadcast(message.getDataAsMap());
 			}
 		};						
 		
 		serviceListener = new MessageListener() {
 			@Override
-			public void onMessage(ClientSessionChannel channel, Message message) {							
+			public void onMessage(ClientSessionChannel channel, Message message) {
+				if( message.isPublishReply() ) return;
 				clientWrapper.deliverService(message.getDataAsMap());
 			}
 		};
+	}
+	
+	public void subscribeExpChannel(String chan) {
+		createExpListeners(chan);
+		expListening = false;
+		
+		logger.info("Subscribing to exp broadcast channel: " + expBroadcastChan);
+		logger.info("Subscribing to exp service channel: " + expServiceChan);
 		
 		bayeuxClient.getChannel(expBroadcastChan).subscribe(broadcastListener);
-		// Don't use addListener here...gives random useless messages
 		bayeuxClient.getChannel(expServiceChan).subscribe(serviceListener);		
 	}
 	
+	/**
+	 * Listen to experiment channels that the server already subscribed us to
+	 * @param chan
+	 */
+	public void listenExpChannel(String chan) {
+		createExpListeners(chan);
+		expListening = true;
+		
+		logger.info("Listening on exp channels: " + expBroadcastChan + ", " + expServiceChan);
+		
+		bayeuxClient.getChannel(expBroadcastChan).addListener(broadcastListener);
+		bayeuxClient.getChannel(expServiceChan).addListener(serviceListener);		
+	}
+	
 	@Service
 	private class UserClientService {
 		@Session
@@ -246,9 +288,12 @@ public class SessionClient<C> implements ClientController {
 					disconnect();
 				}
 				else if( Codec.status_connectexp.equals(status.toString())) {					
-					// Subscribe to this channel
+					// Listen on this channel, subscribing if the server didn't already
 					String chan = m.get("channel").toString();					
-					subscribeExpChannel(chan);					
+					if( Boolean.TRUE.equals(m.get("subscribed")) )
+						listenExpChannel(chan);
+					else
+						subscribeExpChannel(chan);					
 					
 					clientWrapper.triggerStartExperiment();
 				}
@@ -263,6 +308,17 @@ public class SessionClient<C> implements ClientController {
 					clientWrapper.triggerClientError(Codec.status_batchfinished);					
 					disconnect();					
 				}
+				else if( Codec.status_busy.equals(status.toString()) || 
+						Codec.status_overloaded.equals(status.toString()) ) {
+					final String chan = m.get("channel").toString();
+					final Object data = m.get("message");
+					long retry = ((Number) m.get("retry")).longValue();
+					
+					logger.info("Server busy (" + status + "), resending message on " + chan + " in " + retry + " ms");
+					retryTimer.schedule(new TimerTask() {
+						public void run() { bayeuxClient.getChannel(chan).publish(data); }
+					}, retry);
+				}
 				else if( Codec.status_error.equals(status.toString()) ) {					
 					clientWrapper.triggerClientError(m.get("msg").toString());
 					isError = true;
@@ -1,7 +1,11 @@
 package edu.harvard.econcs.turkserver.config;
 
+import org.apache.commons.configuration.Configuration;
+
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.Singleton;
 
 import edu.harvard.econcs.turkserver.api.ExperimentLog;
 import edu.harvard.econcs.turkserver.logging.ExperimentLogImpl;
@@ -10,8 +14,10 @@ import edu.harvard.econcs.turkserver.mturk.HITController;
 import edu.harvard.econcs.turkserver.mturk.TurkHITController;
 import edu.harvard.econcs.turkserver.server.GroupServer;
 import edu.harvard.econcs.turkserver.server.SimpleExperimentServer;
+import edu.harvard.econcs.turkserver.server.mysql.CachingDataTracker;
 import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker;
 import edu.harvard.econcs.turkserver.server.mysql.MySQLDataTracker;
+import edu.harvard.econcs.turkserver.server.mysql.WriteBehindDataTracker;
 
 public class ConfigModules {
 
@@ -32,8 +38,21 @@ public class ConfigModules {
 	public static final AbstractModule MYSQL_DATABASE = new AbstractModule() {
 		@Override
 		protected void configure() {
-			bind(ExperimentDataTracker.class).to(MySQLDataTracker.class);
+			// See provider below, which may put a cache and write queue in front
 		}		
+		
+		@Provides @Singleton
+		ExperimentDataTracker getTracker(MySQLDataTracker mysql, Configuration conf) {
+			ExperimentDataTracker tracker = mysql;
+			
+			long delay = conf.getLong(TSConfig.MYSQL_COMMIT_DELAY, -1);
+			if( delay >= 0 ) tracker = new WriteBehindDataTracker(tracker, delay);
+			
+			int cacheSize = conf.getInt(TSConfig.MYSQL_CACHE_SIZE, 0);
+			if( cacheSize > 0 ) tracker = new CachingDataTracker(tracker, cacheSize);
+			
+			return tracker;
+		}
 	};
 	
 	public static final AbstractModule PERSIST_LOGGING = new AbstractModule() {
@@ -1,20 +1,26 @@
 package edu.harvard.econcs.turkserver.config;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import javax.servlet.GenericServlet;
 
+import org.apache.commons.configuration.Configuration;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.util.resource.Resource;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provides;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 
 import edu.harvard.econcs.turkserver.api.Configurator;
 import edu.harvard.econcs.turkserver.api.ExperimentController;
+import edu.harvard.econcs.turkserver.api.GroupMatcher;
 import edu.harvard.econcs.turkserver.api.HITWorker;
 import edu.harvard.econcs.turkserver.api.HITWorkerGroup;
 import edu.harvard.econcs.turkserver.server.EventAnnotationManager;
@@ -23,7 +29,9 @@ import edu.harvard.econcs.turkserver.server.ExperimentScoped;
 import edu.harvard.econcs.turkserver.server.Experiments;
 import edu.harvard.econcs.turkserver.server.JettyCometD;
 import edu.harvard.econcs.turkserver.server.Lobby;
+import edu.harvard.econcs.turkserver.server.MatchmakingLobby;
 import edu.harvard.econcs.turkserver.server.ReadyStateLobby;
+import edu.harvard.econcs.turkserver.server.ShardedLobby;
 import edu.harvard.econcs.turkserver.server.ThreadLocalScope;
 import edu.harvard.econcs.turkserver.server.WorkerAuthenticator;
 
@@ -44,8 +52,6 @@ public abstract class ServerModule extends AbstractModule {
 		bind(Experiments.class);
 		bind(JettyCometD.class);
 		bind(WorkerAuthenticator.class);
-						
-		bind(Lobby.class).to(ReadyStateLobby.class);
 		
 		// bind(ExperimentLog.class).to(LogController.class);		
 		bind(ExperimentController.class).to(ExperimentControllerImpl.class);
@@ -54,6 +60,33 @@ public abstract class ServerModule extends AbstractModule {
 		bind(HITWorkerGroup.class).toProvider(ThreadLocalScope.<HITWorkerGroup>seededKeyProvider()).in(ExperimentScoped.class);				
 	}
 	
+	/*
+	 * Split into shards if there are going to be lots of people waiting
+	 */
+	@Provides
+	Lobby getLobby(Injector injector, Configuration conf) {
+		int numShards = conf.getInt(TSConfig.SERVER_LOBBY_SHARDS, 1);
+		if( numShards <= 1 ) return newLobby(injector);
+		
+		List<Lobby> shards = new ArrayList<Lobby>(numShards);
+		for( int i = 0; i < numShards; i++ ) shards.add(newLobby(injector));
+		
+		Configurator configurator = injector.getInstance(
+				Key.get(Configurator.class, Names.named(TSConfig.EXP_CONFIGURATOR)));
+		return new ShardedLobby(configurator, shards, conf);
+	}
+	
+	/*
+	 * Match workers by their attributes if the experiment says how,
+	 * otherwise group whoever is ready
+	 */
+	Lobby newLobby(Injector injector) {
+		if( injector.getExistingBinding(Key.get(GroupMatcher.class)) != null )
+			return injector.getInstance(MatchmakingLobby.class);
+		
+		return injector.getInstance(ReadyStateLobby.class);
+	}
+	
 	protected void bindBoolean(String setting, boolean value) {
 		bind(boolean.class).annotatedWith(Names.named(setting)).toInstance(value);
 	}
@@ -86,6 +119,10 @@ public abstract class ServerModule extends AbstractModule {
 		bind(Configurator.class).annotatedWith(Names.named(TSConfig.EXP_CONFIGURATOR)).toInstance(conf);
 	}
 	
+	protected void bindGroupMatcher(GroupMatcher matcher) {
+		bind(GroupMatcher.class).toInstance(matcher);
+	}
+	
 	protected void bindResources(Resource[] rscs) {
 		bind(Resource[].class).annotatedWith(Names.named(TSConfig.SERVER_RESOURCES)).toInstance(rscs);
 	}
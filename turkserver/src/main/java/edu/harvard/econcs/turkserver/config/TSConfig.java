@@ -24,6 +24,69 @@ public class TSConfig {
 	public static final String SERVER_HTTPPORT = "server.httpport";
 	public static final String SERVER_DEBUGMODE = "server.debugmode";
 	
+	/**
+	 * Number of this server, different for each server sharing a database, 
+	 * so that experiment ids are unique. Between 0 and 1295.
+	 */
+	public static final String SERVER_NODE = "server.node";
+	
+	/**
+	 * Threads for handling client messages off the transport threads, 
+	 * and how many messages can wait for them before clients are told to retry
+	 */
+	public static final String SERVER_MSG_THREADS = "server.message.threads";
+	public static final String SERVER_MSG_QUEUE = "server.message.queue";
+	
+	/**
+	 * HIT accepts processed at once, accepts that can wait for a turn (and for how many ms), 
+	 * and tracker latency in ms above which accepts are processed one at a time.
+	 * Accepts beyond these are asked to retry later.
+	 */
+	public static final String SERVER_ACCEPT_INFLIGHT = "server.accept.inflight";
+	public static final String SERVER_ACCEPT_QUEUE = "server.accept.queue";
+	public static final String SERVER_ACCEPT_WAIT = "server.accept.wait";
+	public static final String SERVER_ACCEPT_LATENCY = "server.accept.latency";
+	
+	/**
+	 * Seconds to remember workers after they complete or abandon a HIT
+	 */
+	public static final String SERVER_WORKER_TTL = "server.worker.ttl";
+	
+	/**
+	 * Milliseconds to wait for a disconnected worker to come back (e.g. after a reload)
+	 * before removing them from the lobby and freeing their HIT, or 0 to not wait
+	 */
+	public static final String SERVER_RECONNECT_GRACE = "server.reconnect.grace";
+	
+	/**
+	 * Least milliseconds between lobby broadcasts and lobby GUI refreshes.
+	 * Changes in between are sent together. 0 sends each change right away.
+	 */
+	public static final String SERVER_LOBBY_INTERVAL = "server.lobby.interval";
+	
+	/**
+	 * Milliseconds a worker waits for a matched group before any reasonable 
+	 * group will do, when the lobby matches workers by attributes. 0 never relaxes.
+	 */
+	public static final String SERVER_LOBBY_RELAX = "server.lobby.relax";
+	
+	/**
+	 * Milliseconds a worker waits in the lobby before a smaller group may be
+	 * started, if arrivals are too slow and the configurator allows it. 0 never does.
+	 */
+	public static final String SERVER_LOBBY_BUDGET = "server.lobby.budget";
+	
+	/**
+	 * Number of shards the lobby is split into, each with its own ready queue
+	 * and only seeing its own changes. 1 keeps a single lobby.
+	 */
+	public static final String SERVER_LOBBY_SHARDS = "server.lobby.shards";
+	
+	/**
+	 * Milliseconds between merging shards that are too small to form groups.
+	 */
+	public static final String SERVER_LOBBY_REBALANCE = "server.lobby.rebalance";
+	
 	/**
 	 * Maximum number of assigned, non-completed HITs that a worker can have (usually 1).
 	 */
@@ -46,6 +109,16 @@ public class TSConfig {
 	public static final String MYSQL_USER = "mysql.username";
 	public static final String MYSQL_PASSWORD = "mysql.password";
 	
+	/**
+	 * Milliseconds to wait for more writes before committing a batch, or -1 to write synchronously
+	 */
+	public static final String MYSQL_COMMIT_DELAY = "mysql.commit.delay";
+	
+	/**
+	 * Number of sessions to keep in memory in front of the database, or 0 for none
+	 */
+	public static final String MYSQL_CACHE_SIZE = "mysql.cache.size";
+	
 	/* ****************************************************
 	 * Other things that will need to be set
 	 ******************************************************/
@@ -56,6 +129,21 @@ public class TSConfig {
 	
 	public static final String EXP_INPUT_LIST = "experiment.inputdata";	
 	
+	/**
+	 * Number of threads shared by running experiments for their events
+	 */
+	public static final String EXP_THREADS = "experiment.threads";
+	
+	/**
+	 * Number of threads starting experiments for groups formed in the lobby
+	 */
+	public static final String EXP_STARTUP_THREADS = "experiment.startup.threads";
+	
+	/**
+	 * Default time limit for experiments with @TimeLimit methods, in seconds. 0 for none.
+	 */
+	public static final String EXP_TIMELIMIT = "experiment.timelimit";
+	
 	/**
 	 * Maximum number of HITs a single worker can complete in this set
 	 */
@@ -115,6 +203,19 @@ public class TSConfig {
 		
 		// Sensible default values to fall back on		
 		conf.setProperty(SERVER_HTTPPORT, 9876);
+		conf.setProperty(SERVER_MSG_THREADS, 16);
+		conf.setProperty(SERVER_MSG_QUEUE, 1000);
+		conf.setProperty(SERVER_ACCEPT_INFLIGHT, 8);
+		conf.setProperty(SERVER_ACCEPT_QUEUE, 4);
+		conf.setProperty(SERVER_ACCEPT_WAIT, 2000);
+		conf.setProperty(SERVER_ACCEPT_LATENCY, 1000);
+		conf.setProperty(SERVER_WORKER_TTL, 1800);
+		conf.setProperty(SERVER_RECONNECT_GRACE, 5000);
+		conf.setProperty(SERVER_LOBBY_INTERVAL, 100);
+		conf.setProperty(SERVER_LOBBY_RELAX, 60000);
+		conf.setProperty(SERVER_LOBBY_BUDGET, 120000);
+		conf.setProperty(SERVER_LOBBY_SHARDS, 1);
+		conf.setProperty(SERVER_LOBBY_REBALANCE, 1000);
 		conf.setProperty(CONCURRENCY_LIMIT, 1);
 		
 		conf.setProperty(MTURK_ASSIGNMENT_DURATION, 86400);
@@ -124,6 +225,13 @@ public class TSConfig {
 		// TODO: remove this
 		conf.setProperty(SERVER_DEBUGMODE, false);
 		
+		conf.setProperty(MYSQL_COMMIT_DELAY, 10);
+		conf.setProperty(MYSQL_CACHE_SIZE, 10000);
+		
+		conf.setProperty(EXP_THREADS, Runtime.getRuntime().availableProcessors());
+		conf.setProperty(EXP_STARTUP_THREADS, Runtime.getRuntime().availableProcessors());
+		conf.setProperty(EXP_TIMELIMIT, 0);
+		
 		conf.setProperty(SERVER_LOBBY_DEFAULT, true);
 		conf.setProperty(SERVER_USERNAME, false);
 		
@@ -452,6 +452,9 @@ public class TurkHITController implements HITController {
 							}														
 							tracker.saveSession(s);
 						}
+						
+						// Make sure payments are recorded before moving on, so they aren't repeated
+						tracker.flush();
 
 					} else {							
 						logger.info("HIT {} has status {}, skipping", hitId, hit.getHITStatus().toString());							
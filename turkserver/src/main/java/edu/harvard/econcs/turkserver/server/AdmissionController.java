@@ -0,0 +1,237 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.harvard.econcs.turkserver.util.HashedWheelTimer;
+
+/**
+ * Limits how many HIT accepts are processed at once, so that a surge of
+ * accepts doesn't take every message thread and database connection away
+ * from the lobby and running experiments.
+ *
+ * Accepts over the limit wait in line a little for a turn, up to a few at
+ * a time, without holding on to a thread while they wait. The rest are
+ * shed and the client is asked to try again later.
+ * While the tracker is slow, only one accept goes through at a time
+ * until it speeds up again.
+ *
+ * @author mao
+ *
+ */
+public class AdmissionController {
+
+	// Weight of each new latency sample
+	static final double LATENCY_ALPHA = 0.2;
+
+	/**
+	 * What happens to an accept that has to wait in line
+	 */
+	public interface Turn {
+		/**
+		 * It can go ahead now, and must be followed by {@link AdmissionController#release()}.
+		 * Called on whichever thread gave up the turn, so it should hand off the work.
+		 */
+		void admitted();
+
+		/**
+		 * It waited too long, or there was no room to wait
+		 */
+		void shed();
+	}
+
+	/*
+	 * An accept in line, which is shed if still there when it times out
+	 */
+	class Waiting implements Runnable {
+		final Turn turn;
+		HashedWheelTimer.Timeout timeout;
+
+		Waiting(Turn turn) { this.turn = turn; }
+
+		@Override
+		public void run() {
+			lock.lock();
+			try {
+				if( !line.remove(this) ) return;
+			} finally {
+				lock.unlock();
+			}
+
+			shed.incrementAndGet();
+			turn.shed();
+		}
+	}
+
+	final HashedWheelTimer timer;
+	final int maxInFlight;
+	final int maxQueued;
+	final long maxWaitNanos;
+	final long maxLatencyNanos;
+
+	private final Lock lock = new ReentrantLock();
+
+	// Guarded by lock
+	private int inFlight = 0;
+	private final Deque<Waiting> line = new ArrayDeque<Waiting>();
+
+	private volatile double latencyNanos = 0;
+
+	final AtomicLong admitted = new AtomicLong();
+	final AtomicLong queued = new AtomicLong();
+	final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * @param timer for shedding accepts that wait too long
+	 * @param maxInFlight accepts processed at once
+	 * @param maxQueued accepts that can wait for a turn
+	 * @param maxWaitMillis how long an accept waits before it is shed
+	 * @param maxLatencyMillis tracker latency above which accepts are processed one at a time
+	 */
+	public AdmissionController(HashedWheelTimer timer, int maxInFlight, int maxQueued, long maxWaitMillis, long maxLatencyMillis) {
+		this.timer = timer;
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+	}
+
+	// Call with lock held
+	private int limit() {
+		return latencyNanos > maxLatencyNanos ? 1 : maxInFlight;
+	}
+
+	/**
+	 * Take a turn to process an accept if there is one free, otherwise wait
+	 * in line for one, and the turn is told later whether it got in.
+	 * @param turn
+	 * @return true if the accept can go ahead right away, and must be 
+	 * followed by {@link #release()}
+	 */
+	public boolean acquire(Turn turn) {
+		lock.lock();
+		try {
+			if( inFlight < limit() ) {
+				inFlight++;
+				admitted.incrementAndGet();
+				return true;
+			}
+
+			if( line.size() < maxQueued && maxWaitNanos > 0 ) {
+				Waiting w = new Waiting(turn);
+				line.add(w);
+				queued.incrementAndGet();
+				w.timeout = timer.schedule(w, maxWaitNanos, TimeUnit.NANOSECONDS);
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		shed.incrementAndGet();
+		turn.shed();
+		return false;
+	}
+
+	// Call with lock held
+	private List<Turn> nextInLine() {
+		List<Turn> next = new ArrayList<Turn>();
+
+		while( inFlight < limit() && !line.isEmpty() ) {
+			Waiting w = line.poll();
+			w.timeout.cancel();
+
+			inFlight++;
+			admitted.incrementAndGet();
+			next.add(w.turn);
+		}
+		return next;
+	}
+
+	public void release() {
+		List<Turn> next;
+
+		lock.lock();
+		try {
+			inFlight--;
+			next = nextInLine();
+		} finally {
+			lock.unlock();
+		}
+
+		for( Turn t : next ) t.admitted();
+	}
+
+	/**
+	 * Record how long a call to the tracker took while processing an accept
+	 * @param nanos
+	 */
+	public void recordLatency(long nanos) {
+		double prev = latencyNanos;
+		latencyNanos = prev == 0 ? nanos : prev + LATENCY_ALPHA * (nanos - prev);
+
+		// Let waiting accepts in if the tracker sped up
+		if( prev > maxLatencyNanos && latencyNanos <= maxLatencyNanos ) {
+			List<Turn> next;
+
+			lock.lock();
+			try {
+				next = nextInLine();
+			} finally {
+				lock.unlock();
+			}
+
+			for( Turn t : next ) t.admitted();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting() {
+		lock.lock();
+		try {
+			return line.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return average recent tracker latency, in milliseconds
+	 */
+	public double getLatencyMillis() {
+		return latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d admitted, %d queued, %d shed, %.1f ms tracker latency",
+				admitted.get(), queued.get(), shed.get(), getLatencyMillis());
+	}
+
+}
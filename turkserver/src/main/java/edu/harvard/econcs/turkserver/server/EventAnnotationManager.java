@@ -1,9 +1,16 @@
 package edu.harvard.econcs.turkserver.server;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
@@ -13,9 +20,11 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
 import com.google.inject.Singleton;
 
 import edu.harvard.econcs.turkserver.api.*;
@@ -23,6 +32,19 @@ import edu.harvard.econcs.turkserver.api.*;
 /**
  * Handles callback events for experiments
  * 
+ * Callback methods are compiled once per experiment class into method handles
+ * with a fixed erased signature, so that dispatching a message is a direct
+ * invokeExact call without reflection or argument arrays.
+ * 
+ * The callbacks for each class are kept in an immutable snapshot that is
+ * republished (copy-on-write) when experiments are added or removed, so
+ * dispatching never takes a lock and a slow callback in one experiment
+ * cannot hold up any other experiment.
+ * 
+ * Broadcast and service handlers are indexed by their annotation key and
+ * value when the class is registered, so routing a message only takes a
+ * few hash lookups rather than checking every handler.
+ * 
  * TODO fix the triggered methods here to properly handle
  * superclass methods with the same signature, superclass methods
  * are currently added but not called at all.
@@ -36,41 +58,186 @@ public class EventAnnotationManager {
 	protected final Logger logger = LoggerFactory.getLogger(this.getClass().getSimpleName());
 	
 	final ConcurrentMap<String, Object> beans;
+	// Only modified while holding its own lock, along with callbacks
 	final Multimap<Class<?>, Object> beanClasses;
 	
-	final Multimap<Class<?>, Method> starts;
-	final Multimap<Class<?>, Method> rounds;
-	final Multimap<Class<?>, Method> intervals;
-	final Multimap<Class<?>, Method> timeouts;	
-	final Multimap<Class<?>, Method> connects;
-	final Multimap<Class<?>, Method> disconnects;
+	static final MethodType VOID_TYPE = 
+			MethodType.methodType(void.class, Object.class);
+	static final MethodType INT_TYPE = 
+			MethodType.methodType(void.class, Object.class, int.class);
+	static final MethodType WORKER_TYPE = 
+			MethodType.methodType(void.class, Object.class, HITWorker.class);
+	static final MethodType BROADCAST_TYPE = 
+			MethodType.methodType(boolean.class, Object.class, HITWorker.class, Map.class);
+	static final MethodType SERVICE_TYPE = 
+			MethodType.methodType(void.class, Object.class, HITWorker.class, Map.class);
+	
+	volatile ImmutableMap<Class<?>, ClassCallbacks> callbacks;
 	
-	final Multimap<Class<?>, Method> broadcasts;
-	final Multimap<Class<?>, Method> services;
+	/**
+	 * A callback method compiled to a method handle of one of the above types.
+	 * All callbacks share this one final class so each dispatch site stays monomorphic.
+	 */
+	static final class Callback {
+		final Method method;
+		final MethodHandle handle;
+		
+		Callback(Method method, MethodType type) {
+			this.method = method;
+			
+			// Only need to do this once, when the handle is created
+			method.setAccessible(true);
+			try {
+				this.handle = MethodHandles.lookup().unreflect(method).asType(type);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException("Unable to access callback method " + method, e);
+			}
+		}
+		
+		void invoke(Object bean) throws Throwable {
+			handle.invokeExact(bean);
+		}
+		
+		void invoke(Object bean, int round) throws Throwable {
+			handle.invokeExact(bean, round);
+		}
+		
+		void invoke(Object bean, HITWorker worker) throws Throwable {
+			handle.invokeExact(bean, worker);
+		}
+		
+		void invoke(Object bean, HITWorker worker, Map<String, Object> message) throws Throwable {
+			handle.invokeExact(bean, worker, message);
+		}
+		
+		boolean invokeBroadcast(Object bean, HITWorker worker, Map<String, Object> message) throws Throwable {
+			return (boolean) handle.invokeExact(bean, worker, message);
+		}
+		
+		public String toString() {
+			return method.toString();
+		}
+	}
+	
+	/**
+	 * Immutable snapshot of all the callbacks of one experiment class.
+	 */
+	static final class ClassCallbacks {
+		static final ClassCallbacks EMPTY = new ClassCallbacks(
+				ArrayListMultimap.<Class<? extends Annotation>, Callback>create());
+		
+		final ImmutableList<Callback> starts;
+		final ImmutableList<Callback> rounds;
+		final ImmutableList<Callback> intervals;
+		final ImmutableList<Callback> timeouts;	
+		final ImmutableList<Callback> connects;
+		final ImmutableList<Callback> disconnects;
+		
+		final MessageRoutes broadcasts;
+		final MessageRoutes services;
+		
+		ClassCallbacks(ListMultimap<Class<? extends Annotation>, Callback> map) {
+			starts = ImmutableList.copyOf(map.get(StartExperiment.class));
+			rounds = ImmutableList.copyOf(map.get(StartRound.class));
+			intervals = ImmutableList.copyOf(map.get(IntervalEvent.class));
+			timeouts = ImmutableList.copyOf(map.get(TimeLimit.class));
+			connects = ImmutableList.copyOf(map.get(WorkerConnect.class));
+			disconnects = ImmutableList.copyOf(map.get(WorkerDisconnect.class));
+			
+			broadcasts = new MessageRoutes();
+			for( Callback c : map.get(BroadcastMessage.class) ) {
+				BroadcastMessage ann = c.method.getAnnotation(BroadcastMessage.class);
+				broadcasts.add(c, ann.key(), ann.value());
+			}
+			
+			services = new MessageRoutes();
+			for( Callback c : map.get(ServiceMessage.class) ) {
+				ServiceMessage ann = c.method.getAnnotation(ServiceMessage.class);
+				services.add(c, ann.key(), ann.value());
+			}
+		}
+	}
+	
+	/**
+	 * Index of message handlers: key -> value -> handlers, handlers for
+	 * any value of a key, and catch-all handlers with no key.
+	 * 
+	 * Only filled in while its ClassCallbacks is being built.
+	 */
+	static final class MessageRoutes {
+		final List<Callback> catchAll = new ArrayList<>();
+		final Map<String, List<Callback>> anyValue = new HashMap<>();
+		final Map<String, Map<String, List<Callback>>> byValue = new HashMap<>();
+		
+		// Registration order, so handlers run in the order they always have
+		final Map<Callback, Integer> order = new IdentityHashMap<>();
+		
+		final Comparator<Callback> inOrder = new Comparator<Callback>() {
+			public int compare(Callback a, Callback b) {
+				return order.get(a) - order.get(b);
+			}
+		};
+		
+		void add(Callback c, String[] key, String[] value) {
+			order.put(c, order.size());
+			
+			if( key.length == 0 ) {
+				catchAll.add(c);
+			}
+			else if( value.length == 0 ) {
+				List<Callback> l = anyValue.get(key[0]);
+				if( l == null ) anyValue.put(key[0], l = new ArrayList<Callback>());
+				l.add(c);
+			}
+			else {
+				Map<String, List<Callback>> values = byValue.get(key[0]);
+				if( values == null ) byValue.put(key[0], values = new HashMap<String, List<Callback>>());
+				List<Callback> l = values.get(value[0]);
+				if( l == null ) values.put(value[0], l = new ArrayList<Callback>());
+				l.add(c);
+			}
+		}
+		
+		int size() {
+			return order.size();
+		}
+		
+		/**
+		 * Get the handlers that should receive a message, in the order
+		 * they were declared. A null message only goes to catch-all handlers.
+		 */
+		List<Callback> match(Map<String, Object> message) {
+			if( message == null || (anyValue.isEmpty() && byValue.isEmpty()) )
+				return catchAll;
+			
+			List<Callback> matched = null;
+			
+			// Only the keys this message has, not every key handled
+			for( Map.Entry<String, Object> e : message.entrySet() ) {
+				List<Callback> any = anyValue.get(e.getKey());
+				
+				Map<String, List<Callback>> values = byValue.get(e.getKey());
+				List<Callback> some = values == null || e.getValue() == null ? null : values.get(e.getValue());
+				
+				if( any == null && some == null ) continue;
+				if( matched == null ) matched = new ArrayList<>(catchAll);
+				if( any != null ) matched.addAll(any);
+				if( some != null ) matched.addAll(some);
+			}
+			
+			if( matched == null ) return catchAll;
+			
+			Collections.sort(matched, inOrder);
+			return matched;
+		}
+	}
 		
 	EventAnnotationManager() {		
 		beans = new MapMaker().makeMap();
 		
-		beanClasses = Multimaps.synchronizedSetMultimap(
-				HashMultimap.<Class<?>, Object>create());	
-		
-		starts = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		rounds = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		intervals = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		timeouts = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		connects = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		disconnects = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		
-		broadcasts = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
-		services = Multimaps.synchronizedListMultimap(
-				ArrayListMultimap.<Class<?>, Method>create());
+		beanClasses = HashMultimap.create();
+		
+		callbacks = ImmutableMap.of();
 	}
 	
 	/**
@@ -86,56 +253,69 @@ public class EventAnnotationManager {
 		if( e == null )
 			logger.warn("Class {} does not have @Experiment annotation, but trying mappings anyway", exp.getClass().toString());
 		
-		if( beanClasses.get(exp.getClass()).size() > 0 ) {
-			beans.put(expId, exp);
-			beanClasses.put(exp.getClass(), exp);
-			return true;
-		}				
+		Class<?> klass = exp.getClass();
 		
-		boolean result = processCallbacks(exp.getClass());
+		synchronized(beanClasses) {
+			if( !callbacks.containsKey(klass) ) {
+				ClassCallbacks compiled = processCallbacks(klass);
 				
-		if( result ) {
+				if( compiled == null )
+					throw new IllegalArgumentException("Passed in a class with no callbacks");
+				
+				// Publish a new snapshot before the bean is visible to dispatch
+				Map<Class<?>, ClassCallbacks> updated = new HashMap<>(callbacks);
+				updated.put(klass, compiled);
+				callbacks = ImmutableMap.copyOf(updated);
+			}
+			
 			beans.put(expId, exp);
-			beanClasses.put(exp.getClass(), exp);			
-		}
-		else {
-			throw new IllegalArgumentException("Passed in a class with no callbacks");
+			beanClasses.put(klass, exp);
 		}
 		
-		return result;
+		return true;
 	}
 
-	private boolean processCallbacks(Class<?> klass) {
+	/**
+	 * Compile the callbacks of a class
+	 * @param klass
+	 * @return the callbacks, or null if the class has none
+	 */
+	private static ClassCallbacks processCallbacks(Class<?> klass) {
+		ListMultimap<Class<? extends Annotation>, Callback> declared = ArrayListMultimap.create();
 		boolean result = false;
 		 				
 		for (Class<?> c = klass; c != Object.class; c = c.getSuperclass())
         {
+			// Superclass methods are checked but not registered, see above
+			ListMultimap<Class<? extends Annotation>, Callback> map = 
+					c == klass ? declared : ArrayListMultimap.<Class<? extends Annotation>, Callback>create();
+			
 			Method[] methods = c.getDeclaredMethods();
             for (Method method : methods)
             {
-            	result |= processVoid(c, method, 
-            			starts, StartExperiment.class);
-            	result |= processVoid(c, method, 
-            			timeouts, TimeLimit.class);
-            	result |= processVoid(c, method,
-            			intervals, IntervalEvent.class);
+            	result |= processVoid(method, 
+            			map, StartExperiment.class);
+            	result |= processVoid(method, 
+            			map, TimeLimit.class);
+            	result |= processVoid(method,
+            			map, IntervalEvent.class);
             	
-            	result |= processInt(c, method,
-            			rounds, StartRound.class);
+            	result |= processInt(method,
+            			map, StartRound.class);
             	
-            	result |= processWorkerActivity(c, method, 
-            			connects, WorkerConnect.class);
-            	result |= processWorkerActivity(c, method, 
-            			disconnects, WorkerDisconnect.class);
+            	result |= processWorkerActivity(method, 
+            			map, WorkerConnect.class);
+            	result |= processWorkerActivity(method, 
+            			map, WorkerDisconnect.class);
             	
-            	result |= processBroadcastMessage(c, method,
-            			broadcasts, BroadcastMessage.class);
-            	result |= processServiceMessage(c, method,
-            			services, ServiceMessage.class);
+            	result |= processBroadcastMessage(method,
+            			map, BroadcastMessage.class);
+            	result |= processServiceMessage(method,
+            			map, ServiceMessage.class);
             }
         }
 				
-		return result;
+		return result ? new ClassCallbacks(declared) : null;
 	}		
 	
 	/**
@@ -144,41 +324,11 @@ public class EventAnnotationManager {
 	 * @return
 	 */
 	public static boolean testCallbacks(Class<?> klass) {
-		Multimap<Class<?>, Method> testMap = ArrayListMultimap.<Class<?>, Method>create();
-		boolean result = false;
-			
-		for (Class<?> c = klass; c != Object.class; c = c.getSuperclass())
-        {
-			Method[] methods = c.getDeclaredMethods();
-            for (Method method : methods)
-            {
-            	result |= processVoid(c, method, 
-            			testMap, StartExperiment.class);
-            	result |= processVoid(c, method, 
-            			testMap, TimeLimit.class);
-            	result |= processVoid(c, method,
-            			testMap, IntervalEvent.class);
-            	
-            	result |= processInt(c, method,
-            			testMap, StartRound.class);
-            	
-            	result |= processWorkerActivity(c, method, 
-            			testMap, WorkerConnect.class);
-            	result |= processWorkerActivity(c, method, 
-            			testMap, WorkerDisconnect.class);
-            	
-            	result |= processBroadcastMessage(c, method,
-            			testMap, BroadcastMessage.class);
-            	result |= processServiceMessage(c, method,
-            			testMap, ServiceMessage.class);
-            }
-        }
-				
-		return result;
+		return processCallbacks(klass) != null;
 	}
 			
-	private static boolean processVoid(Class<?> klass, Method method, 
-			Multimap<Class<?>, Method> map, Class<? extends Annotation> annot) {				
+	private static boolean processVoid(Method method,
+			ListMultimap<Class<? extends Annotation>, Callback> map, Class<? extends Annotation> annot) {				
 		if( method.getAnnotation(annot) == null ) return false;
 		
         if (method.getReturnType() != Void.TYPE)
@@ -188,13 +338,13 @@ public class EventAnnotationManager {
         if (Modifier.isStatic(method.getModifiers()))
             throw new RuntimeException("Invalid " + annot.toString() + " method " + method + ": it must not be static");
 		
-        map.put(klass, method);
+        map.put(annot, new Callback(method, VOID_TYPE));
 		
 		return true;
 	}
 
-	private static boolean processInt(Class<?> klass, Method method,
-			Multimap<Class<?>, Method> map, Class<? extends Annotation> annot) {
+	private static boolean processInt(Method method,
+			ListMultimap<Class<? extends Annotation>, Callback> map, Class<? extends Annotation> annot) {
 		if( method.getAnnotation(annot) == null ) return false;
 		
 		if (method.getReturnType() != Void.TYPE)
@@ -205,13 +355,13 @@ public class EventAnnotationManager {
         if (Modifier.isStatic(method.getModifiers()))
             throw new RuntimeException("Invalid " + annot.toString() + " method " + method + ": it must not be static");
 		
-        map.put(klass, method);
+        map.put(annot, new Callback(method, INT_TYPE));
         
 		return true;
 	}
 
-	private static boolean processWorkerActivity(Class<?> klass, Method method,
-			Multimap<Class<?>, Method> map, Class<? extends Annotation> annot) {
+	private static boolean processWorkerActivity(Method method,
+			ListMultimap<Class<? extends Annotation>, Callback> map, Class<? extends Annotation> annot) {
 		if( method.getAnnotation(annot) == null ) return false;
 		
 		if (method.getReturnType() != Void.TYPE)
@@ -222,13 +372,13 @@ public class EventAnnotationManager {
         if (Modifier.isStatic(method.getModifiers()))
             throw new RuntimeException("Invalid " + annot.toString() + " method " + method + ": it must not be static");
 		
-        map.put(klass, method);
+        map.put(annot, new Callback(method, WORKER_TYPE));
         
 		return true;
 	}
 
-	private static boolean processBroadcastMessage(Class<?> klass, Method method,
-			Multimap<Class<?>, Method> map, Class<? extends Annotation> annot) {
+	private static boolean processBroadcastMessage(Method method,
+			ListMultimap<Class<? extends Annotation>, Callback> map, Class<? extends Annotation> annot) {
 		if( method.getAnnotation(annot) == null ) return false;
 		
 		if (method.getReturnType() != Boolean.TYPE)
@@ -241,13 +391,13 @@ public class EventAnnotationManager {
         if (Modifier.isStatic(method.getModifiers()))
             throw new RuntimeException("Invalid " + annot.toString() + " method " + method + ": it must not be static");
 		
-        map.put(klass, method);
+        map.put(annot, new Callback(method, BROADCAST_TYPE));
         
 		return true;
 	}
 	
-	private static boolean processServiceMessage(Class<?> klass, Method method,
-			Multimap<Class<?>, Method> map, Class<? extends Annotation> annot) {
+	private static boolean processServiceMessage(Method method,
+			ListMultimap<Class<? extends Annotation>, Callback> map, Class<? extends Annotation> annot) {
 		if( method.getAnnotation(annot) == null ) return false;
 		
 		if (method.getReturnType() != Void.TYPE)
@@ -260,36 +410,32 @@ public class EventAnnotationManager {
         if (Modifier.isStatic(method.getModifiers()))
             throw new RuntimeException("Invalid " + annot.toString() + " method " + method + ": it must not be static");
 		
-        map.put(klass, method);
+        map.put(annot, new Callback(method, SERVICE_TYPE));
         
 		return true;
 	}
 	
-	private Object invokeMethod(Object bean, Method m, Object... args) {
-		boolean accessible = m.isAccessible();
-		try {
-			// TODO robust-ify the accessibility issue here
-			m.setAccessible(true);
-			return m.invoke(bean, args);
-		} catch (Exception e) {
-			logger.warn("Exception invoking {} on {}, ignoring", m, bean.getClass().toString());
-			e.printStackTrace();
-			return null;
-		} finally {
-			m.setAccessible(accessible);
-		}
+	private void logFailure(Callback c, Object bean, Throwable e) {
+		logger.warn("Exception invoking {} on {}, ignoring", c, bean.getClass().toString());
+		e.printStackTrace();
+	}
+	
+	private ClassCallbacks callbacksFor(Object bean) {
+		ClassCallbacks cbs = callbacks.get(bean.getClass());
+		// May have been deprocessed concurrently
+		return cbs != null ? cbs : ClassCallbacks.EMPTY;
 	}
 
-	List<Method> getIntervalEvents(String expId) {
+	List<Callback> getIntervalEvents(String expId) {
 		Object bean = beans.get(expId);
 		
-		List<Method> l = new LinkedList<>();
-		
-		synchronized(intervals) {
-			l.addAll(intervals.get(bean.getClass()));
-		}
+		return callbacksFor(bean).intervals;
+	}
+	
+	List<Callback> getTimeLimitEvents(String expId) {
+		Object bean = beans.get(expId);
 		
-		return l;
+		return callbacksFor(bean).timeouts;
 	}
 
 	/**
@@ -302,20 +448,10 @@ public class EventAnnotationManager {
 		
 		boolean forward = false;
 		
-		synchronized(broadcasts) {
-			for( Method m : broadcasts.get(bean.getClass())) {					
-				BroadcastMessage ann = m.getAnnotation(BroadcastMessage.class);
-				
-				if( ann.key().length > 0 ) {
-					if( message == null ) continue;
-					String key = ann.key()[0];
-					if ( !message.containsKey(key) ) continue;
-					if ( ann.value().length > 0 && !message.get(key).equals(ann.value()[0])) continue;
-				}
-				
-				forward |= (Boolean) invokeMethod(bean, m, source, message);
-			}	
-		}		
+		for( Callback c : callbacksFor(bean).broadcasts.match(message)) {
+			try { forward |= c.invokeBroadcast(bean, source, message); }
+			catch (Throwable e) { logFailure(c, bean, e); }
+		}
 				
 		return forward;
 	}
@@ -330,79 +466,66 @@ public class EventAnnotationManager {
 	void deliverServiceMsg(String expId, HITWorker source, Map<String, Object> message) {
 		Object bean = beans.get(expId);
 				
-		synchronized(services) {
-			for( Method m : services.get(bean.getClass())) {
-				ServiceMessage ann = m.getAnnotation(ServiceMessage.class);
-
-				if( ann.key().length > 0 ) {
-					String key = ann.key()[0];
-					if ( !message.containsKey(key) ) continue;
-					if ( ann.value().length > 0 && !message.get(key).equals(ann.value()[0])) continue;
-				}			
-
-				invokeMethod(bean, m, source, message);
-			}
+		for( Callback c : callbacksFor(bean).services.match(message)) {
+			try { c.invoke(bean, source, message); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
 	void triggerStart(String expId) {
 		Object bean = beans.get(expId);
 		
-		synchronized(starts) {
-			for( Method m : starts.get(bean.getClass())) {
-				invokeMethod(bean, m);
-			}
+		for( Callback c : callbacksFor(bean).starts) {
+			try { c.invoke(bean); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
 	void triggerRound(String expId, int round) {
 		Object bean = beans.get(expId);
 		
-		synchronized(rounds) {
-			for( Method m : rounds.get(bean.getClass())) {
-				invokeMethod(bean, m, round);
-			}
+		for( Callback c : callbacksFor(bean).rounds) {
+			try { c.invoke(bean, round); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
 	/**
 	 * Special method to activate interval events, which are not all the same
 	 * @param expId
-	 * @param method
+	 * @param callback
 	 */
-	void triggerInterval(String expId, Method method) {
+	void triggerInterval(String expId, Callback callback) {
 		Object bean = beans.get(expId);
 		
-		invokeMethod(bean, method);		
+		try { callback.invoke(bean); }
+		catch (Throwable e) { logFailure(callback, bean, e); }
 	}
 
 	void triggerWorkerConnect(String expId, HITWorkerImpl source) {
 		Object bean = beans.get(expId);
 		
-		synchronized(connects) {
-			for( Method m : connects.get(bean.getClass())) {
-				invokeMethod(bean, m, source);
-			}
+		for( Callback c : callbacksFor(bean).connects) {
+			try { c.invoke(bean, source); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
 	void triggerWorkerDisconnect(String expId, HITWorkerImpl source) {
 		Object bean = beans.get(expId);
 		
-		synchronized(disconnects) {
-			for( Method m : disconnects.get(bean.getClass())) {
-				invokeMethod(bean, m, source);
-			}		
+		for( Callback c : callbacksFor(bean).disconnects) {
+			try { c.invoke(bean, source); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
 	void triggerTimelimit(String expId) {
 		Object bean = beans.get(expId);
 		
-		synchronized(timeouts) {
-			for( Method m : timeouts.get(bean.getClass())) {
-				invokeMethod(bean, m);
-			}
+		for( Callback c : callbacksFor(bean).timeouts) {
+			try { c.invoke(bean); }
+			catch (Throwable e) { logFailure(c, bean, e); }
 		}
 	}
 	
@@ -413,25 +536,18 @@ public class EventAnnotationManager {
 	void deprocessExperiment(String experimentId) {
 		// No null experiments should have been mapped anyway
 		Object bean;
-		if( (bean = beans.remove(experimentId)) == null ) return;		
-		beanClasses.remove(bean.getClass(), bean);
 		
-		if( beanClasses.get(bean.getClass()).size() > 0 ) return;
-				
-		// no more beans of this type, de-register callbacks
-		for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass())
-		{			
-			starts.removeAll(c);
-			timeouts.removeAll(c);
-
-			rounds.removeAll(c);
+		synchronized(beanClasses) {
+			if( (bean = beans.remove(experimentId)) == null ) return;		
+			beanClasses.remove(bean.getClass(), bean);
 
-			connects.removeAll(c);
-			disconnects.removeAll(c);
+			if( beanClasses.get(bean.getClass()).size() > 0 ) return;
 
-			broadcasts.removeAll(c);
-			services.removeAll(c);	
-		}											
+			// no more beans of this type, de-register callbacks
+			Map<Class<?>, ClassCallbacks> updated = new HashMap<>(callbacks);
+			updated.remove(bean.getClass());
+			callbacks = ImmutableMap.copyOf(updated);
+		}
 	}			
 	
 }
@@ -0,0 +1,74 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes experiment ids that are unique even when experiments start at
+ * the same moment, on one server or several.
+ *
+ * Ids look like {@code 20131024 153012.345 0a00}: the start time in UTC to
+ * the millisecond, then the server's node number and a sequence number within
+ * the millisecond, both as two base-36 digits. They are all the same
+ * length, so they sort by start time, and fit in the 24 characters the
+ * database has for them. UTC has no daylight saving, so local clocks
+ * falling back can't repeat times that were already used.
+ *
+ * More than 1296 ids in one millisecond borrow from the next one, and a
+ * clock that goes backwards is ignored, so ids from one server always
+ * increase.
+ *
+ * @author mao
+ *
+ */
+public class ExperimentIds {
+
+	static final int RADIX = 36;
+	static final int MAX_NODES = RADIX * RADIX;
+	static final int PER_MILLI = RADIX * RADIX;
+
+	static final ThreadLocal<SimpleDateFormat> format = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd HHmmss.SSS");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return format;
+		}
+	};
+
+	final String node;
+
+	// Millisecond times PER_MILLI, plus the sequence number
+	private final AtomicLong last = new AtomicLong();
+
+	/**
+	 * @param node a different number for each server sharing a database, up to 1295
+	 */
+	public ExperimentIds(int node) {
+		checkArgument(node >= 0 && node < MAX_NODES, "Node must be between 0 and %s", MAX_NODES - 1);
+
+		this.node = digits(node);
+	}
+
+	public String next() {
+		long now = System.currentTimeMillis() * PER_MILLI;
+		long prev, id;
+
+		do {
+			prev = last.get();
+			id = Math.max(now, prev + 1);
+		} while( !last.compareAndSet(prev, id) );
+
+		return format.get().format(new Date(id / PER_MILLI)) + " " + node + digits((int) (id % PER_MILLI));
+	}
+
+	static String digits(int n) {
+		String s = Integer.toString(n, RADIX);
+		return s.length() < 2 ? "0" + s : s;
+	}
+
+}
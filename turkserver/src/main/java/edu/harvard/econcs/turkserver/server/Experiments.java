@@ -1,31 +1,34 @@
 package edu.harvard.econcs.turkserver.server;
 
-import java.lang.reflect.Method;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.configuration.Configuration;
 import org.cometd.bayeux.server.BayeuxServer;
 import org.cometd.bayeux.server.ConfigurableServerChannel;
 import org.cometd.bayeux.server.LocalSession;
 import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerSession;
 import org.cometd.bayeux.server.ConfigurableServerChannel.Initializer;
 import org.cometd.server.authorizer.GrantAuthorizer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.andrewmao.misc.Utils;
-
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Singleton;
@@ -36,10 +39,35 @@ import edu.harvard.econcs.turkserver.api.Configurator;
 import edu.harvard.econcs.turkserver.api.HITWorker;
 import edu.harvard.econcs.turkserver.api.HITWorkerGroup;
 import edu.harvard.econcs.turkserver.api.IntervalEvent;
+import edu.harvard.econcs.turkserver.api.TimeLimit;
 import edu.harvard.econcs.turkserver.cometd.MockLocalSession;
 import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker;
+import edu.harvard.econcs.turkserver.util.HashedWheelTimer;
+import edu.harvard.econcs.turkserver.util.Histogram;
+import edu.harvard.econcs.turkserver.util.StripedExecutor;
 
+/**
+ * Starts, runs and finishes experiments.
+ * 
+ * Experiment events run in a separate ordered lane for each experiment, 
+ * so callbacks of one experiment never overlap but different experiments 
+ * run in parallel. Delays, intervals and time limits are kept on a single
+ * hashed wheel timer, which only hands tasks off to the lanes. Messages and
+ * disconnects from workers go through the lanes too. Broadcasts are held
+ * back by cometd and sent again from the lane if the handlers pass them on,
+ * so transport threads never wait on an experiment.
+ * 
+ * Workers are subscribed to the experiment channels by the server. 
+ * Experiments start, and reconnected workers are announced, as soon as the 
+ * subscriptions are in place, or after a timeout if some never are.
+ * 
+ * Groups from the lobby are set up on a separate pool of threads, so the
+ * lobby only hands them off and several can be set up at once.
+ * 
+ * @author mao
+ *
+ */
 @Singleton
 public class Experiments {
 	// Injector for creating bean classes
@@ -57,7 +85,10 @@ public class Experiments {
 		}			
 	};
 	
-	static final int TRIGGER_HACK_MILLIS = 1000;
+	static final int SUBSCRIBE_TIMEOUT_MILLIS = 5000;
+	
+	static final int TIMER_TICK_MILLIS = 20;
+	static final int TIMER_WHEEL_SIZE = 512;
 	
 	final EventAnnotationManager manager;	
 	final ExperimentDataTracker tracker;
@@ -65,18 +96,30 @@ public class Experiments {
 	final Configurator configurator;
 	final Class<?> expClass;
 		
+	final ExperimentIds expIds;
 	final ConcurrentMap<HITWorker, String> currentExps;
+	// Handed off but not started yet, and whether they came back on a new session meanwhile
+	final ConcurrentMap<HITWorker, Boolean> starting;
+	final ExecutorService startups;
 	final Queue<ExperimentListener> listeners;
 		
-	final ScheduledExecutorService eventScheduler;	
-	final ConcurrentMap<String, List<ScheduledFuture<?>>> scheduledIntervals;
+	final HashedWheelTimer timer;	
+	final StripedExecutor<String> expExecutor;
+	final ConcurrentMap<String, Queue<HashedWheelTimer.Timeout>> expTimeouts;
+	
+	// Keyed by experiment channel
+	final ConcurrentMap<String, Set<SubscriptionBarrier>> barriers;
+	final Histogram subscribeMillis;
+	
+	final long defaultTimeLimitMillis;
 
 	@Inject
 	Experiments(
 			@Named(TSConfig.EXP_CLASS) Class<?> expClass,
 			@Named(TSConfig.EXP_CONFIGURATOR) Configurator configurator,			
 			ExperimentDataTracker tracker,
-			EventAnnotationManager manager
+			EventAnnotationManager manager,
+			Configuration conf
 			) {
 		MapMaker concMapMaker = new MapMaker();
 		
@@ -86,22 +129,177 @@ public class Experiments {
 		this.tracker = tracker;
 		this.manager = manager;
 		
+		this.expIds = new ExperimentIds(conf.getInt(TSConfig.SERVER_NODE, 0));
 		this.currentExps = concMapMaker.makeMap();
+		this.starting = concMapMaker.makeMap();
+		this.startups = Executors.newFixedThreadPool(conf.getInt(TSConfig.EXP_STARTUP_THREADS, 1),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("exp-startup-%d").build());
 		this.listeners = new ConcurrentLinkedQueue<ExperimentListener>();
 		
-		this.eventScheduler = Executors.newScheduledThreadPool(1);
-		this.scheduledIntervals = concMapMaker.makeMap();
+		this.timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+		this.expExecutor = new StripedExecutor<String>(conf.getInt(TSConfig.EXP_THREADS));
+		this.expTimeouts = concMapMaker.makeMap();
+		
+		this.barriers = concMapMaker.makeMap();
+		this.subscribeMillis = new Histogram();
+		
+		this.defaultTimeLimitMillis = TimeUnit.SECONDS.toMillis(conf.getLong(TSConfig.EXP_TIMELIMIT, 0));
 	}
 
 	// TODO remove this hack once things are properly wired up
 	public void setReferences(BayeuxServer bayeux) {
 		this.bayeux = bayeux;		
+		
+		if( bayeux != null ) bayeux.addListener(new ChannelSubscriptionListener());
 	}	
 	
+	/**
+	 * Releases start and reconnect barriers as workers subscribe
+	 */
+	class ChannelSubscriptionListener implements BayeuxServer.SubscriptionListener {
+		@Override
+		public void subscribed(ServerSession session, ServerChannel channel) {
+			String channelId = channel.getId();
+			
+			String expChannel;
+			if( channelId.startsWith(Codec.expChanPrefix) )
+				expChannel = channelId.substring(Codec.expChanPrefix.length());
+			else if( channelId.startsWith(Codec.expSvcPrefix) )
+				expChannel = channelId.substring(Codec.expSvcPrefix.length());
+			else return;
+			
+			Set<SubscriptionBarrier> waiting = barriers.get(expChannel);
+			if( waiting == null ) return;
+			
+			for( SubscriptionBarrier barrier : waiting ) {
+				if( barrier.subscribed(session.getId(), channelId) )
+					releaseBarrier(barrier, false);
+			}
+		}
+
+		@Override
+		public void unsubscribed(ServerSession session, ServerChannel channel) {			
+		}		
+	}
+	
 	void registerListener(ExperimentListener listener) {
 		listeners.add(listener);
 	}
 	
+	private Runnable inLane(final String expId, final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				expExecutor.execute(expId, task);
+			}
+		};
+	}
+	
+	/**
+	 * Run a task in an experiment's lane after a delay. 
+	 * It is cancelled if the experiment finishes first.
+	 */
+	private void scheduleInLane(String expId, Runnable task, long delay, TimeUnit unit) {
+		trackTimeout(expId, timer.schedule(inLane(expId, task), delay, unit));
+	}
+	
+	/**
+	 * Create a barrier that runs an action in the experiment's lane once the
+	 * given workers have subscribed to both experiment channels. 
+	 * It should be armed when the experiment is ready for the action.
+	 */
+	private SubscriptionBarrier newBarrier(String expId, String expChannel, 
+			Collection<? extends HITWorker> workers, Runnable action) {
+		SubscriptionBarrier barrier = new SubscriptionBarrier(expId, expChannel, action);
+		
+		if( bayeux != null ) {
+			for( HITWorker hitw : workers ) {
+				ServerSession session = ((HITWorkerImpl) hitw).cometdSession.get();
+				// Can't wait for anyone who isn't connected
+				if( session == null ) continue;
+				
+				barrier.await(session.getId(), Codec.expChanPrefix + expChannel);
+				barrier.await(session.getId(), Codec.expSvcPrefix + expChannel);
+			}
+		}
+		
+		Set<SubscriptionBarrier> waiting = barriers.get(expChannel);
+		if( waiting == null ) {
+			Set<SubscriptionBarrier> newSet = 
+					Sets.newSetFromMap(new MapMaker().<SubscriptionBarrier, Boolean>makeMap());
+			waiting = barriers.putIfAbsent(expChannel, newSet);
+			if( waiting == null ) waiting = newSet;
+		}
+		waiting.add(barrier);
+		
+		return barrier;
+	}
+	
+	private void armBarrier(final SubscriptionBarrier barrier) {
+		// Count anyone who subscribed before the barrier was registered
+		if( bayeux != null ) {
+			for( String prefix : new String[] { Codec.expChanPrefix, Codec.expSvcPrefix } ) {
+				ServerChannel channel = bayeux.getChannel(prefix + barrier.expChannel);
+				if( channel == null ) continue;
+				for( ServerSession session : channel.getSubscribers() )
+					barrier.subscribed(session.getId(), channel.getId());
+			}
+		}
+		
+		if( barrier.arm() ) {
+			releaseBarrier(barrier, false);
+			return;
+		}
+		
+		barrier.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				releaseBarrier(barrier, true);
+			}
+		}, SUBSCRIBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		trackTimeout(barrier.expId, barrier.timeout);
+	}
+	
+	private void releaseBarrier(SubscriptionBarrier barrier, boolean timedOut) {
+		if( !barrier.release() ) return;
+		
+		Set<SubscriptionBarrier> waiting = barriers.get(barrier.expChannel);
+		if( waiting != null ) waiting.remove(barrier);
+		
+		long elapsed = barrier.elapsedMillis();
+		subscribeMillis.record(elapsed);
+		
+		if( timedOut )
+			logger.warn("{} gave up waiting for {} subscriptions after {} ms", 
+					new Object[] { barrier.expId, barrier.waiting.size(), elapsed });
+		else
+			logger.debug("{} subscriptions complete after {} ms", barrier.expId, elapsed);
+		
+		expExecutor.execute(barrier.expId, barrier.action);
+	}
+	
+	/**
+	 * @return how long experiment starts and reconnects waited for subscriptions, in millis
+	 */
+	public Histogram getSubscribeLatency() {
+		return subscribeMillis;
+	}
+	
+	private void trackTimeout(String expId, HashedWheelTimer.Timeout timeout) {
+		Queue<HashedWheelTimer.Timeout> timeouts = expTimeouts.get(expId);
+		if( timeouts == null ) {
+			// Experiment already finished
+			timeout.cancel();
+			return;
+		}
+		timeouts.add(timeout);
+	}
+	
+	/**
+	 * @return number of pending events for each running experiment
+	 */
+	public Map<String, Integer> getQueueDepths() {
+		return expExecutor.getQueueDepths();
+	}
+	
 	/**
 	 * Injects classes for a single-worker experiment
 	 * @param hitw
@@ -132,6 +330,42 @@ public class Experiments {
 		return cont;
 	}
 	
+	/**
+	 * Start an experiment for a group on another thread. Its workers count
+	 * as in progress from now on, so they can leave the lobby right away.
+	 * @param group
+	 */
+	void startGroupLater(final HITWorkerGroupImpl group) {
+		for( HITWorker hitw : group.getHITWorkers() ) starting.put(hitw, false);
+		
+		startups.execute(new Runnable() {
+			public void run() {
+				try { startGroup(group); }
+				catch (RuntimeException e) {
+					logger.error("Error starting experiment for " + group, e);
+					startFailed(group);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * The workers have already left the lobby, so tell them to reload,
+	 * which puts them back in it now that they aren't starting
+	 */
+	private void startFailed(HITWorkerGroupImpl group) {
+		Map<String, Object> data = ImmutableMap.<String, Object>of(
+				"status", Codec.status_error,
+				"msg", "Your task couldn't be started. Please reload the page to return to the lobby.");
+		
+		for( HITWorker hitw : group.getHITWorkers() ) {
+			starting.remove(hitw);
+			
+			try { ((HITWorkerImpl) hitw).deliverUserService(data); } 
+			catch (MessageException e) { logger.info("{} not connected, not told about failed start", hitw); }
+		}
+	}
+	
 	/**
 	 * Injects classes for a group experiment.
 	 * @param group
@@ -164,86 +398,200 @@ public class Experiments {
 		
 		// Create a unique ID for an experiment, based on current timestamp
 		long startTime = System.currentTimeMillis();
-		final String expId = Utils.getTimeString(startTime);
+		final String expId = expIds.next();
 		String expChannel = expId.replace(" ", "_");
 		
 		// Initialize the experiment data
 		String inputData = configurator.configure(experimentBean, expId, group);
 		
-		// Register callbacks on the experiment class
-		manager.processExperiment(expId, experimentBean);		
-		
-		/* 
-		 * Create necessary channels for this experiment
-		 * Note that hostServlet automatically routes these already
-		 */
 		LocalSession ls = null;
-		if( bayeux == null ) {
-			logger.warn("Skipping bayeux channel creation...we'd better be in test mode!");
-			ls = new MockLocalSession();
-		}
-		else {
-			bayeux.createIfAbsent(Codec.expChanPrefix + expChannel, persistent);
-			bayeux.createIfAbsent(Codec.expSvcPrefix + expChannel, persistent);
+		try {
+			// Register callbacks on the experiment class
+			manager.processExperiment(expId, experimentBean);		
+			expTimeouts.put(expId, new ConcurrentLinkedQueue<HashedWheelTimer.Timeout>());
+		
+			/* 
+			 * Create necessary channels for this experiment
+			 * Note that hostServlet automatically routes these already
+			 */
+			if( bayeux == null ) {
+				logger.warn("Skipping bayeux channel creation...we'd better be in test mode!");
+				ls = new MockLocalSession();
+			}
+			else {
+				bayeux.createIfAbsent(Codec.expChanPrefix + expChannel, persistent);
+				bayeux.createIfAbsent(Codec.expSvcPrefix + expChannel, persistent);
 						
-			ls = bayeux.newLocalSession(expId);
-			ls.handshake();	
-		}
+				ls = bayeux.newLocalSession(expId);
+				ls.handshake();	
+			}
 		
-		/*
-		 * Send experiment channel to clients to notify connection
-		 * 
-		 * TODO this may be unnecessary, fix protocol
-		 * possible fix: server subscribes clients; clients just listen
-		 */
-		Map<String, Object> data = ImmutableMap.of(
-				"status", Codec.status_connectexp,
-				"channel", (Object) expChannel);
+			// Start once everyone is listening; set up before telling them the channel
+			SubscriptionBarrier barrier = newBarrier(expId, expChannel, group.getHITWorkers(), 
+					new Runnable() {
+				public void run() {
+					scheduleTimers(expId);
+					manager.triggerStart(expId);
+				}
+			});
+		
+			/*
+			 * Subscribe clients to the experiment channels here, and tell them
+			 * the channel so that they only need to listen on it
+			 */
+			Map<String, Object> data = ImmutableMap.of(
+					"status", Codec.status_connectexp,
+					"channel", (Object) expChannel,
+					"subscribed", true);
 
-		for( HITWorker hitw : group.getHITWorkers() ) {			
-			try { ((HITWorkerImpl) hitw).deliverUserService(data);
-			} catch (MessageException e) { e.printStackTrace();	}			
-		}				
+			for( HITWorker hitw : group.getHITWorkers() ) {			
+				subscribeToChannels((HITWorkerImpl) hitw, expChannel);
+			
+				try { ((HITWorkerImpl) hitw).deliverUserService(data);
+				} catch (MessageException e) { e.printStackTrace();	}			
+			}				
+		
+			// Initialize controller, which also initializes the log			
+			cont.initialize(startTime, expId, inputData, expChannel, ls);
+		
+			/* Update tracking information for experiment
+			 * TODO does this start directing requests to the server before it's started?
+			 */
+			mapWorkers(group, expId);
+		
+			// Anyone that came back on a new session in the meantime
+			List<HITWorkerImpl> reconnected = new ArrayList<HITWorkerImpl>();
+			for( HITWorker hitw : group.getHITWorkers() ) {
+				if( Boolean.TRUE.equals(starting.remove(hitw)) ) reconnected.add((HITWorkerImpl) hitw);
+			}
 		
-		// Initialize controller, which also initializes the log			
-		cont.initialize(startTime, expId, inputData, expChannel, ls);
+			tracker.newExperimentStarted(cont);					
 		
-		/* Update tracking information for experiment
-		 * TODO does this start directing requests to the server before it's started?
-		 */
-		mapWorkers(group, expId);
-		tracker.newExperimentStarted(cont);					
+			for( ExperimentListener el : listeners ) {
+				el.experimentStarted(cont);
+			}		
 		
-		for( ExperimentListener el : listeners ) {
-			el.experimentStarted(cont);
-		}		
+			armBarrier(barrier);
 		
-		/*
-		 * TODO this may not be enough time for every client to register channel...
-		 * reconcile this with the timing stuff above
-		 * fix how clients find channels
-		 */
-		eventScheduler.schedule(new Runnable() {
-			public void run() {				
-				manager.triggerStart(expId);				
+			for( HITWorkerImpl hitw : reconnected ) workerReconnected(hitw);
+		}
+		catch (RuntimeException e) {
+			abortStart(group, expId, expChannel, ls);
+			throw e;
+		}
+	}
+	
+	/*
+	 * Undo what was set up for an experiment that failed partway through
+	 * starting, so its workers aren't left in one that never runs
+	 */
+	private void abortStart(HITWorkerGroup group, String expId, String expChannel, LocalSession ls) {
+		Set<SubscriptionBarrier> waiting = barriers.remove(expChannel);
+		if( waiting != null ) {
+			for( SubscriptionBarrier barrier : waiting ) barrier.release();
+		}
+		
+		Queue<HashedWheelTimer.Timeout> timeouts = expTimeouts.remove(expId);
+		if( timeouts != null ) {
+			for( HashedWheelTimer.Timeout t : timeouts )
+				t.cancel();
+		}
+		
+		manager.deprocessExperiment(expId);
+		
+		if( bayeux != null ) {
+			for( String prefix : new String[] { Codec.expChanPrefix, Codec.expSvcPrefix } ) {
+				ServerChannel channel = bayeux.getChannel(prefix + expChannel);
+				if( channel != null ) channel.setPersistent(false);
 			}
-		}, TRIGGER_HACK_MILLIS, TimeUnit.MILLISECONDS);
+			if( ls != null ) ls.disconnect();
+		}
+		
+		for( HITWorker worker : group.getHITWorkers() ) {
+			HITWorkerImpl hitw = (HITWorkerImpl) worker;
+			currentExps.remove(hitw, expId);
+			hitw.setExperiment(null);
+			
+			// Not in an experiment when they come back
+			if( expId.equals(hitw.getSessionRecord().getExperimentId()) ) {
+				try { tracker.saveExperiment(hitw, null); }
+				catch (RuntimeException e) { logger.error("Unable to clear experiment for " + hitw, e); }
+			}
+		}
 		
+		expExecutor.retire(expId);
+	}
+	
+	/**
+	 * Subscribe a worker's session to the experiment broadcast and service channels
+	 * @param hitw
+	 * @param expChannel
+	 */
+	private void subscribeToChannels(HITWorkerImpl hitw, String expChannel) {
+		if( bayeux == null ) return;
+		
+		ServerSession session = hitw.cometdSession.get();
+		if( session == null ) return;
+		
+		for( String prefix : new String[] { Codec.expChanPrefix, Codec.expSvcPrefix } ) {
+			ServerChannel channel = bayeux.getChannel(prefix + expChannel);
+			if( channel == null || !channel.subscribe(session) )
+				logger.warn("Unable to subscribe {} to {}", hitw, prefix + expChannel);
+		}
+	}
+	
+	/**
+	 * Schedule interval events and the time limit, counting from now
+	 * @param expId
+	 */
+	private void scheduleTimers(final String expId) {
 		// Schedule interval tasks
-		List<ScheduledFuture<?>> scheduled = new LinkedList<>();
-		List<Method> intervals = manager.getIntervalEvents(expId);		
-		for( final Method method : intervals ) {
-			IntervalEvent ie = method.getAnnotation(IntervalEvent.class);  
-			ScheduledFuture<?> f = eventScheduler.scheduleAtFixedRate(new Runnable() {				
+		List<EventAnnotationManager.Callback> intervals = manager.getIntervalEvents(expId);		
+		for( final EventAnnotationManager.Callback callback : intervals ) {
+			IntervalEvent ie = callback.method.getAnnotation(IntervalEvent.class);  
+			HashedWheelTimer.Timeout t = timer.scheduleAtFixedRate(inLane(expId, new Runnable() {
+				public void run() {
+					manager.triggerInterval(expId, callback);				
+				}
+			}),
+			ie.interval(), ie.interval(), ie.unit());
+			trackTimeout(expId, t);
+		}
+		
+		// Schedule the time limit, if there is anything to call for it
+		long limitMillis = getTimeLimitMillis(expId);
+		if( limitMillis > 0 ) {
+			scheduleInLane(expId, new Runnable() {
 				public void run() {
-					manager.triggerInterval(expId, method);				
-				}				
-			},
-			ie.unit().convert(TRIGGER_HACK_MILLIS, TimeUnit.MILLISECONDS) + ie.interval(), 
-			ie.interval(), ie.unit());
-			scheduled.add(f);
+					manager.triggerTimelimit(expId);
+				}
+			}, limitMillis, TimeUnit.MILLISECONDS);
 		}
-		scheduledIntervals.put(expId, scheduled);
+	}
+	
+	/**
+	 * Get the time limit of an experiment, preferring the shortest limit
+	 * given on its @TimeLimit methods over the configured default.
+	 * @param expId
+	 * @return the limit, or 0 for none
+	 */
+	private long getTimeLimitMillis(String expId) {
+		List<EventAnnotationManager.Callback> limits = manager.getTimeLimitEvents(expId);
+		if( limits.isEmpty() ) return 0;
+		
+		long limitMillis = 0;
+		for( EventAnnotationManager.Callback callback : limits ) {
+			TimeLimit tl = callback.method.getAnnotation(TimeLimit.class);
+			if( tl.limit() <= 0 ) continue;
+			long millis = tl.unit().toMillis(tl.limit());
+			if( limitMillis == 0 || millis < limitMillis ) limitMillis = millis;
+		}
+		
+		if( limitMillis == 0 ) limitMillis = defaultTimeLimitMillis;
+		if( limitMillis == 0 ) 
+			logger.warn("{} has @TimeLimit methods but no time limit was set", expId);
+		
+		return limitMillis;
 	}
 	
 	private void mapWorkers(HITWorkerGroup hitw, String expId) {
@@ -283,16 +631,15 @@ public class Experiments {
 	}
 
 	public boolean workerIsInProgress(HITWorkerImpl hitw) {		
-		return currentExps.get(hitw) != null;
+		return currentExps.get(hitw) != null || starting.containsKey(hitw);
 	}
 
 	public void scheduleRound(final ExperimentControllerImpl expCont, final int round) {
-		eventScheduler.schedule(new Runnable() {
+		expExecutor.execute(expCont.getExpId(), new Runnable() {
 			public void run() {										
 				startRound( expCont, round );
 			}
-		},
-		0, TimeUnit.MILLISECONDS);
+		});
 	}
 	
 	private void startRound(ExperimentControllerImpl expCont, int round) {
@@ -326,29 +673,47 @@ public class Experiments {
 		tracker.saveBonusAmount(hitWorker, amount);		
 	}
 
-	public void rcvServiceMsg(HITWorkerImpl worker, Map<String, Object> message) {
-		String expId = currentExps.get(worker);		
+	public void rcvServiceMsg(final HITWorkerImpl worker, final Map<String, Object> message) {
+		final String expId = currentExps.get(worker);		
 		if( expId == null ) {
 			logger.info("{} not in experiment, ignoring service message", worker);
 			return;
 		}
 
-		manager.deliverServiceMsg(expId, worker, message);
+		expExecutor.execute(expId, new Runnable() {
+			public void run() {
+				manager.deliverServiceMsg(expId, worker, message);
+			}
+		});
 	}
 
-	public boolean rcvBroadcastMsg(HITWorkerImpl worker, Map<String, Object> message) {
-		String expId = currentExps.get(worker);		
+	public boolean rcvBroadcastMsg(final HITWorkerImpl worker, final Map<String, Object> message) {
+		final String expId = currentExps.get(worker);		
 		if( expId == null ) {
 			logger.info("{} not in experiment, ignoring service message", worker);
 			return false;
 		}
 		
-		return manager.deliverBroadcastMsg(expId, worker, message);		
+		// Held back, and passed on from the lane if the handlers say so
+		final ExperimentControllerImpl cont = worker.expCont;
+		expExecutor.execute(expId, new Runnable() {
+			public void run() {
+				if( manager.deliverBroadcastMsg(expId, worker, message) )
+					cont.sendExperimentBroadcast(message);
+			}
+		});
+		return false;
 	}
 
 	void workerReconnected(final HITWorkerImpl worker) {
 		worker.reconnected();
 		
+		// Caught up once the experiment has started
+		if( starting.replace(worker, true) != null ) {
+			logger.info("{} reconnected while experiment was starting", worker);
+			return;
+		}
+		
 		final String expId = currentExps.get(worker);
 		if( expId == null ) {
 			logger.info("{} not in experiment, ignoring reconnect callback", worker);
@@ -356,47 +721,61 @@ public class Experiments {
 		}
 		
 		// Re-send channel information 
-		Map<String, String> data = ImmutableMap.of(
+		Map<String, Object> data = ImmutableMap.of(
 				"status", Codec.status_connectexp,
-				"channel", worker.expCont.expChannel
+				"channel", (Object) worker.expCont.expChannel,
+				"subscribed", true
 				);
-		SessionUtils.sendServiceMsg(worker.cometdSession.get(), data);				
 		
-		// Give worker a chance to subscribe to channels
-		eventScheduler.schedule(new Runnable() {
+		// Announce the worker once it has subscribed to channels again
+		SubscriptionBarrier barrier = newBarrier(expId, worker.expCont.expChannel, 
+				Collections.singleton(worker), new Runnable() {
 			public void run() {				
 				manager.triggerWorkerConnect(expId, worker);				
 			}
-		}, TRIGGER_HACK_MILLIS, TimeUnit.MILLISECONDS);						
+		});
+		
+		// The new session needs to be subscribed again
+		subscribeToChannels(worker, worker.expCont.expChannel);
+		SessionUtils.sendServiceMsg(worker.cometdSession.get(), data);				
+		
+		armBarrier(barrier);
 	}
 	
 	void workerDisconnected(final HITWorkerImpl worker) {
 		worker.disconnected();
 		
-		String expId = currentExps.get(worker);		
+		final String expId = currentExps.get(worker);		
 		
 		if( expId == null ) {
 			logger.info("{} not in experiment, ignoring disconnect callback", worker);
 			return;
 		}		
 		
-		manager.triggerWorkerDisconnect(expId, worker);				
+		expExecutor.execute(expId, new Runnable() {
+			public void run() {
+				manager.triggerWorkerDisconnect(expId, worker);
+			}
+		});
 	}
 
 	void scheduleFinishExperiment(final ExperimentControllerImpl cont) {
-		eventScheduler.schedule(new Runnable() {
+		expExecutor.execute(cont.getExpId(), new Runnable() {
 			public void run() {
 				finishExperiment(cont);
 			}
-		},
-		0, TimeUnit.MILLISECONDS);
+		});
 	}
 	
 	private void finishExperiment(ExperimentControllerImpl cont) {
-		// Cancel all scheduled interval tasks
-		List<ScheduledFuture<?>> scheduled = scheduledIntervals.remove(cont.getExpId());
-		for( ScheduledFuture<?> future : scheduled )
-			future.cancel(true);
+		barriers.remove(cont.expChannel);
+		
+		// Cancel all pending timeouts, intervals and time limit
+		Queue<HashedWheelTimer.Timeout> timeouts = expTimeouts.remove(cont.getExpId());
+		if( timeouts != null ) {
+			for( HashedWheelTimer.Timeout t : timeouts )
+				t.cancel();
+		}
 		
 		// Tell clients they are done!
 		for( HITWorker id : cont.group.getHITWorkers() )			
@@ -421,7 +800,9 @@ public class Experiments {
 		String logOutput = cont.log.getOutput();
 		
 		// This also counts the inactive time of anyone who disconnected before finish
-		tracker.experimentFinished(cont, logOutput);					
+		tracker.experimentFinished(cont, logOutput);
+		// Completion has to be stored before these sessions can be paid
+		tracker.flush();
 		
 //		String filename = String.format("%s/%s %d.log", path, expFile, clients.groupSize());
 //		logger.info("Trying to open file " + filename);		
@@ -431,11 +812,17 @@ public class Experiments {
 		}
 
 		unmapWorkers(cont.group);		
+		
+		// Anything left in the lane still runs, but nothing new should arrive
+		expExecutor.retire(cont.getExpId());
 	}
 	
-	public ScheduledExecutorService stop() {
-		eventScheduler.shutdown();
-		return eventScheduler;
+	public ExecutorService stop() {
+		// Experiments are all finished by now, so pending timeouts can be dropped
+		timer.stop();
+		startups.shutdown();
+		
+		return expExecutor.shutdown();
 	}
 
 }
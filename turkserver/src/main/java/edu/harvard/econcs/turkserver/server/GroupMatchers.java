@@ -0,0 +1,157 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Function;
+
+import edu.harvard.econcs.turkserver.api.GroupMatcher;
+import edu.harvard.econcs.turkserver.api.HITWorker;
+
+/**
+ * Common ways of matching workers into groups by an attribute,
+ * for use with {@link MatchmakingLobby}.
+ *
+ * @author mao
+ *
+ */
+public class GroupMatchers {
+
+	/**
+	 * Buckets workers by the value of an attribute
+	 */
+	static abstract class AttributeMatcher implements GroupMatcher {
+		final Function<? super HITWorker, ?> attribute;
+
+		AttributeMatcher(Function<? super HITWorker, ?> attribute) {
+			this.attribute = attribute;
+		}
+
+		@Override
+		public String bucketOf(HITWorker worker) {
+			return String.valueOf(attribute.apply(worker));
+		}
+	}
+
+	/**
+	 * Groups of workers that all have the same value of an attribute.
+	 * Once relaxed, the largest buckets are mixed.
+	 * @param attribute
+	 * @return
+	 */
+	public static GroupMatcher sameValue(Function<? super HITWorker, ?> attribute) {
+		return new AttributeMatcher(attribute) {
+			@Override
+			public Map<String, Integer> pick(Map<String, Integer> waiting, int groupSize, boolean relaxed) {
+				// Whichever bucket has the most waiting
+				List<String> buckets = bySize(waiting);
+				if( buckets.isEmpty() ) return null;
+
+				String largest = buckets.get(0);
+				if( waiting.get(largest) >= groupSize )
+					return Collections.singletonMap(largest, groupSize);
+
+				return relaxed ? fill(waiting, buckets, groupSize) : null;
+			}
+		};
+	}
+
+	/**
+	 * Groups with an equal share of workers for each of the given values
+	 * of an attribute, such as half new and half experienced workers.
+	 * Shares that don't divide evenly go to the fullest buckets.
+	 * Once relaxed, whoever is waiting is mixed as evenly as possible.
+	 * @param attribute
+	 * @param values
+	 * @return
+	 */
+	public static GroupMatcher balanced(Function<? super HITWorker, ?> attribute, final String... values) {
+		return new AttributeMatcher(attribute) {
+			@Override
+			public Map<String, Integer> pick(Map<String, Integer> waiting, int groupSize, boolean relaxed) {
+				Map<String, Integer> counts = new TreeMap<String, Integer>();
+				for( String value : values ) {
+					Integer n = waiting.get(value);
+					counts.put(value, n == null ? 0 : n);
+				}
+
+				Map<String, Integer> take = new TreeMap<String, Integer>();
+				List<String> buckets = bySize(counts);
+
+				for( int i = 0; i < buckets.size(); i++ ) {
+					String value = buckets.get(i);
+					int share = groupSize / values.length + (i < groupSize % values.length ? 1 : 0);
+
+					if( counts.get(value) < share )
+						return relaxed ? fill(waiting, bySize(waiting), groupSize) : null;
+
+					if( share > 0 ) take.put(value, share);
+				}
+
+				return take;
+			}
+		};
+	}
+
+	/**
+	 * Bins a numerical attribute, so workers can be matched by ranges of values.
+	 * @param attribute
+	 * @param cutoffs in increasing order; a worker goes in the bin after each cutoff they reach
+	 * @return the number of cutoffs reached
+	 */
+	public static Function<HITWorker, Integer> binned(
+			final Function<? super HITWorker, ? extends Number> attribute, final double... cutoffs) {
+		return new Function<HITWorker, Integer>() {
+			@Override
+			public Integer apply(HITWorker worker) {
+				double value = attribute.apply(worker).doubleValue();
+
+				int bin = Arrays.binarySearch(cutoffs, value);
+				return bin >= 0 ? bin + 1 : -bin - 1;
+			}
+		};
+	}
+
+	static List<String> bySize(final Map<String, Integer> waiting) {
+		List<String> buckets = new ArrayList<String>(waiting.keySet());
+
+		Collections.sort(buckets, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return waiting.get(b).compareTo(waiting.get(a));
+			}
+		});
+		return buckets;
+	}
+
+	/*
+	 * One from each bucket in turn, fullest first, until the group is full
+	 */
+	static Map<String, Integer> fill(Map<String, Integer> waiting, List<String> buckets, int groupSize) {
+		int total = 0;
+		for( Integer n : waiting.values() ) total += n;
+		if( total < groupSize ) return null;
+
+		Map<String, Integer> take = new TreeMap<String, Integer>();
+		int taken = 0;
+
+		while( taken < groupSize ) {
+			for( String bucket : buckets ) {
+				Integer n = take.get(bucket);
+				int had = n == null ? 0 : n;
+				if( had == waiting.get(bucket) ) continue;
+
+				take.put(bucket, had + 1);
+				if( ++taken == groupSize ) break;
+			}
+		}
+
+		return take;
+	}
+
+}
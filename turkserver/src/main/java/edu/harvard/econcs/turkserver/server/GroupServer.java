@@ -10,8 +10,13 @@ import edu.harvard.econcs.turkserver.mturk.HITController;
 import edu.harvard.econcs.turkserver.server.gui.ServerPanel;
 import edu.harvard.econcs.turkserver.server.gui.TSTabbedPanel;
 import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker;
+import edu.harvard.econcs.turkserver.util.CoalescingTask;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.SwingUtilities;
 
@@ -20,6 +25,8 @@ import org.cometd.bayeux.server.LocalSession;
 import org.cometd.bayeux.server.ServerSession;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -32,8 +39,20 @@ public final class GroupServer extends SessionServer {
 	
 	final boolean requireUsernames;	
 		
+	// Message lane that lobby broadcasts go out on
+	static final String LOBBY_LANE = "lobby";
+	
 	final Lobby lobby;
 	private volatile LocalSession lobbyBroadcaster;
+	
+	// Lobby changes and GUI refreshes go out at most once per interval, if set
+	final long lobbyInterval;
+	final Queue<Object> lobbyChanges;
+	final CoalescingTask lobbyFlush;
+	final CoalescingTask lobbyRefresh;
+	
+	// Changes for each shard of a sharded lobby, which only go to that shard
+	final ConcurrentMap<String, ShardChanges> shardChanges;
 
 	// GUI
 	GUIListener guiListener;
@@ -54,6 +73,27 @@ public final class GroupServer extends SessionServer {
 		
 		this.requireUsernames = config.getBoolean(TSConfig.SERVER_USERNAME);
 		this.lobby = lobby;
+		
+		this.lobbyChanges = new ConcurrentLinkedQueue<Object>();
+		this.shardChanges = new MapMaker().makeMap();
+		this.lobbyInterval = config.getLong(TSConfig.SERVER_LOBBY_INTERVAL);
+		
+		if( lobbyInterval > 0 ) {
+			lobbyFlush = new CoalescingTask(experiments.timer, new Executor() {
+				public void execute(Runnable task) { messages.execute(LOBBY_LANE, task); }
+			}, new Runnable() {
+				public void run() { flushLobbyChanges(); }
+			}, lobbyInterval, TimeUnit.MILLISECONDS);
+			
+			// Only hands off to Swing
+			lobbyRefresh = new CoalescingTask(experiments.timer, MoreExecutors.sameThreadExecutor(), new Runnable() {
+				public void run() { refreshLobbyModel(); }
+			}, lobbyInterval, TimeUnit.MILLISECONDS);
+		}
+		else {
+			lobbyFlush = null;
+			lobbyRefresh = null;
+		}
 																		
 		lobby.setListener(new ServerLobbyListener());				
 	}
@@ -87,19 +127,118 @@ public final class GroupServer extends SessionServer {
 		return guiListener.completed.get();
 	}
 
+	void updateLobbyModel() {
+		if( lobbyRefresh != null ) lobbyRefresh.mark();
+		else refreshLobbyModel();
+	}
+	
+	void refreshLobbyModel() {
+		if( serverGUI != null ) serverGUI.updateLobbyModel();
+	}
+	
+	void publishLobby(Object data) {
+		if( lobbyBroadcaster != null )
+			bayeux.getChannel("/lobby").publish(lobbyBroadcaster, data, null);
+		else
+			logger.warn("Tried to send message but lobby wasn't ready yet: " + data.toString());
+	}
+	
+	void sendLobby(HITWorkerImpl hitw, Object data) {
+		ServerSession session = hitw.cometdSession.get();
+		
+		if( session != null && lobbyBroadcaster != null )
+			session.deliver(lobbyBroadcaster, "/lobby", data, null);
+	}
+	
+	/*
+	 * Send the lobby changes since the last flush as one message,
+	 * so a burst of changes costs each client one message 
+	 */
+	void flushLobbyChanges() {
+		Object batch = batchOf(lobbyChanges);
+		if( batch != null ) publishLobby(batch);
+	}
+	
+	static Object batchOf(Queue<Object> queue) {
+		List<Object> changes = new ArrayList<Object>();
+		for( Object data; (data = queue.poll()) != null; ) changes.add(data);
+		
+		if( changes.isEmpty() ) return null;
+		
+		return ImmutableMap.of(
+				"status", Codec.lobby_batch,
+				"changes", changes
+				);
+	}
+	
+	/*
+	 * Like the lobby changes, but delivered to the workers in one shard,
+	 * each shard on its own message lane
+	 */
+	class ShardChanges implements Runnable {
+		final Queue<Object> changes = new ConcurrentLinkedQueue<Object>();
+		final CoalescingTask flush;
+		volatile Collection<HITWorkerImpl> to;
+		
+		ShardChanges(final String shard) {
+			flush = new CoalescingTask(experiments.timer, new Executor() {
+				public void execute(Runnable task) { messages.execute(LOBBY_LANE + "/" + shard, task); }
+			}, this, lobbyInterval, TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public void run() {
+			Object batch = batchOf(changes);
+			if( batch == null ) return;
+			
+			for( HITWorkerImpl hitw : to ) sendLobby(hitw, batch);
+		}
+	}
+	
+	ShardChanges shardChanges(String shard) {
+		ShardChanges sc = shardChanges.get(shard);
+		if( sc != null ) return sc;
+		
+		ShardChanges newSc = new ShardChanges(shard);
+		sc = shardChanges.putIfAbsent(shard, newSc);
+		return sc != null ? sc : newSc;
+	}
+	
 	class ServerLobbyListener implements LobbyListener {
 		@Override
-		public void broadcastLobbyMessage(Object data) {		
-			if( lobbyBroadcaster != null )
-				bayeux.getChannel("/lobby").publish(lobbyBroadcaster, data, null);
-			else
-				logger.warn("Tried to send message but lobby wasn't ready yet: " + data.toString());
+		public void broadcastLobbyMessage(Object data) {
+			if( lobbyFlush == null ) {
+				publishLobby(data);
+				return;
+			}
+			
+			lobbyChanges.add(data);
+			lobbyFlush.mark();
+		}
+		
+		@Override
+		public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {
+			if( lobbyInterval <= 0 ) {
+				for( HITWorkerImpl hitw : to ) sendLobby(hitw, data);
+				return;
+			}
+			
+			ShardChanges sc = shardChanges(shard);
+			sc.to = to;
+			sc.changes.add(data);
+			sc.flush.mark();
+		}
+		
+		@Override
+		public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {
+			sendLobby(hitw, data);
 		}
 	
 		@Override
 		public void createNewExperiment(HITWorkerGroupImpl expClients) {				
-			ExperimentControllerImpl exp = experiments.startGroup(expClients);			
-			serverGUI.updateLobbyModel();
+			// Set up elsewhere, so the lobby can go on forming groups
+			experiments.startGroupLater(expClients);			
+			updateLobbyModel();
 		}
 	
 		@Override
@@ -114,11 +253,7 @@ public final class GroupServer extends SessionServer {
 	}
 
 	@Override
-	HITWorkerImpl sessionAccept(ServerSession conn,
-			String hitId, String assignmentId, String workerId) {
-		
-		HITWorkerImpl hitw = super.sessionAccept(conn, hitId, assignmentId, workerId);
-		if( hitw == null ) return null;				
+	void sessionAdmitted(ServerSession conn, HITWorkerImpl hitw) {
 		
 		// Ask for username if we require it or somehow didn't get it last time		
 		if( this.requireUsernames && hitw.getUsername() == null ) {
@@ -130,18 +265,10 @@ public final class GroupServer extends SessionServer {
 		}		
 		
 		// Check if we should reconnect this HITWorker to an existing experiment
-		boolean inExperiment;
-		
-		synchronized(lobby) { // Make sure starting experiments are atomic
-			if( inExperiment = experiments.workerIsInProgress(hitw) ) {
-				sessionReconnect(conn, hitw);
-			}
-			else {
-				lobby.userJoined(hitw);
-			}
+		if( experiments.workerIsInProgress(hitw) ) {
+			sessionReconnect(conn, hitw);
 		}
-		
-		if( !inExperiment ) {
+		else if( joinLobby(hitw) ) {
 			Map<String, String> data = ImmutableMap.of(
 					"status", Codec.status_connectlobby					
 					);
@@ -149,10 +276,49 @@ public final class GroupServer extends SessionServer {
 			
 			logger.info(hitw.toString() + " connected to lobby");
 			
-			if( serverGUI != null ) serverGUI.updateLobbyModel();			
+			updateLobbyModel();			
 		}
+	}
+	
+	/*
+	 * Groups are started without locking out joins, so a worker can be
+	 * put in a group as they join, even by their own join. The experiment
+	 * start reaches them on this session, so they just shouldn't stay in
+	 * the lobby. A group that hasn't quite started removes them itself.
+	 * 
+	 * Returns false if the worker went to an experiment instead.
+	 */
+	private boolean joinLobby(HITWorkerImpl hitw) {
+		lobby.userJoined(hitw);
+		
+		if( !experiments.workerIsInProgress(hitw) ) return true;
 		
-		return hitw;
+		lobby.userQuit(hitw);
+		return false;
+	}
+	
+	@Override
+	void sessionParked(HITWorkerImpl hitw) {
+		// Not grouped with anyone unless they come back
+		lobby.userParked(hitw);
+	}
+	
+	@Override
+	void sessionResumed(ServerSession conn, HITWorkerImpl hitw) {
+		if( experiments.workerIsInProgress(hitw) ) {
+			sessionReconnect(conn, hitw);
+			return;
+		}
+		
+		// Still in the lobby with the same status, just on a new session
+		if( !lobby.userReconnected(hitw) && !joinLobby(hitw) ) return;
+		
+		Map<String, String> data = ImmutableMap.of(
+				"status", Codec.status_connectlobby					
+				);
+		SessionUtils.sendServiceMsg(conn, data);
+		
+		logger.info(hitw.toString() + " reconnected to lobby");
 	}
 
 	/**
@@ -164,19 +330,22 @@ public final class GroupServer extends SessionServer {
 	public boolean lobbyLogin(ServerSession conn, String username) {
 		// TODO: this is in the wrong place
 		
-		HITWorkerImpl hitw = clientToHITWorker.get(conn);
+		HITWorkerImpl hitw = workers.get(conn);
 		
 		if( hitw == null ) {
 			logger.error("Can't accept username for unknown session {}", conn.getId());
 			return false;
 		}
 		
-		tracker.saveUsername(hitw, username);		
+		tracker.saveUsername(hitw, username);
+		
+		// Others only hear about the name from a change about this worker
+		lobby.userUpdated(hitw);
 		return true;
 	}
 
 	public boolean lobbyUpdate(ServerSession conn, Map<String, Object> data) {
-		HITWorkerImpl hitw = clientToHITWorker.get(conn);
+		HITWorkerImpl hitw = workers.get(conn);
 		if( hitw == null ) {
 			logger.error("Can't accept update status for unknown session {}", conn.getId());
 			return false;
@@ -190,11 +359,18 @@ public final class GroupServer extends SessionServer {
 		boolean broadcastUpdate;
 		
 		if( broadcastUpdate = lobby.updateStatus(hitw, data) ) {
-			serverGUI.updateLobbyModel();
+			updateLobbyModel();
 		}
 		
 		return broadcastUpdate;
 	}
+	
+	public void lobbySnapshot(ServerSession conn) {
+		HITWorkerImpl hitw = workers.get(conn);
+		if( hitw == null || experiments.workerIsInProgress(hitw) ) return;
+		
+		lobby.sendSnapshot(hitw);
+	}
 
 	@Override
 	boolean groupCompleted(HITWorkerGroup group) {
@@ -226,10 +402,10 @@ public final class GroupServer extends SessionServer {
 	
 	@Override
 	public void sessionDisconnect(ServerSession conn) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker != null ) {
-			if (lobby.userQuit(worker))	serverGUI.updateLobbyModel();
+			if (lobby.userQuit(worker))	updateLobbyModel();
 		}		
 		
 		// This takes care of disconnecting in the tracker
@@ -46,26 +46,35 @@ public class GroupServlet extends SessionServlet {
 			
 			Map<String,Object> data = message.getDataAsMap();			
 			
-			if( data.containsKey("status") ) {				
-				// broadcast all join quit (or other) messages, once they are implemented
-				return true;		
+			if( data.containsKey(Codec.lobby_snapshot) ) {
+				theServer.lobbySnapshot(session);
+				return false;
+			}
+			else if( data.containsKey("status") ) {				
+				// Join, quit and other lobby changes only come from the server
+				return false;		
 			}
 			else if( data.containsKey("ready") ) {														
-				return theServer.lobbyUpdate(session, data);
+				// The lobby publishes any change itself
+				theServer.lobbyUpdate(session, data);
+				return false;
 			}
 			
 			return true;
 		}
 		
 		@Listener("/service/user")
-		public void listenUser(ServerSession session, ServerMessage message) {
+		public void listenUser(final ServerSession session, ServerMessage message) {
 			Map<String,Object> data = message.getDataAsMap();
 			
 			String status = data.get("status").toString();
 			
 			 if( Codec.usernameReply.equals(status) ) {				
-				String username = data.get("username").toString();
-				theServer.lobbyLogin(session, username);				
+				final String username = data.get("username").toString();
+				
+				process(session, message, new Runnable() {
+					public void run() { theServer.lobbyLogin(session, username); }
+				});
 			}
 			
 		}
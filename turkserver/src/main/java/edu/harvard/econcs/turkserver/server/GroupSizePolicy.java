@@ -0,0 +1,97 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.harvard.econcs.turkserver.api.FlexibleConfigurator;
+
+/**
+ * Picks the size of the next group when the configurator allows a range.
+ *
+ * Keeps a moving average of the time between workers becoming ready.
+ * Once someone has waited past the budget and the workers still missing
+ * aren't expected within another budget, whoever is ready starts as a
+ * smaller group. Likewise a few workers that would be left over after
+ * a group are taken along, up to the maximum, instead of being stranded.
+ *
+ * @author mao
+ *
+ */
+class GroupSizePolicy {
+
+	// Weight of the latest gap in the moving average
+	static final double ALPHA = 0.2;
+
+	final FlexibleConfigurator configurator;
+	final long budgetNanos;
+
+	private long lastArrival = -1;
+	private double meanGap = -1;
+
+	GroupSizePolicy(FlexibleConfigurator configurator, long budgetMillis) {
+		this.configurator = configurator;
+		this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	int minSize() {
+		return Math.min(configurator.minGroupSize(), configurator.groupSize());
+	}
+
+	/**
+	 * A worker just became ready
+	 * @param now
+	 */
+	synchronized void arrived(long now) {
+		if( lastArrival >= 0 ) {
+			long gap = now - lastArrival;
+			meanGap = meanGap < 0 ? gap : ALPHA * gap + (1 - ALPHA) * meanGap;
+		}
+		lastArrival = now;
+	}
+
+	/**
+	 * @param now
+	 * @return expected nanos until the next worker is ready, or -1 if unknown
+	 */
+	synchronized double expectedGap(long now) {
+		if( meanGap < 0 ) return -1;
+
+		// Nobody for a while means arrivals have slowed, whatever the average says
+		return Math.max(meanGap, now - lastArrival);
+	}
+
+	/*
+	 * Whether waiting for this many more workers would take longer than the budget
+	 */
+	private boolean tooSlow(int missing, long now) {
+		double gap = expectedGap(now);
+		return gap < 0 || missing * gap > budgetNanos;
+	}
+
+	/**
+	 * @param ready how many workers are ready
+	 * @param longestWait nanos that the longest waiting worker has been ready
+	 * @param now
+	 * @return how many workers to start the next group with
+	 */
+	int groupSize(int ready, long longestWait, long now) {
+		int size = configurator.groupSize();
+		int min = minSize();
+		int max = Math.max(configurator.maxGroupSize(), size);
+
+		if( ready >= size ) {
+			int left = ready - size;
+
+			// Leftovers that can't make a group soon come along instead
+			if( left > 0 && ready <= max && left < min && tooSlow(size - left, now) )
+				return ready;
+
+			return size;
+		}
+
+		if( ready >= min && longestWait >= budgetNanos && tooSlow(size - ready, now) )
+			return ready;
+
+		return size;
+	}
+
+}
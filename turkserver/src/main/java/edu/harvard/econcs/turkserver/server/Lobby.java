@@ -15,6 +15,28 @@ public interface Lobby {
 	void setMessage(String text);
 
 	void userJoined(HITWorkerImpl hitw);
+	
+	/**
+	 * A worker in the lobby is back on a new session, keeping their status
+	 * @param hitw
+	 * @return false if the worker wasn't in the lobby
+	 */
+	boolean userReconnected(HITWorkerImpl hitw);
+	
+	/**
+	 * A worker in the lobby lost their session but may come back soon.
+	 * They keep their status, but aren't put in a group until they 
+	 * reconnect, or are removed if they don't.
+	 * @param hitw
+	 */
+	void userParked(HITWorkerImpl hitw);
+	
+	/**
+	 * Something shown about a worker in the lobby, like their username, has 
+	 * changed, so the rest of the lobby should see it
+	 * @param hitw
+	 */
+	void userUpdated(HITWorkerImpl hitw);
 
 	/**
 	 * Updates the lobby status of a worker.
@@ -31,6 +53,12 @@ public interface Lobby {
 	 */
 	boolean userQuit(HITWorkerImpl hitw);
 		
+	/**
+	 * Send the whole lobby to a worker, who is new or has missed an update
+	 * @param hitw
+	 */
+	void sendSnapshot(HITWorkerImpl hitw);
+	
 	Object getStatus(HITWorkerImpl hitw);
 
 	Set<HITWorkerImpl> getLobbyUsers();
@@ -50,6 +78,17 @@ public interface Lobby {
 			System.out.printf("Warning: %s shouldn't have joined null lobby\n", hitw);	
 		}
 	
+		@Override
+		public boolean userReconnected(HITWorkerImpl hitw) {
+			return false;
+		}
+	
+		@Override
+		public void userParked(HITWorkerImpl hitw) {}
+	
+		@Override
+		public void userUpdated(HITWorkerImpl hitw) {}
+	
 		@Override
 		public boolean updateStatus(HITWorkerImpl hitw, Map<String, Object> data) {
 			System.out.printf("Warning: %s shouldn't have sent status to null lobby\n", hitw);
@@ -61,6 +100,9 @@ public interface Lobby {
 			return false;
 		}
 	
+		@Override
+		public void sendSnapshot(HITWorkerImpl hitw) {}
+	
 		@Override
 		public Object getStatus(HITWorkerImpl hitw) { 
 			return null;
@@ -1,5 +1,7 @@
 package edu.harvard.econcs.turkserver.server;
 
+import java.util.Collection;
+
 public interface LobbyListener {
 
 	/**
@@ -8,6 +10,22 @@ public interface LobbyListener {
 	 */
 	void broadcastLobbyMessage(Object data);
 	
+	/**
+	 * Send a message to the workers in one shard of the lobby.
+	 * Messages for each shard are sent in order.
+	 * @param shard
+	 * @param to the workers in the shard, when the message goes out
+	 * @param data
+	 */
+	void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data);
+	
+	/**
+	 * Send a lobby message to just one worker
+	 * @param hitw
+	 * @param data
+	 */
+	void sendLobbyMessage(HITWorkerImpl hitw, Object data);
+	
 	/**
 	 * Callback to create an experiment with a particular set of users
 	 */
@@ -0,0 +1,169 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import edu.harvard.econcs.turkserver.api.Configurator;
+import edu.harvard.econcs.turkserver.api.GroupMatcher;
+import edu.harvard.econcs.turkserver.config.TSConfig;
+
+/**
+ * Lobby that groups workers by their attributes, using a {@link GroupMatcher}.
+ *
+ * Ready workers wait in a queue for their bucket, so forming a group
+ * looks at the bucket counts and the workers taken, not the whole lobby.
+ * Once someone has waited longer than the relax time, the matcher is
+ * asked for any reasonable group instead.
+ *
+ * @author mao
+ *
+ */
+public class MatchmakingLobby extends ReadyStateLobby {
+
+	final GroupMatcher matcher;
+	final long relaxNanos;
+
+	private final ConcurrentMap<String, ReadyQueue<HITWorkerImpl>> buckets;
+	// Bucket each worker was queued in, as attributes can change
+	private final ConcurrentMap<HITWorkerImpl, String> bucketOf;
+
+	@Inject
+	public MatchmakingLobby(
+			@Named(TSConfig.EXP_CONFIGURATOR) Configurator configurator,
+			GroupMatcher matcher,
+			Configuration conf) {
+		super(configurator, conf);
+
+		this.matcher = matcher;
+		this.relaxNanos = TimeUnit.MILLISECONDS.toNanos(conf.getLong(TSConfig.SERVER_LOBBY_RELAX));
+
+		MapMaker concMapMaker = new MapMaker();
+		buckets = concMapMaker.makeMap();
+		bucketOf = concMapMaker.makeMap();
+	}
+
+	@Override
+	protected long checkNanos() {
+		long period = super.checkNanos();
+		if( relaxNanos <= 0 ) return period;
+
+		long relaxPeriod = Math.max(relaxNanos / 4, TimeUnit.MILLISECONDS.toNanos(100));
+		return period > 0 ? Math.min(period, relaxPeriod) : relaxPeriod;
+	}
+
+	private ReadyQueue<HITWorkerImpl> bucket(String name) {
+		ReadyQueue<HITWorkerImpl> q = buckets.get(name);
+		if( q != null ) return q;
+
+		ReadyQueue<HITWorkerImpl> newQ = new ReadyQueue<HITWorkerImpl>();
+		q = buckets.putIfAbsent(name, newQ);
+		return q != null ? q : newQ;
+	}
+
+	@Override
+	protected void enqueue(HITWorkerImpl hitw) {
+		String name = matcher.bucketOf(hitw);
+
+		String prev = bucketOf.putIfAbsent(hitw, name);
+		if( prev != null ) name = prev;
+
+		bucket(name).add(hitw);
+	}
+
+	@Override
+	protected void dequeue(HITWorkerImpl hitw) {
+		String name = bucketOf.remove(hitw);
+		if( name == null ) return;
+
+		bucket(name).remove(hitw);
+	}
+
+	@Override
+	protected int readyCount() {
+		return readySince.size();
+	}
+
+	@Override
+	protected HITWorkerImpl oldestReady() {
+		HITWorkerImpl oldest = null;
+		long oldestSince = Long.MAX_VALUE;
+
+		for( ReadyQueue<HITWorkerImpl> q : buckets.values() ) {
+			HITWorkerImpl head = q.peek();
+			Long since = head == null ? null : readySince.get(head);
+			if( since == null || since - oldestSince >= 0 ) continue;
+
+			oldest = head;
+			oldestSince = since;
+		}
+		return oldest;
+	}
+
+	@Override
+	protected List<HITWorkerImpl> pollGroup(int size, Predicate<HITWorkerImpl> valid) {
+		Map<String, Integer> waiting = new TreeMap<String, Integer>();
+
+		for( Map.Entry<String, ReadyQueue<HITWorkerImpl>> e : buckets.entrySet() ) {
+			int n = e.getValue().size();
+			if( n > 0 ) waiting.put(e.getKey(), n);
+		}
+
+		boolean relaxed = relaxNanos > 0 && longestWaitNanos(System.nanoTime()) >= relaxNanos;
+
+		Map<String, Integer> take = matcher.pick(waiting, size, relaxed);
+		if( take == null ) return null;
+
+		List<HITWorkerImpl> group = new ArrayList<HITWorkerImpl>(size);
+		List<String> from = new ArrayList<String>(size);
+
+		for( Map.Entry<String, Integer> e : take.entrySet() ) {
+			List<HITWorkerImpl> some = bucket(e.getKey()).poll(e.getValue(), valid);
+
+			if( some == null ) {
+				// Counts were off, so put back what was taken and try again later
+				putBack(group, from, valid);
+				return null;
+			}
+
+			for( HITWorkerImpl hitw : some ) {
+				group.add(hitw);
+				from.add(e.getKey());
+			}
+		}
+
+		for( HITWorkerImpl hitw : group )
+			bucketOf.remove(hitw);
+
+		logger.info("Matched group {}{}, waits {}",
+				new Object[] { take, relaxed ? " after relaxing" : "", waitMillis });
+		return group;
+	}
+
+	private void putBack(List<HITWorkerImpl> group, List<String> from, Predicate<HITWorkerImpl> valid) {
+		// Last first, so they keep their place
+		for( int i = group.size() - 1; i >= 0; i-- ) {
+			HITWorkerImpl hitw = group.get(i);
+			ReadyQueue<HITWorkerImpl> q = bucket(from.get(i));
+
+			q.addFirst(hitw);
+			
+			// May have left while taken
+			if( !valid.apply(hitw) ) {
+				q.remove(hitw);
+				dequeue(hitw);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Items that are ready, in the order they became ready, for taking
+ * out in groups. Adding and removing items never blocks, and taking a
+ * group only looks at about as many items as the group needs.
+ *
+ * Removed items are marked and skipped when they come up, rather than
+ * searched for. Items taken for a group that turns out to be short go
+ * back to the front, keeping their place.
+ *
+ * @author mao
+ *
+ */
+public class ReadyQueue<T> {
+
+	static final int QUEUED = 0;
+	static final int TAKEN = 1;
+	static final int DONE = 2;
+
+	final class Entry {
+		final T item;
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		volatile boolean cancelled = false;
+
+		Entry(T item) {
+			this.item = item;
+		}
+	}
+
+	private final ConcurrentLinkedDeque<Entry> queue;
+	private final ConcurrentMap<T, Entry> entries;
+
+	public ReadyQueue() {
+		queue = new ConcurrentLinkedDeque<Entry>();
+		entries = new ConcurrentHashMap<T, Entry>();
+	}
+
+	/**
+	 * Put an item at the back of the queue, unless it is already waiting
+	 * @param item
+	 * @return true if the item was added
+	 */
+	public boolean add(T item) {
+		Entry e = new Entry(item);
+		if( entries.putIfAbsent(item, e) != null ) return false;
+
+		queue.add(e);
+		return true;
+	}
+
+	/**
+	 * Put an item back at the front, such as when a group it was taken for fell through.
+	 * @param item
+	 * @return true if the item was added
+	 */
+	public boolean addFirst(T item) {
+		Entry e = new Entry(item);
+		if( entries.putIfAbsent(item, e) != null ) return false;
+
+		queue.addFirst(e);
+		return true;
+	}
+
+	/**
+	 * Take an item out of the queue. Too late if it was already taken for a group.
+	 * @param item
+	 * @return true if the item was waiting
+	 */
+	public boolean remove(T item) {
+		Entry e = entries.remove(item);
+		if( e == null ) return false;
+
+		// Skipped when it comes up, or dropped by whoever has taken it
+		e.cancelled = true;
+		e.state.compareAndSet(QUEUED, DONE);
+		return true;
+	}
+
+	public boolean contains(T item) {
+		return entries.containsKey(item);
+	}
+
+	/**
+	 * @return about how many items are waiting
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Only from the thread that takes groups.
+	 * @return the item that has waited longest, or null if none are waiting
+	 */
+	public T peek() {
+		Entry e;
+		while( (e = queue.peek()) != null ) {
+			if( e.state.get() == QUEUED && !e.cancelled ) return e.item;
+
+			// Removed, so no need to look at it again
+			if( e.state.get() == DONE ) queue.remove(e);
+			else return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Take the items that have waited longest, if there are enough of them.
+	 * Only one thread should take groups at a time.
+	 *
+	 * @param n
+	 * @param valid items that turn out not to be ready anymore are dropped
+	 * @return n items in the order they became ready, or null if there aren't enough
+	 */
+	public List<T> poll(int n, Predicate<? super T> valid) {
+		Deque<Entry> taken = new ArrayDeque<Entry>(n);
+
+		for(;;) {
+			while( taken.size() < n ) {
+				Entry e = queue.poll();
+
+				if( e == null ) {
+					putBack(taken);
+					return null;
+				}
+
+				if( !e.state.compareAndSet(QUEUED, TAKEN) ) continue;
+
+				if( valid.apply(e.item) ) {
+					taken.add(e);
+				}
+				else {
+					e.state.set(DONE);
+					entries.remove(e.item, e);
+				}
+			}
+
+			// Drop anything that was removed while we were looking
+			for( Iterator<Entry> it = taken.iterator(); it.hasNext(); ) {
+				Entry e = it.next();
+				if( !e.cancelled ) continue;
+
+				e.state.set(DONE);
+				it.remove();
+			}
+
+			if( taken.size() == n ) break;
+		}
+
+		List<T> items = new ArrayList<T>(n);
+		for( Entry e : taken ) {
+			e.state.set(DONE);
+			entries.remove(e.item, e);
+			items.add(e.item);
+		}
+		return items;
+	}
+
+	private void putBack(Deque<Entry> taken) {
+		// Last first, so they end up in the same order
+		for( Iterator<Entry> it = taken.descendingIterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			e.state.set(QUEUED);
+
+			// Removal may have come while this was taken
+			if( e.cancelled ) e.state.compareAndSet(QUEUED, DONE);
+			else queue.addFirst(e);
+		}
+	}
+
+}
@@ -1,10 +1,18 @@
 package edu.harvard.econcs.turkserver.server;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.configuration.Configuration;
@@ -14,16 +22,31 @@ import org.slf4j.LoggerFactory;
 
 import net.andrewmao.misc.ConcurrentBooleanCounter;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
+import edu.harvard.econcs.turkserver.Codec;
 import edu.harvard.econcs.turkserver.api.Configurator;
-import edu.harvard.econcs.turkserver.api.HITWorker;
+import edu.harvard.econcs.turkserver.api.FlexibleConfigurator;
 import edu.harvard.econcs.turkserver.config.TSConfig;
+import edu.harvard.econcs.turkserver.util.Histogram;
 
 /**
  * Default lobby implementation where users that are ready are grouped into 
+ * 
+ * Changes are published to the lobby as numbered deltas, so each message
+ * only carries the user that changed. Workers get the full lobby when they
+ * join, or when they ask for it after missing a delta.
+ * 
+ * Ready workers wait in a queue in the order they became ready, and
+ * groups are taken from the front of it by one thread at a time,
+ * without holding up workers joining or changing status.
+ * 
+ * If the configurator allows a range of group sizes, smaller groups are
+ * started when workers arrive too slowly, see {@link GroupSizePolicy}.
+ * 
  * @author mao
  *
  */
@@ -39,6 +62,28 @@ public class ReadyStateLobby implements Lobby {
 	
 	private LobbyListener lobbyListener;
 	
+	private final ReadyQueue<HITWorkerImpl> readyQueue;
+	// Taken for a group that hasn't started yet
+	private final Set<HITWorkerImpl> grouping;
+	// Lost their session, and can't be grouped until they are back
+	private final Set<HITWorkerImpl> parked;
+	private final AtomicInteger formRequests;
+	
+	// When each ready worker became ready
+	final ConcurrentMap<HITWorkerImpl, Long> readySince;
+	final Histogram waitMillis;
+	
+	final GroupSizePolicy sizing;
+	private ScheduledExecutorService checker;
+	
+	/*
+	 * Deltas are numbered and published in order under this lock,
+	 * along with the session id each worker was last announced with
+	 */
+	private final Object deltaLock = new Object();
+	private long version = 0;
+	private final Map<HITWorkerImpl, String> announced = new HashMap<HITWorkerImpl, String>();
+	
 	@Inject
 	public ReadyStateLobby(
 			@Named(TSConfig.EXP_CONFIGURATOR) Configurator configurator,
@@ -51,21 +96,55 @@ public class ReadyStateLobby implements Lobby {
 		lobbyStatus = new ConcurrentBooleanCounter<HITWorkerImpl>();								
 		serverMessage = new AtomicReference<String>("");
 		
+		readyQueue = new ReadyQueue<HITWorkerImpl>();
+		grouping = Collections.newSetFromMap(new ConcurrentHashMap<HITWorkerImpl, Boolean>());
+		parked = Collections.newSetFromMap(new ConcurrentHashMap<HITWorkerImpl, Boolean>());
+		formRequests = new AtomicInteger();
+		
+		readySince = new ConcurrentHashMap<HITWorkerImpl, Long>();
+		waitMillis = new Histogram();
+		
+		long budget = conf.getLong(TSConfig.SERVER_LOBBY_BUDGET, 0);
+		sizing = configurator instanceof FlexibleConfigurator && budget > 0 ?
+				new GroupSizePolicy((FlexibleConfigurator) configurator, budget) : null;
 	}
 
 	@Override
 	public void setListener(LobbyListener listener) {
 		lobbyListener = listener;
+		
+		// Nobody may join or change status for a while, so check on those waiting
+		long period = checkNanos();
+		if( period > 0 && checker == null ) {
+			checker = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lobby-check").build());
+			
+			checker.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try { tryExperimentStart(); }
+					catch (RuntimeException e) { logger.error("Error checking on waiting workers", e); }
+				}
+			}, period, period, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * @return how often to look for groups that can start just from time passing, or 0 for never
+	 */
+	protected long checkNanos() {
+		if( sizing == null ) return 0;		
+		return Math.max(sizing.budgetNanos / 4, TimeUnit.MILLISECONDS.toNanos(100));
 	}
 
 	@Override
 	public void setMessage(String text) {
 		serverMessage.set(text);
 		
-		/* publish the message to lobby
-		 * It's fine to broadcast here as it is a rare occurrence
-		 */
-		broadcastLobbyStatus();		
+		synchronized(deltaLock) {
+			Map<String, Object> data = delta(Codec.lobby_message);
+			data.put("servermsg", text);
+			lobbyListener.broadcastLobbyMessage(data);
+		}
 	}
 
 	@Override
@@ -76,56 +155,202 @@ public class ReadyStateLobby implements Lobby {
 		 */
 		
 		// Put default lobby status in here
+		parked.remove(hitw);
 		lobbyStatus.put(hitw, defaultStatus);
+		updateQueue(hitw);
 		
 		if( defaultStatus ) {
 			// Create debug experiments if we have enough players, default to ready			
-			logger.info("lobby has {} people, {} ready", lobbyStatus.size(), lobbyStatus.getTrueCount());			
+			logger.info("lobby has {} people, {} ready", lobbyStatus.size(), readyCount());			
 			tryExperimentStart();			
 		}
 
-		// TODO remove this and let users send their own ready message
-		broadcastLobbyStatus();
+		publishUser(hitw);
+		sendSnapshot(hitw);
+	}
+	
+	@Override
+	public boolean userReconnected(HITWorkerImpl hitw) {
+		boolean wasParked = parked.remove(hitw);
+		if( lobbyStatus.get(hitw) == null ) return false;
+		
+		// Ready again with the status they had
+		if( wasParked ) updateQueue(hitw);
+		
+		// Others need to see the new session id
+		publishUser(hitw);
+		sendSnapshot(hitw);
+		
+		if( wasParked ) tryExperimentStart();
+		return true;
+	}
+	
+	@Override
+	public void userParked(HITWorkerImpl hitw) {
+		if( lobbyStatus.get(hitw) == null ) return;
+		
+		parked.add(hitw);
+		updateQueue(hitw);
+		
+		// Left in the meantime
+		if( lobbyStatus.get(hitw) == null ) parked.remove(hitw);
 	}
 	
-	private synchronized boolean tryExperimentStart() {
+	@Override
+	public void userUpdated(HITWorkerImpl hitw) {
+		// Nothing to send if they aren't in the lobby
+		publishUser(hitw);
+	}
+	
+	/*
+	 * Only one thread forms groups at a time. Others leave a request
+	 * and carry on, and the forming thread goes around again for them.
+	 */
+	boolean tryExperimentStart() {
+		if( formRequests.getAndIncrement() != 0 ) return false;
+		
+		boolean started = false;
+		int requests = 1;
+		do {
+			// As many groups as there are ready workers for
+			while( startGroup() ) started = true;			
+		} while( (requests = formRequests.addAndGet(-requests)) != 0 );
+		
+		return started;
+	}
+	
+	private final Predicate<HITWorkerImpl> stillReady = new Predicate<HITWorkerImpl>() {
+		public boolean apply(HITWorkerImpl hitw) {
+			return Boolean.TRUE.equals(lobbyStatus.get(hitw)) && !grouping.contains(hitw) && !parked.contains(hitw);
+		}
+	};
+	
+	private boolean startGroup() {
 		// Don't try anything if not enough people in lobby
-		int expSize = configurator.groupSize(); 
-		if( lobbyStatus.getTrueCount() < expSize ) return false;
+		int ready = readyCount();
+		int expSize = groupSize(ready); 
+		if( ready < expSize ) return false;
 		
-		// Generate the list of experiment clients					
+		List<HITWorkerImpl> workers = pollGroup(expSize, stillReady);
+		if( workers == null ) return false;
 		
+		long now = System.nanoTime();
 		HITWorkerGroupImpl expClients = new HITWorkerGroupImpl();
-
-		// Count up exactly expSize people for the new experiment
-		int counter = 0;
-		for( Map.Entry<HITWorkerImpl, Boolean> e : lobbyStatus.entrySet() ) {						
-			if( e.getValue() == true ) {							
-				expClients.add(e.getKey());
-				counter++;
-			}
-
-			// Don't put more than the required number of people, even if more are ready
-			if(counter == expSize) break;
-		}				
-				
-//		System.out.println("Current lobby before sending: " + lobbyStatus);
-//		System.out.println("Lobby sending out a group: " + expClients);
+		for( HITWorkerImpl hitw : workers ) {
+			grouping.add(hitw);
+			expClients.add(hitw);
+			
+			Long since = readySince.remove(hitw);
+			if( since != null ) waitMillis.record(TimeUnit.NANOSECONDS.toMillis(now - since));
+		}
+		
+		if( expSize != configurator.groupSize() ) {
+			logger.info("Starting group of {} instead of {}, about {} ms between arrivals", 
+					new Object[] { expSize, configurator.groupSize(), 
+					(long) (sizing.expectedGap(now) / 1e6) });
+		}
 		
 		lobbyListener.createNewExperiment(expClients);
 		
 		/*
-		 * NOTE: They must be in experiment first before we can safely remove from lobby
+		 * NOTE: The listener marks them as starting before setting up the experiment
+		 * elsewhere, so they count as in progress before they leave the lobby here.
 		 * 
 		 * Avoids race condition where workers removed from lobby but not yet in experiment
-		 * may get placed in the lobby a second time, causing big problems
+		 * may get placed in the lobby a second time, causing big problems. If the 
+		 * experiment can't be set up, they are taken off the starting list and told 
+		 * to reload, which puts them back in the lobby.
 		 */
-		for( HITWorker id : expClients.getHITWorkers() )	
-			lobbyStatus.remove((HITWorkerImpl) id);
+		for( HITWorkerImpl hitw : workers )	
+			lobbyStatus.remove(hitw);		
+		grouping.removeAll(workers);
+		
+		for( HITWorkerImpl hitw : workers )	
+			publishUser(hitw);
 		
-//		System.out.println("Current lobby after sending: " + lobbyStatus);
 		return true;
 	}
+	
+	/*
+	 * The configured size, unless workers are arriving too slowly for it
+	 */
+	private int groupSize(int ready) {
+		if( sizing == null ) return configurator.groupSize();
+		
+		long now = System.nanoTime();
+		return sizing.groupSize(ready, longestWaitNanos(now), now);
+	}
+	
+	/**
+	 * Only from the thread forming groups.
+	 * @param now
+	 * @return how long the longest waiting ready worker has been waiting
+	 */
+	protected long longestWaitNanos(long now) {
+		HITWorkerImpl oldest = oldestReady();
+		Long since = oldest == null ? null : readySince.get(oldest);
+		return since == null ? 0 : now - since;
+	}
+	
+	/*
+	 * Queue or unqueue a worker to match their status after it changes.
+	 * Goes around again if the status changed while doing that, so that
+	 * whichever thread changed it last leaves the queue right.
+	 */
+	private void updateQueue(HITWorkerImpl hitw) {
+		boolean ready;
+		do {
+			ready = stillReady.apply(hitw);
+			if( ready ) {
+				long now = System.nanoTime();
+				if( readySince.putIfAbsent(hitw, now) == null && sizing != null ) sizing.arrived(now);
+				enqueue(hitw);
+			}
+			else {
+				dequeue(hitw);
+				readySince.remove(hitw);
+			}
+		} while( ready != stillReady.apply(hitw) );
+	}
+	
+	/* ****************************************************
+	 * Where ready workers wait, which subclasses can change
+	 ******************************************************/
+	
+	/**
+	 * Add a worker that is ready, if not already waiting
+	 * @param hitw
+	 */
+	protected void enqueue(HITWorkerImpl hitw) {
+		readyQueue.add(hitw);
+	}
+	
+	protected void dequeue(HITWorkerImpl hitw) {
+		readyQueue.remove(hitw);
+	}
+	
+	protected int readyCount() {
+		return readyQueue.size();
+	}
+	
+	/**
+	 * Only from the thread forming groups.
+	 * @return the worker that has been ready the longest, or null if nobody is
+	 */
+	protected HITWorkerImpl oldestReady() {
+		return readyQueue.peek();
+	}
+	
+	/**
+	 * Take the workers for a new group. Only called by one thread at a time.
+	 * @param size
+	 * @param valid whether a worker is still ready
+	 * @return the group, or null if one can't be formed
+	 */
+	protected List<HITWorkerImpl> pollGroup(int size, Predicate<HITWorkerImpl> valid) {
+		// Whoever has been ready the longest
+		return readyQueue.poll(size, valid);
+	}
 
 	@Override
 	public boolean updateStatus(HITWorkerImpl hitw, Map<String, Object> data) {
@@ -142,25 +367,26 @@ public class ReadyStateLobby implements Lobby {
 		 * Do nothing if user was already removed from lobby
 		 * or there was no change to the status
 		 */
-		if( oldStatus == null || oldStatus == newStatus ) {
-			broadcastLobbyStatus(); // TODO remove this once lobby updates are fixed
-			return false;
-		}
+		if( oldStatus == null || oldStatus == newStatus ) return false;
+		
+		updateQueue(hitw);
+		publishUser(hitw);
 		
 		tryExperimentStart();
 		
 		checkLobbyState();
 		
-		// Notify everyone who is remaining in the lobby
-		broadcastLobbyStatus();
 		return true;
 	}
 
 	void checkLobbyState() {
-		if( !defaultStatus && lobbyStatus.size() < configurator.groupSize() ) {				
+		if( !defaultStatus && lobbyStatus.size() < minGroupSize() ) {				
 			// Make sure everyone's ready is disabled
 			for( HITWorkerImpl id : lobbyStatus.keySet() ) {
-				lobbyStatus.replace(id, false);
+				if( lobbyStatus.replace(id, true, false) ) {
+					updateQueue(id);
+					publishUser(id);
+				}
 			}
 		}
 	}
@@ -170,29 +396,32 @@ public class ReadyStateLobby implements Lobby {
 		// Was this dude in the lobby? If so remove him from the lobby and notify lobby ppl
 		if( worker == null ) return false;
 		
-		synchronized(this) {
-			 if( lobbyStatus.remove(worker) == null ) return false;
-		}
+		parked.remove(worker);
+		if( lobbyStatus.remove(worker) == null ) return false;
+		updateQueue(worker);
 		
 		logger.info(String.format("%s (%s) removed from lobby",
 				worker.getHitId(), worker.getUsername()));	
 		
-		checkLobbyState();
-		
-		// TODO forward this quit message to lobby instead of a whole list
-		
-//		ServerSession session = worker.cometdSession.get();		 
-//		Map<String, Object> data = new TreeMap<String, Object>();
-//		data.put("status", "quit");
-//		if( session != null ) data.put("id", session.getId());
-//		data.put("username", worker.getUsername());
-//		lobbyListener.broadcastLobbyMessage(data);
+		publishUser(worker);
 		
-		broadcastLobbyStatus();
+		checkLobbyState();
 		
 		return true;
 	}
 
+	// Fewest people that could start a group, when the wait is long enough
+	int minGroupSize() {
+		return sizing == null ? configurator.groupSize() : sizing.minSize();
+	}
+	
+	/**
+	 * @return how long workers waited to be grouped, in milliseconds
+	 */
+	public Histogram getWaitMillis() {
+		return waitMillis;
+	}
+
 	@Override
 	public Set<HITWorkerImpl> getLobbyUsers() {		
 		return lobbyStatus.keySet();
@@ -203,41 +432,98 @@ public class ReadyStateLobby implements Lobby {
 		return lobbyStatus.get(hitw);
 	}
 
-	void broadcastLobbyStatus() {
+	/**
+	 * Publish where a worker stands in the lobby now.
+	 * 
+	 * The state is read under the lock rather than passed in, so the last
+	 * delta for each worker matches its final state whatever order
+	 * concurrent changes are made in.
+	 * @param hitw
+	 */
+	void publishUser(HITWorkerImpl hitw) {
+		synchronized(deltaLock) {
+			Boolean ready = lobbyStatus.get(hitw);
+			ServerSession session = hitw.cometdSession.get();
+			
+			String oldId = announced.get(hitw);
+			String id = ready == null || session == null ? null : session.getId();
+			
+			// Gone from the lobby, or back on a different session
+			if( oldId != null && !oldId.equals(id) ) {
+				announced.remove(hitw);
+				
+				Map<String, Object> data = delta(Codec.lobby_quit);
+				data.put("id", oldId);
+				lobbyListener.broadcastLobbyMessage(data);
+			}
+			
+			if( id == null ) return;
+			announced.put(hitw, id);
+			
+			Map<String, Object> data = delta(oldId == null ? Codec.lobby_join : Codec.lobby_ready);
+			data.put("id", id);
+			data.put("username", hitw.getUsername());
+			data.put("ready", ready);
+			lobbyListener.broadcastLobbyMessage(data);
+		}
+	}
+	
+	// Call with deltaLock held
+	private Map<String, Object> delta(String status) {
 		Map<String, Object> data = new TreeMap<String, Object>();
 		
 		int usersInLobby = lobbyStatus.size();
 		int usersNeeded = configurator.groupSize();
 		
-		data.put("status", "update");
+		data.put("status", status);
+		data.put("version", ++version);
 		
 		data.put("numusers", usersInLobby);
 		data.put("numneeded", usersNeeded);
-		data.put("joinenabled", usersInLobby >= usersNeeded);
-		
-		data.put("servermsg", serverMessage.get());
-		data.put("currentexps", lobbyListener.getNumExperimentsRunning());
-		data.put("totalusers", lobbyListener.getNumUsersConnected());
+		data.put("joinenabled", usersInLobby >= minGroupSize());
 		
-		/* TODO could be some race conditions here if lobby size changes?
-		 * i.e. ArrayIndexOutOfBounds when array size changes 
-		 */
-		List<Object> users = new LinkedList<Object>();		
+		return data;
+	}
+
+	@Override
+	public void sendSnapshot(HITWorkerImpl hitw) {
+		Map<String, Object> data = new TreeMap<String, Object>();
 		
-		for( Map.Entry<HITWorkerImpl, Boolean> e : lobbyStatus.entrySet() ) {
-			HITWorkerImpl user = e.getKey();
-			ServerSession session = user.cometdSession.get();
-			if( session == null ) continue;
-			
-			// clientId, username, and status
-			users.add(ImmutableMap.<String, Object>of(
-					"id", session.getId(),
-					"username", user.getUsername(),
-					"ready", e.getValue() ));
+		synchronized(deltaLock) {		
+			int usersInLobby = lobbyStatus.size();
+			int usersNeeded = configurator.groupSize();
+
+			data.put("status", Codec.lobby_update);
+			data.put("version", version);
+
+			data.put("numusers", usersInLobby);
+			data.put("numneeded", usersNeeded);
+			data.put("joinenabled", usersInLobby >= minGroupSize());
+
+			data.put("servermsg", serverMessage.get());
+			data.put("currentexps", lobbyListener.getNumExperimentsRunning());
+			data.put("totalusers", lobbyListener.getNumUsersConnected());
+
+			// Users that have been announced, with their latest status
+			List<Object> users = new LinkedList<Object>();		
+
+			for( Map.Entry<HITWorkerImpl, String> e : announced.entrySet() ) {
+				HITWorkerImpl user = e.getKey();
+				Boolean ready = lobbyStatus.get(user);
+				if( ready == null ) continue;
+
+				// clientId, username, and status
+				Map<String, Object> u = new TreeMap<String, Object>();
+				u.put("id", e.getValue());
+				u.put("username", user.getUsername());
+				u.put("ready", ready);
+				users.add(u);
+			}
+			data.put("users", users);
+
+			// Sent under the lock so no delta can get ahead of it
+			lobbyListener.sendLobbyMessage(hitw, data);
 		}
-		data.put("users", users);
-		
-		lobbyListener.broadcastLobbyMessage(data);		
 	}
 
 }
@@ -0,0 +1,151 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker.SessionSummary;
+
+/**
+ * Counts of sessions in the current set, kept up to date from what happens
+ * on this server and reconciled with the database every now and then.
+ *
+ * Anyone waiting is woken up on every change.
+ *
+ * @author mao
+ *
+ */
+class SessionCounts {
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	// Written under lock
+	private volatile int created = 0;
+	private volatile int assigned = 0;
+	private volatile int completed = 0;
+	private volatile int submitted = 0;
+	private volatile long version = 0;
+
+	void reconcile(SessionSummary summary) {
+		lock.lock();
+		try {
+			created = summary.createdHITs;
+			assigned = summary.assignedHITs;
+			completed = summary.completedHITs;
+			submitted = summary.submittedHITs;
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void created() {
+		lock.lock();
+		try {
+			created++;
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void assigned(int delta) {
+		lock.lock();
+		try {
+			assigned += delta;
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void completed(int n) {
+		lock.lock();
+		try {
+			completed += n;
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void submitted() {
+		lock.lock();
+		try {
+			submitted++;
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Call with lock held
+	private void changed() {
+		version++;
+		changed.signalAll();
+	}
+
+	/**
+	 * Wake up anyone waiting, e.g. on shutdown
+	 */
+	void signal() {
+		lock.lock();
+		try {
+			changed();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for anything to change since a version was seen.
+	 * Read the version before checking counts, so that no change is missed.
+	 * @param seen
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout elapsed first
+	 * @throws InterruptedException
+	 */
+	boolean awaitChange(long seen, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while( version == seen ) {
+				if( nanos <= 0 ) return false;
+				nanos = changed.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	int getCreated() {
+		return created;
+	}
+
+	int getAssigned() {
+		return assigned;
+	}
+
+	int getCompleted() {
+		return completed;
+	}
+
+	int getSubmitted() {
+		return submitted;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d created, %d assigned, %d completed, %d submitted",
+				created, assigned, completed, submitted);
+	}
+
+}
@@ -2,10 +2,14 @@ package edu.harvard.econcs.turkserver.server;
 
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.configuration.Configuration;
 import org.cometd.bayeux.server.BayeuxServer;
@@ -18,11 +22,7 @@ import org.eclipse.jetty.util.ajax.JSON.Convertor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.MapMaker;
-import com.google.common.collect.Table;
-import com.google.common.collect.Tables;
 import com.google.inject.Inject;
 
 import edu.harvard.econcs.turkserver.Codec;
@@ -33,6 +33,7 @@ import edu.harvard.econcs.turkserver.SessionOverlapException;
 import edu.harvard.econcs.turkserver.SimultaneousSessionsException;
 import edu.harvard.econcs.turkserver.TooManyFailsException;
 import edu.harvard.econcs.turkserver.TooManySessionsException;
+import edu.harvard.econcs.turkserver.api.HITWorker;
 import edu.harvard.econcs.turkserver.api.HITWorkerGroup;
 import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.mturk.HITController;
@@ -40,7 +41,10 @@ import edu.harvard.econcs.turkserver.schema.Quiz;
 import edu.harvard.econcs.turkserver.schema.Session;
 import edu.harvard.econcs.turkserver.server.SessionRecord.SessionStatus;
 import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker;
+import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker.Admission;
 import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker.SessionSummary;
+import edu.harvard.econcs.turkserver.util.HashedWheelTimer;
+import edu.harvard.econcs.turkserver.util.StripedExecutor;
 
 public abstract class SessionServer extends Thread {
 
@@ -60,11 +64,30 @@ public abstract class SessionServer extends Thread {
 	
 	protected BayeuxServer bayeux;	
 	
-	protected ConcurrentMap<ServerSession, HITWorkerImpl> clientToHITWorker;
-	protected Table<String, String, HITWorkerImpl> hitWorkerTable;
+	protected final WorkerRegistry workers;
 	
-	protected volatile int completedHITs = 0;
-	protected volatile int submittedHITs = 0;
+	/**
+	 * How often counts are checked against the database
+	 */
+	static final long RECONCILE_MILLIS = 60 * 1000;
+	
+	final SessionCounts counts = new SessionCounts();
+	private volatile long lastReconcile = System.nanoTime();
+	
+	// Client messages, handled in order for each client
+	final StripedExecutor<String> messages;
+	
+	/**
+	 * Shed accepts are retried after this long, plus up to as much again
+	 */
+	static final int ACCEPT_RETRY_MILLIS = 2000;
+	
+	final AdmissionController admissions;
+	private final Random retryJitter = new Random();
+	
+	final long reconnectGraceMillis;
+	final ConcurrentMap<String, Parked> parked = new ConcurrentHashMap<String, Parked>();
+	final AtomicLong reconnectsAbsorbed = new AtomicLong();
 	
 	private volatile boolean running = true;
 	
@@ -89,18 +112,15 @@ public abstract class SessionServer extends Thread {
 		this.debugMode = config.getBoolean(TSConfig.SERVER_DEBUGMODE);
 		this.hitGoal = config.getInt(TSConfig.SERVER_HITGOAL);					
 		
-		/*
-		 * create session and string maps
-		 */
-		final MapMaker mm = new MapMaker();
-		this.clientToHITWorker = mm.makeMap();		
-				
-		Map<String, Map<String, HITWorkerImpl>> rowMap = mm.makeMap();
-		mm.concurrencyLevel(1);
-		this.hitWorkerTable = Tables.newCustomTable(
-				rowMap, new Supplier<Map<String, HITWorkerImpl>>() {
-					@Override public Map<String, HITWorkerImpl> get() { return mm.makeMap(); }					
-				});										  
+		this.messages = new StripedExecutor<String>(
+				config.getInt(TSConfig.SERVER_MSG_THREADS), config.getInt(TSConfig.SERVER_MSG_QUEUE));
+		
+		this.admissions = new AdmissionController(experiments.timer,
+				config.getInt(TSConfig.SERVER_ACCEPT_INFLIGHT), config.getInt(TSConfig.SERVER_ACCEPT_QUEUE),
+				config.getLong(TSConfig.SERVER_ACCEPT_WAIT), config.getLong(TSConfig.SERVER_ACCEPT_LATENCY));
+		
+		this.workers = new WorkerRegistry(config.getLong(TSConfig.SERVER_WORKER_TTL), TimeUnit.SECONDS);
+		this.reconnectGraceMillis = config.getLong(TSConfig.SERVER_RECONNECT_GRACE);
 	}
 	
 	public void injectWebServer(JettyCometD server) {		
@@ -110,7 +130,7 @@ public abstract class SessionServer extends Thread {
 	public class UserSessionListener implements SessionListener {
 		@Override
 		public void sessionAdded(ServerSession conn) {
-			HITWorkerImpl previous = clientToHITWorker.get(conn);			
+			HITWorkerImpl previous = workers.get(conn);			
 			
 			if( previous != null ) {
 				// This session was previously connected. Associate it with the HITWorker. 
@@ -119,24 +139,130 @@ public abstract class SessionServer extends Thread {
 			}
 			else {
 				logger.info(conn.toString());
-//				clientToHITWorker.putIfAbsent(session, null);
+//				workers.put(session, null);
 			}
 		}
 
 		@Override
-		public void sessionRemoved(ServerSession conn, boolean timedout) {			
+		public void sessionRemoved(final ServerSession conn, boolean timedout) {			
 			String clientId = conn.getId();			
 			
 			if( timedout ) {
-				logger.info("Session " + clientId + " timed out");
-				sessionDisconnect(conn);
+				logger.info("Session " + clientId + " timed out");				
 			}
 			else {
-				logger.info("Session " + clientId + " disconnected");
-				sessionDisconnect(conn);
+				logger.info("Session " + clientId + " disconnected");				
 			}
+			
+			// After anything else the client sent, and never refused
+			messages.execute(clientId, new Runnable() {
+				public void run() { park(conn); }
+			});
+			messages.retire(clientId);
 		}	
 	}
+	
+	/**
+	 * A worker whose session went away, who may come back soon
+	 */
+	class Parked implements Runnable {
+		final String key;
+		final ServerSession conn;
+		final HITWorkerImpl hitw;
+		volatile HashedWheelTimer.Timeout timeout;
+		
+		Parked(String key, ServerSession conn, HITWorkerImpl hitw) {
+			this.key = key;
+			this.conn = conn;
+			this.hitw = hitw;
+		}
+		
+		void cancel() {
+			HashedWheelTimer.Timeout t = timeout;
+			if( t != null ) t.cancel();
+		}
+		
+		// Grace period is over
+		public void run() {
+			messages.execute(conn.getId(), new Runnable() {
+				public void run() {
+					if( !parked.remove(key, Parked.this) ) return;
+					
+					logger.info("{} didn't come back, disconnecting", hitw);
+					sessionDisconnect(conn);
+				}
+			});
+			messages.retire(conn.getId());
+		}
+	}
+	
+	/**
+	 * Hold on to a disconnected worker for a while, so that a quick reconnect 
+	 * (e.g. a page reload) doesn't have to tear down and rebuild everything
+	 * @param conn
+	 */
+	void park(ServerSession conn) {
+		HITWorkerImpl hitw = workers.get(conn);
+		
+		if( hitw == null || reconnectGraceMillis <= 0 ) {
+			sessionDisconnect(conn);
+			return;
+		}
+		
+		Parked p = new Parked(WorkerRegistry.key(hitw.getHitId(), hitw.getWorkerId()), conn, hitw);
+		
+		// Whoever takes it out of the map decides what happens to it
+		Parked prev = parked.put(p.key, p);
+		if( prev != null ) {
+			prev.cancel();
+			sessionDisconnect(prev.conn);
+		}
+		
+		sessionParked(hitw);
+		
+		p.timeout = experiments.timer.schedule(p, reconnectGraceMillis, TimeUnit.MILLISECONDS);
+		logger.info("{} disconnected, waiting {} ms for reconnect", hitw, reconnectGraceMillis);
+	}
+	
+	/**
+	 * Called when a worker is parked, for subclasses to hold off on them.
+	 * Followed by {@link #sessionResumed(ServerSession, HITWorkerImpl)} if they 
+	 * come back in time, or {@link #sessionDisconnect(ServerSession)} if not.
+	 * @param hitw
+	 */
+	void sessionParked(HITWorkerImpl hitw) {
+		
+	}
+	
+	/**
+	 * Give a parked worker the session it reconnected with
+	 * @return the worker, or null if it wasn't parked
+	 */
+	HITWorkerImpl unpark(ServerSession conn, String hitId, String assignmentId, String workerId) {
+		Parked p = parked.get(WorkerRegistry.key(hitId, workerId));
+		if( p == null ) return null;
+		
+		// Completed sessions go through the usual checks
+		if( SessionRecord.status(p.hitw.record) == SessionStatus.COMPLETED ) return null;
+		if( assignmentId != null && !assignmentId.equals(p.hitw.getAssignmentId()) ) return null;
+		
+		// Too late if the grace period just ran out
+		if( !parked.remove(p.key, p) ) return null;
+		p.cancel();
+		
+		conn.setAttribute("hitId", hitId);
+		conn.setAttribute("assignmentId", assignmentId);
+		conn.setAttribute("workerId", workerId);
+		
+		p.hitw.setServerSession(conn);
+		workers.remove(p.conn);
+		workers.put(conn, p.hitw);
+		
+		reconnectsAbsorbed.incrementAndGet();
+		logger.info("{} reconnected within grace period", p.hitw);
+		
+		return p.hitw;
+	}
 
 	public void registerConvertor(Class<?> cl, Convertor conv) {
 		// TODO put this elsewhere
@@ -149,41 +275,137 @@ public abstract class SessionServer extends Thread {
 	public abstract int getExpsCompleted();
 	
 	public int getNumCompleted() {		
-		return completedHITs;
+		return counts.getCompleted();
+	}
+	
+	public AdmissionController getAdmissions() {
+		return admissions;
+	}
+	
+	/**
+	 * @return how many disconnects were followed by a reconnect within the grace period
+	 */
+	public long getReconnectsAbsorbed() {
+		return reconnectsAbsorbed.get();
+	}
+	
+	public int getParkedCount() {
+		return parked.size();
 	}
 
 	void sessionView(ServerSession conn, String hitId) {
 		if( hitId != null ) {					
 			
 			// This session currently hasn't accepted this HIT 
-			HITWorkerImpl prev = clientToHITWorker.remove(conn);
+			HITWorkerImpl prev = workers.remove(conn);
 						
 			logger.info("New user is viewing HIT {}, previous user was {}", hitId, prev);
 			
 			conn.setAttribute("hitId", hitId);
 			
 			// Try to add hitIds that we have no record of (clean reuse)
-			if( !tracker.hitExistsInDB(hitId) )
-				tracker.saveHITId(hitId);			
+			if( !tracker.hitExistsInDB(hitId) ) {
+				tracker.saveHITId(hitId);
+				counts.created();
+			}
 		}
 		else {
 			System.out.println("Client " + conn.getId() + " sent null hitId");
 		}
 	}
 
-	HITWorkerImpl sessionAccept(ServerSession conn, 
-			String hitId, String assignmentId, String workerId) {				
+	HITWorkerImpl sessionAccept(final ServerSession conn, 
+			final String hitId, final String assignmentId, final String workerId) {				
 		if( hitId == null ) {
 			logger.warn("Received null hitId for session {}", conn.getId());
 			return null;
 		}	
 		
-		Session hitIdRecord = tracker.getStoredSessionInfo(hitId);
+		HITWorkerImpl resumed = unpark(conn, hitId, assignmentId, workerId);
+		if( resumed != null ) {
+			sessionResumed(conn, resumed);
+			return resumed;
+		}
+		
+		boolean now = admissions.acquire(new AdmissionController.Turn() {
+			public void admitted() {
+				// Back to this client's lane, instead of whoever let it in
+				messages.execute(conn.getId(), new Runnable() {
+					public void run() { processAccept(conn, hitId, assignmentId, workerId); }
+				});
+			}
+			
+			public void shed() {
+				sendAcceptRetry(conn, hitId, assignmentId, workerId);
+			}
+		});
+		
+		// Waiting for a turn, or shed
+		if( !now ) return null;
+		
+		return processAccept(conn, hitId, assignmentId, workerId);
+	}
+	
+	private HITWorkerImpl processAccept(ServerSession conn, 
+			String hitId, String assignmentId, String workerId) {
+		HITWorkerImpl hitw;
+		try {
+			hitw = admit(conn, hitId, assignmentId, workerId);
+		}
+		finally {
+			admissions.release();
+		}
+		
+		if( hitw != null ) sessionAdmitted(conn, hitw);
+		return hitw;
+	}
+	
+	private void sendAcceptRetry(ServerSession conn, 
+			String hitId, String assignmentId, String workerId) {
+		// Spread out the retries so they don't all come back at once
+		long retry = ACCEPT_RETRY_MILLIS + retryJitter.nextInt(ACCEPT_RETRY_MILLIS);
+		logger.info("Too many accepts, asking worker {} to retry in {} ms (HIT {})", 
+				new Object[] { workerId, retry, hitId });
+		
+		Map<String, Object> accept = new HashMap<String, Object>();
+		accept.put("status", Codec.hitAccept);
+		accept.put("hitId", hitId);
+		accept.put("assignmentId", assignmentId);
+		accept.put("workerId", workerId);
+		SessionUtils.sendRetry(conn, Codec.status_overloaded, "/service/user", accept, retry);
+	}
+	
+	/**
+	 * Called after a worker is admitted with a new session, for subclasses to continue
+	 * @param conn
+	 * @param hitw
+	 */
+	void sessionAdmitted(ServerSession conn, HITWorkerImpl hitw) {
+		
+	}
+	
+	/**
+	 * Called when a worker comes back within the grace period, without going through admission
+	 * @param conn
+	 * @param hitw
+	 */
+	void sessionResumed(ServerSession conn, HITWorkerImpl hitw) {
+		if( experiments.workerIsInProgress(hitw) ) sessionReconnect(conn, hitw);
+	}
+	
+	private HITWorkerImpl admit(ServerSession conn, 
+			String hitId, String assignmentId, String workerId) {
+		// Everything the checks below need, in one trip to the database
+		long start = System.nanoTime();
+		Admission admission = tracker.getAdmission(hitId, workerId, workerAuth.usesQuiz());
+		admissions.recordLatency(System.nanoTime() - start);
+		
+		Session hitIdRecord = admission.session;
 		
 		try {
-			workerAuth.checkHITValid(hitId, workerId, hitIdRecord);
+			workerAuth.checkSessionReuse(hitId, workerId, hitIdRecord);
 			
-			// Create hitId record that would have been saved above if session was null
+			// Create hitId record, which is stored along with the assignment below
 			if( hitIdRecord == null ) {				
 				hitIdRecord = new Session();
 				hitIdRecord.setHitId(hitId);
@@ -195,13 +417,13 @@ public abstract class SessionServer extends Thread {
 			
 			// Re-match HITWorker to this person
 			HITWorkerImpl hitw;
-			if( (hitw = hitWorkerTable.get(hitId, workerId)) != null ) {
+			if( (hitw = workers.get(hitId, workerId)) != null ) {
 				// Match session to HITWorker and vice versa
 				ServerSession oldSession = hitw.cometdSession.get();
 				if( oldSession == null || !conn.equals(oldSession) ) {
 					hitw.setServerSession(conn);				
 				}
-				clientToHITWorker.put(conn, hitw);
+				workers.put(conn, hitw);
 			}								
 			return null;
 		} catch (SessionOverlapException e) {
@@ -219,14 +441,14 @@ public abstract class SessionServer extends Thread {
 		}
 		
 		// Check for this AFTER possible completed sessions
-		if( !running || completedHITs >= hitGoal ) {
+		if( !running || counts.getCompleted() >= hitGoal ) {
 			SessionUtils.sendStatus(conn, Codec.status_batchfinished, Messages.BATCH_COMPLETED);
 			logger.info("Ignoring connection after quota reached (HIT {})", hitId);
 			return null;
 		}	
 		
 		try {
-			workerAuth.checkWorkerLimits(hitId, workerId, hitIdRecord);
+			workerAuth.checkWorkerLimits(workerId, hitIdRecord, admission.workerSessions);
 		} catch (SimultaneousSessionsException e) {			
 			SessionUtils.sendStatus(conn, Codec.status_simultaneoussessions, Messages.SIMULTANEOUS_SESSIONS);
 			logger.info("Worker {} has accepted too many HITs (HIT {})", workerId, hitId);
@@ -243,7 +465,7 @@ public abstract class SessionServer extends Thread {
 		conn.setAttribute("workerId", workerId);				
 		
 		try {
-			if( workerAuth.workerRequiresQuiz(workerId) ) {		
+			if( workerAuth.workerRequiresQuiz(admission.quizzes) ) {		
 				logger.info("Worker {} needs to take quiz (HIT {})", workerId, hitId);
 				QuizMaterials qm = workerAuth.getQuiz();
 								
@@ -274,35 +496,35 @@ public abstract class SessionServer extends Thread {
 		}		else {
 			logger.info(String.format("HIT %s newly assigned to worker %s with assignment %s", hitId, workerId, assignmentId));
 		}
+		
+		if( hitIdRecord.getWorkerId() == null ) counts.assigned(1);
 				
 		// Find this HITWorker in table
-		if( (hitw = hitWorkerTable.get(hitId, workerId)) == null ) {
+		if( (hitw = workers.get(hitId, workerId)) == null ) {
 			// create instance of HITWorker			
 			hitw = new HITWorkerImpl(conn, hitIdRecord);
-			hitWorkerTable.put(hitId, workerId, hitw);
 		}
+		// Taking part (again)
+		workers.put(hitId, workerId, hitw);
 			
 		// Match session to HITWorker and vice versa
 		ServerSession oldSession = hitw.cometdSession.get();
 		if( oldSession == null || !conn.equals(oldSession) ) {
 			hitw.setServerSession(conn);				
 		}			
-		clientToHITWorker.put(conn, hitw);
+		workers.put(conn, hitw);
 
+		// Successful registration, save assignment and info together
 		// TODO Alice wants to move this to before the quiz
-		tracker.saveWorkerAssignment(hitw, assignmentId, workerId);
-		
-		// Successful registration, save info
-		tracker.saveIP(hitw, bayeux == null ? // TODO mock this part for unit tests
+		tracker.saveAdmission(hitw, assignmentId, workerId, bayeux == null ? // TODO mock this part for unit tests
 				InetAddress.getLoopbackAddress() : 
 					bayeux.getContext().getRemoteAddress().getAddress(), new Date());			
 		
-		// subclasses continue with additional logic if necessary 		
 		return hitw;
 	}
 
 	void sessionSubmit(ServerSession conn, String survey) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker == null ) {
 			logger.warn("Unrecognized client {} tried to submit", conn.getId());
@@ -316,7 +538,7 @@ public abstract class SessionServer extends Thread {
 		if( !alreadySubmitted ) {
 			// We do this because the first survey is probably going to be better than subsequent ones
 			tracker.saveExitSurveyResults(worker, survey);
-			updateCompletion();
+			counts.submitted();
 		}				
 		
 		// TODO check the total number of possible different tasks as well, from assigner									
@@ -336,7 +558,7 @@ public abstract class SessionServer extends Thread {
 	}
 	
 	void sessionDisconnect(ServerSession conn) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker != null ) {
 			experiments.workerDisconnected(worker);			
@@ -358,6 +580,10 @@ public abstract class SessionServer extends Thread {
 				 * BUT if in experiment, they need to wait	
 				 */
 				tracker.clearWorkerForSession(workerHitId);
+				counts.assigned(-1);
+				
+				// Abandoned, rebuilt from the tracker if they come back
+				workers.retire(worker);
 			}
 		}
 		
@@ -369,6 +595,17 @@ public abstract class SessionServer extends Thread {
 		
 	}
 	
+	/**
+	 * Handle a message from a client on the message threads, 
+	 * after any earlier messages from the same client.
+	 * @param conn
+	 * @param task
+	 * @return false if too many messages are waiting, and the client should try again later
+	 */
+	boolean process(ServerSession conn, Runnable task) {
+		return messages.offer(conn.getId(), task);
+	}
+	
 	void rcvQuizResults(ServerSession conn, Quiz qr) {
 		String workerId = (String) conn.getAttribute("workerId");
 		String hitId = (String) conn.getAttribute("hitId");
@@ -399,7 +636,7 @@ public abstract class SessionServer extends Thread {
 	}
 
 	void rcvInactiveTime(ServerSession conn, long inactiveStart, long inactiveTime) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker == null ) {
 			logger.error("Can't save inactivity: unknown worker for {}", conn.getId());
@@ -411,7 +648,7 @@ public abstract class SessionServer extends Thread {
 
 	void rcvExperimentServiceMsg(ServerSession conn,
 			Map<String, Object> dataAsMap) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker != null ) experiments.rcvServiceMsg(worker, dataAsMap);
 		else logger.warn("Message from unrecognized client: {}", conn.getId());
@@ -419,7 +656,7 @@ public abstract class SessionServer extends Thread {
 
 	boolean rcvExperimentBroadcastMsg(ServerSession conn,
 			Map<String, Object> dataAsMap) {
-		HITWorkerImpl worker = clientToHITWorker.get(conn);
+		HITWorkerImpl worker = workers.get(conn);
 		
 		if( worker != null ) return experiments.rcvBroadcastMsg(worker, dataAsMap);
 		else logger.warn("Message from unrecognized client: {}", conn.getId());
@@ -433,22 +670,49 @@ public abstract class SessionServer extends Thread {
 	 * @return whether the server should shut down
 	 */
 	boolean groupCompleted(HITWorkerGroup group) {
-		updateCompletion(); // Will interrupt if necesasry
+		// Wakes up the server thread
+		if( group != null ) {
+			counts.completed(group.groupSize());
+			
+			for( HITWorker hitw : group.getHITWorkers() )
+				workers.retire((HITWorkerImpl) hitw);
+		}
+		
+		logger.info(counts.toString());
 		
-		return completedHITs >= hitGoal;
+		return counts.getCompleted() >= hitGoal;
 	}
 
-	void updateCompletion() {
-		SessionSummary currentState = tracker.getSetSessionSummary();
+	/**
+	 * Check counts against the database, in case of anything we didn't see.
+	 * Reads past any cached summary, which could miss recent changes.
+	 */
+	void reconcileCounts() {
+		lastReconcile = System.nanoTime();
 		
-		completedHITs = currentState.completedHITs;
-		submittedHITs = currentState.submittedHITs;
+		SessionSummary currentState = tracker.getFreshSessionSummary();
+		if( currentState == null ) return;
+		
+		counts.reconcile(currentState);
 		
 		logger.info(currentState.completedHITs + " HITs completed");
 		logger.info(currentState.submittedHITs + " HITs submitted");
+	}
+	
+	/**
+	 * Wait for counts to change, reconciling them every so often 
+	 * even when they keep changing
+	 * @param seen version of counts that was checked
+	 */
+	private void awaitCounts(long seen) {
+		long left = TimeUnit.MILLISECONDS.toNanos(RECONCILE_MILLIS) - (System.nanoTime() - lastReconcile);
+		
+		try {
+			if( left > 0 ) counts.awaitChange(seen, left, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {}
 		
-		if( completedHITs >= hitGoal && completedHITs == submittedHITs ) 
-			this.interrupt();
+		if( System.nanoTime() - lastReconcile >= TimeUnit.MILLISECONDS.toNanos(RECONCILE_MILLIS) )
+			reconcileCounts();
 	}
 
 	@Override
@@ -474,12 +738,13 @@ public abstract class SessionServer extends Thread {
 		runServerInit();
 		
 		// TODO: clean up half-baked experiments in database
-		updateCompletion();
+		reconcileCounts();
 		
 	    // Hang out until goal # of HITs are reached and shutdown jetty server
-		while( running && completedHITs < hitGoal ) {			
-			try { Thread.sleep(5000); }
-			catch (InterruptedException e) {}
+		while( true ) {
+			long seen = counts.getVersion();
+			if( !running || counts.getCompleted() >= hitGoal ) break;
+			awaitCounts(seen);
 		}
 				
 		logger.info("Goal reached or shut down initiated - deleting remaining HITs");
@@ -499,10 +764,11 @@ public abstract class SessionServer extends Thread {
 		 */
 		if( !debugMode ) {
 			logger.info("Waiting for experiments to finish and workers to submit HITs");
-			do try {
-				Thread.sleep(5000);
-			} catch(InterruptedException e ) {} 
-			while( getExpsInProgress() > 0 || completedHITs > submittedHITs );
+			while( true ) {
+				long seen = counts.getVersion();
+				if( getExpsInProgress() == 0 && counts.getCompleted() <= counts.getSubmitted() ) break;
+				awaitCounts(seen);
+			}
 			logger.info("Experiments finished and got all HIT submissions");
 		}
 		else {						
@@ -511,14 +777,24 @@ public abstract class SessionServer extends Thread {
 		}
 
 		// Stop experiments thread
-		ScheduledExecutorService exec = experiments.stop();			
-		System.out.println("Waiting for experiment scheduler to stop...");
+		ExecutorService exec = experiments.stop();			
+		System.out.println("Waiting for experiment threads to stop...");
 		do try {						
 			exec.awaitTermination(1000, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {			
 			e.printStackTrace();
 		} while( !exec.isTerminated() );	
 		
+		// Let client messages that are already queued finish
+		ExecutorService msgExec = messages.shutdown();
+		try {
+			msgExec.awaitTermination(5000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {			
+			e.printStackTrace();
+		}
+		
+		tracker.flush();
+		
 		System.out.println("Shutting down jetty server");		
 		try {			
 			server.stop();
@@ -533,6 +809,7 @@ public abstract class SessionServer extends Thread {
 
 	public void shutdown() {
 		running = false;
+		counts.signal();
 		
 		// TODO add stuff from above to in here, like auto expiring hits		
 //		Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -540,8 +817,6 @@ public abstract class SessionServer extends Thread {
 //				logger.info("Shutdown initiated");								
 //			}
 //		});
-		
-		this.interrupt();
 	}
 
 	protected abstract void runServerInit();
@@ -2,6 +2,7 @@ package edu.harvard.econcs.turkserver.server;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.GenericServlet;
 import javax.servlet.ServletException;
@@ -17,6 +18,8 @@ import org.cometd.server.authorizer.GrantAuthorizer;
 import org.cometd.server.ext.AcknowledgedMessagesExtension;
 import org.cometd.server.ext.TimesyncExtension;
 
+import com.google.common.collect.ImmutableSet;
+
 import edu.harvard.econcs.turkserver.Codec;
 import edu.harvard.econcs.turkserver.schema.Quiz;
 
@@ -24,6 +27,14 @@ public class SessionServlet extends GenericServlet {
 
 	private static final long serialVersionUID = -3882966106597782108L;	
 	
+	/**
+	 * How long clients should wait before resending a message that the server was too busy for
+	 */
+	static final long BUSY_RETRY_MILLIS = 1000;
+	
+	static final Set<String> USER_STATUSES = ImmutableSet.of(
+			Codec.hitView, Codec.hitAccept, Codec.quizResults, "inactive", Codec.hitSubmit);
+	
 	protected JettyCometD jettyServer;
 	protected SessionServer sessions;
 	
@@ -69,6 +80,20 @@ public class SessionServlet extends GenericServlet {
 	public ServerAnnotationProcessor getProcessor() {
 		return processor;
 	}
+	
+	/**
+	 * Handle a message off the transport thread, in order with other messages from the client,
+	 * or ask the client to resend it if there are too many waiting.
+	 * @param session
+	 * @param message
+	 * @param task
+	 */
+	protected void process(ServerSession session, ServerMessage message, Runnable task) {
+		if( sessions.process(session, task) ) return;
+		
+		sessions.logger.warn("Too busy for message from {}, asking to retry", session.getId());
+		SessionUtils.sendBusy(session, message.getChannel(), message.getDataAsMap(), BUSY_RETRY_MILLIS);
+	}
 
 	@Service("userdata")
     public class UserData {
@@ -81,9 +106,21 @@ public class SessionServlet extends GenericServlet {
 	    }
 	    
 		@Listener("/service/user")
-		public void userStatus(ServerSession session, ServerMessage message) {
-			Map<String, Object> data = message.getDataAsMap();
+		public void userStatus(final ServerSession session, ServerMessage message) {
+			final Map<String, Object> data = message.getDataAsMap();
 			
+			// Don't queue (or ask to resend) messages that are handled elsewhere
+			if( !USER_STATUSES.contains(String.valueOf(data.get("status"))) ) {
+				sessions.logger.warn("Unrecognized message " + data);
+				return;
+			}
+			
+			process(session, message, new Runnable() {
+				public void run() { userStatus(session, data); }
+			});
+		}
+		
+		void userStatus(ServerSession session, Map<String, Object> data) {			
 			String status = data.get("status").toString();						
 			String clientId = session.getId();
 			
@@ -154,9 +191,13 @@ public class SessionServlet extends GenericServlet {
 		}
 		
 		@Listener("/service/experiment/*")
-		public void listenServiceExperiment(ServerSession session, ServerMessage message) {													
+		public void listenServiceExperiment(final ServerSession session, ServerMessage message) {
+			final Map<String, Object> data = message.getDataAsMap();
+			
 			// Deliver this to the appropriate experiment server
-			sessions.rcvExperimentServiceMsg(session, message.getDataAsMap());			
+			process(session, message, new Runnable() {
+				public void run() { sessions.rcvExperimentServiceMsg(session, data); }
+			});
 		}
 		
 		@Configure("/experiment/*")
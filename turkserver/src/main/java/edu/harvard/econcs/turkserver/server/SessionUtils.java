@@ -33,6 +33,24 @@ public class SessionUtils {
 		sendServiceMsg(session, data);
 	}	
 	
+	/**
+	 * Tell a client that a message it sent wasn't handled and should be sent again later
+	 */
+	static void sendBusy(ServerSession session, String channel, Map<String, Object> message, long retryMillis) {
+		sendRetry(session, Codec.status_busy, channel, message, retryMillis);
+	}
+	
+	static void sendRetry(ServerSession session, String status, String channel, Map<String, Object> message, long retryMillis) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		
+		data.put("status", status);
+		data.put("channel", channel);
+		data.put("message", message);
+		data.put("retry", retryMillis);
+		
+		sendServiceMsg(session, data);
+	}
+	
 	static void sendServiceMsg(ServerSession session, Object data) {
 		session.deliver(session, "/service/user", data, null);
 	}
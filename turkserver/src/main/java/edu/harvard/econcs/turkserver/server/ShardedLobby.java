@@ -0,0 +1,325 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.harvard.econcs.turkserver.api.Configurator;
+import edu.harvard.econcs.turkserver.api.HITWorker;
+import edu.harvard.econcs.turkserver.config.TSConfig;
+
+/**
+ * Lobby split into shards for very large numbers of waiting workers.
+ *
+ * Workers are hashed to a shard when they join. Each shard is a lobby of
+ * its own, with its own ready queue and numbered changes, and its changes
+ * only go to the workers in it. Shards too small to form a group are
+ * merged every so often, so groups still form when few are waiting.
+ *
+ * Messages from a shard carry its name, so clients moved to another
+ * shard know to start over with the snapshot they get from it.
+ *
+ * @author mao
+ *
+ */
+public class ShardedLobby implements Lobby {
+
+	protected final Logger logger = LoggerFactory.getLogger(getClass().getSimpleName());
+
+	final Configurator configurator;
+	final List<Lobby> shards;
+	final List<String> names;
+	final long rebalanceMillis;
+
+	private final ConcurrentMap<HITWorkerImpl, Lobby> shardOf;
+	// Parked workers stay parked when moved
+	private final Set<HITWorkerImpl> parked;
+	// Keeps each worker from being moved while something else happens to them
+	private final Striped<Lock> workerLocks;
+
+	private LobbyListener lobbyListener;
+	private ScheduledExecutorService rebalancer;
+
+	/**
+	 * @param configurator
+	 * @param shards new lobbies for the shards, not set up yet
+	 * @param conf
+	 */
+	public ShardedLobby(Configurator configurator, List<? extends Lobby> shards, Configuration conf) {
+		this.configurator = configurator;
+		this.shards = new ArrayList<Lobby>(shards);
+		this.rebalanceMillis = conf.getLong(TSConfig.SERVER_LOBBY_REBALANCE, 0);
+
+		names = new ArrayList<String>(shards.size());
+		for( int i = 0; i < shards.size(); i++ ) names.add(String.valueOf(i));
+
+		shardOf = new MapMaker().makeMap();
+		parked = Collections.newSetFromMap(new MapMaker().<HITWorkerImpl, Boolean>makeMap());
+		workerLocks = Striped.lock(64);
+	}
+
+	@Override
+	public void setListener(LobbyListener listener) {
+		lobbyListener = listener;
+
+		for( int i = 0; i < shards.size(); i++ )
+			shards.get(i).setListener(new ShardListener(names.get(i), shards.get(i)));
+
+		if( rebalanceMillis > 0 && shards.size() > 1 && rebalancer == null ) {
+			rebalancer = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("lobby-rebalance").build());
+
+			rebalancer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try { rebalance(); }
+					catch (RuntimeException e) { logger.error("Error rebalancing lobby", e); }
+				}
+			}, rebalanceMillis, rebalanceMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Passes on what a shard sends to just the workers in it, tagged with its name
+	 */
+	class ShardListener implements LobbyListener {
+		final String name;
+		final Lobby shard;
+
+		ShardListener(String name, Lobby shard) {
+			this.name = name;
+			this.shard = shard;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object tag(Object data) {
+			if( data instanceof Map ) ((Map<String, Object>) data).put("shard", name);
+			return data;
+		}
+
+		@Override
+		public void broadcastLobbyMessage(Object data) {
+			lobbyListener.broadcastShardMessage(name, shard.getLobbyUsers(), tag(data));
+		}
+
+		@Override
+		public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {
+			lobbyListener.broadcastShardMessage(shard, to, data);
+		}
+
+		@Override
+		public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {
+			lobbyListener.sendLobbyMessage(hitw, tag(data));
+		}
+
+		@Override
+		public void createNewExperiment(HITWorkerGroupImpl group) {
+			for( HITWorker hitw : group.getHITWorkers() )
+				shardOf.remove(hitw, shard);
+
+			lobbyListener.createNewExperiment(group);
+		}
+
+		@Override
+		public int getNumExperimentsRunning() {
+			return lobbyListener.getNumExperimentsRunning();
+		}
+
+		@Override
+		public int getNumUsersConnected() {
+			return lobbyListener.getNumUsersConnected();
+		}
+	}
+
+	private Lobby hashed(HITWorkerImpl hitw) {
+		return shards.get((hitw.hashCode() & Integer.MAX_VALUE) % shards.size());
+	}
+
+	@Override
+	public void setMessage(String text) {
+		for( Lobby shard : shards ) shard.setMessage(text);
+	}
+
+	@Override
+	public void userJoined(HITWorkerImpl hitw) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			parked.remove(hitw);
+			
+			Lobby shard = shardOf.get(hitw);
+			if( shard == null ) shardOf.put(hitw, shard = hashed(hitw));
+
+			shard.userJoined(hitw);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public boolean userReconnected(HITWorkerImpl hitw) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			parked.remove(hitw);
+			
+			Lobby shard = shardOf.get(hitw);
+			return shard != null && shard.userReconnected(hitw);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public void userParked(HITWorkerImpl hitw) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			Lobby shard = shardOf.get(hitw);
+			if( shard == null ) return;
+			
+			parked.add(hitw);
+			shard.userParked(hitw);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public void userUpdated(HITWorkerImpl hitw) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			Lobby shard = shardOf.get(hitw);
+			if( shard != null ) shard.userUpdated(hitw);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public boolean updateStatus(HITWorkerImpl hitw, Map<String, Object> data) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			Lobby shard = shardOf.get(hitw);
+			return shard != null && shard.updateStatus(hitw, data);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public boolean userQuit(HITWorkerImpl hitw) {
+		if( hitw == null ) return false;
+
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			parked.remove(hitw);
+			
+			Lobby shard = shardOf.remove(hitw);
+			return shard != null && shard.userQuit(hitw);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override
+	public void sendSnapshot(HITWorkerImpl hitw) {
+		Lobby shard = shardOf.get(hitw);
+		if( shard != null ) shard.sendSnapshot(hitw);
+	}
+
+	@Override
+	public Object getStatus(HITWorkerImpl hitw) {
+		Lobby shard = shardOf.get(hitw);
+		return shard == null ? null : shard.getStatus(hitw);
+	}
+
+	@Override
+	public Set<HITWorkerImpl> getLobbyUsers() {
+		Set<HITWorkerImpl> users = shards.get(0).getLobbyUsers();
+		for( int i = 1; i < shards.size(); i++ )
+			users = Sets.union(users, shards.get(i).getLobbyUsers());
+		return users;
+	}
+
+	/**
+	 * Merge shards that don't have enough workers for a group,
+	 * the smallest into the largest, until at most one is left.
+	 */
+	void rebalance() {
+		final int groupSize = configurator.groupSize();
+
+		// Sizes as of now, as they keep changing
+		final Map<Lobby, Integer> sizes = new IdentityHashMap<Lobby, Integer>();
+		List<Lobby> underFull = new ArrayList<Lobby>();
+		for( Lobby shard : shards ) {
+			int n = shard.getLobbyUsers().size();
+			if( n == 0 || n >= groupSize ) continue;
+
+			sizes.put(shard, n);
+			underFull.add(shard);
+		}
+		if( underFull.size() < 2 ) return;
+
+		Collections.sort(underFull, new Comparator<Lobby>() {
+			public int compare(Lobby a, Lobby b) {
+				return sizes.get(b) - sizes.get(a);
+			}
+		});
+
+		LinkedList<Lobby> merging = new LinkedList<Lobby>(underFull);
+		int moved = 0;
+
+		while( merging.size() > 1 ) {
+			Lobby into = merging.getFirst();
+			Lobby from = merging.removeLast();
+
+			for( HITWorkerImpl hitw : new ArrayList<HITWorkerImpl>(from.getLobbyUsers()) )
+				if( move(hitw, from, into) ) moved++;
+
+			if( into.getLobbyUsers().size() >= groupSize ) merging.removeFirst();
+		}
+
+		logger.info("Merged {} under-full lobby shards, moving {} workers", underFull.size(), moved);
+	}
+
+	/*
+	 * Move a worker to another shard, keeping their status.
+	 */
+	private boolean move(HITWorkerImpl hitw, Lobby from, Lobby into) {
+		Lock lock = workerLocks.get(hitw);
+		lock.lock();
+		try {
+			// Left or grouped in the meantime
+			if( shardOf.get(hitw) != from ) return false;
+
+			Object status = from.getStatus(hitw);
+			if( status == null || !from.userQuit(hitw) ) return false;
+
+			shardOf.put(hitw, into);
+			into.userJoined(hitw);
+			into.updateStatus(hitw, ImmutableMap.of("ready", status));
+			if( parked.contains(hitw) ) into.userParked(hitw);
+			return true;
+		}
+		finally { lock.unlock(); }
+	}
+
+}
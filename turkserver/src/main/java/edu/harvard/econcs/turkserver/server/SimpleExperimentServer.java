@@ -72,23 +72,17 @@ public final class SimpleExperimentServer extends SessionServer {
 	}
 
 	@Override
-	protected HITWorkerImpl sessionAccept(ServerSession conn, 
-			String hitId, String assignmentId, String workerId) {
+	void sessionAdmitted(ServerSession conn, HITWorkerImpl hitw) {
 		
 		/*
 		 * At this point, the session is successfully authenticated, so we create an experiment  
 		 */
-		HITWorkerImpl hitw = super.sessionAccept(conn, hitId, assignmentId, workerId);
-		if( hitw == null ) return null;
-		
 		if( experiments.workerIsInProgress(hitw) ) {
 			super.sessionReconnect(conn, hitw);			
 		}
 		else {
 			ExperimentControllerImpl exp = experiments.startSingle(hitw);	
 		}				
-		
-		return hitw;
 	}
 
 	@Override
@@ -0,0 +1,85 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+import edu.harvard.econcs.turkserver.util.HashedWheelTimer;
+
+/**
+ * Waits for a set of sessions to subscribe to a set of channels, then
+ * releases exactly once, either when the last subscription arrives or
+ * when it times out. 
+ * 
+ * It also waits to be armed, so that subscriptions arriving while the 
+ * experiment is still being set up don't release it early.
+ *
+ * @author mao
+ *
+ */
+class SubscriptionBarrier {
+
+	static final String ARMING = "arming";
+
+	final String expId;
+	final String expChannel;
+	final Runnable action;
+	final long created;
+
+	// "sessionId channelId" pairs that haven't subscribed yet
+	final Set<String> waiting;
+	final AtomicBoolean released;
+
+	volatile HashedWheelTimer.Timeout timeout;
+
+	SubscriptionBarrier(String expId, String expChannel, Runnable action) {
+		this.expId = expId;
+		this.expChannel = expChannel;
+		this.action = action;
+		this.created = System.currentTimeMillis();
+
+		this.waiting = Sets.newSetFromMap(new MapMaker().<String, Boolean>makeMap());
+		this.released = new AtomicBoolean(false);
+		
+		waiting.add(ARMING);
+	}
+
+	static String key(String sessionId, String channelId) {
+		return sessionId + " " + channelId;
+	}
+
+	void await(String sessionId, String channelId) {
+		waiting.add(key(sessionId, channelId));
+	}
+
+	/**
+	 * @return true if this was the last subscription being waited for
+	 */
+	boolean subscribed(String sessionId, String channelId) {
+		return waiting.remove(key(sessionId, channelId)) && waiting.isEmpty();
+	}
+
+	/**
+	 * @return true if all subscriptions already arrived
+	 */
+	boolean arm() {
+		return waiting.remove(ARMING) && waiting.isEmpty();
+	}
+
+	/**
+	 * @return true if the caller should run the action
+	 */
+	boolean release() {
+		if( !released.compareAndSet(false, true) ) return false;
+
+		HashedWheelTimer.Timeout t = timeout;
+		if( t != null ) t.cancel();
+		return true;
+	}
+
+	long elapsedMillis() {
+		return System.currentTimeMillis() - created;
+	}
+}
@@ -84,8 +84,22 @@ public class WorkerAuthenticator {
 			tracker.saveHITId(hitId);								
 		}
 		else {
-			// Check for pathologies with previously used HITs
-			
+			checkSessionReuse(hitId, workerId, existingRecord);
+		}
+	}
+	
+	/**
+	 * Check for pathologies with previously used HITs, without saving anything
+	 * @param hitId
+	 * @param workerId
+	 * @param existingRecord the stored session, or null if there is none
+	 * @throws SessionCompletedException
+	 * @throws SessionOverlapException
+	 */
+	public void checkSessionReuse(String hitId, String workerId, Session existingRecord) 
+			throws SessionCompletedException, SessionOverlapException {
+		
+		if( existingRecord != null ) {
 			if( workerId.equals(existingRecord.getWorkerId()) ) { 							
 				if( SessionRecord.status(existingRecord) == SessionStatus.COMPLETED ) { 
 					/* This session already had a previous assignment and 
@@ -133,13 +147,23 @@ public class WorkerAuthenticator {
 	throws SimultaneousSessionsException, TooManySessionsException {		
 		if (existingRecord == null)	existingRecord = tracker.getStoredSessionInfo(hitId);
 		
+		checkWorkerLimits(workerId, existingRecord, tracker.getSetSessionInfoForWorker(workerId));
+	}
+	
+	/**
+	 * Check worker limits against sessions that were already loaded
+	 * @param workerId
+	 * @param existingRecord the stored session for this HIT, if any
+	 * @param allSessions the worker's sessions in this set
+	 */
+	public void checkWorkerLimits(String workerId, Session existingRecord, Collection<Session> allSessions)
+	throws SimultaneousSessionsException, TooManySessionsException {
+		
 		/* This could be null if no other worker has taken the HIT yet 
 		 * will not be null if this session was disconnected after an experiment		
 		 */
 		String prevWorkerId = existingRecord == null ? null : existingRecord.getWorkerId();
 
-		Collection<Session> allSessions = tracker.getSetSessionInfoForWorker(workerId);
-
 		// Return if no sessions so far in this set
 		if( allSessions == null || allSessions.size() == 0 ) return;		
 		
@@ -180,7 +204,16 @@ public class WorkerAuthenticator {
 	public boolean workerRequiresQuiz(String workerId) throws TooManyFailsException {				
 		if( quizPolicy == null ) return false;
 		
-		Collection<Quiz> results = tracker.getSetQuizRecords(workerId);
+		return workerRequiresQuiz(tracker.getSetQuizRecords(workerId));
+	}
+	
+	/**
+	 * Does a worker with these quiz results need to take a quiz?
+	 * @param results the worker's quiz records in the current set
+	 * @return
+	 */
+	public boolean workerRequiresQuiz(Collection<Quiz> results) throws TooManyFailsException {
+		if( quizPolicy == null ) return false;
 				
 		if( !quizPolicy.requiresQuiz(results) ) return false;
 		
@@ -206,6 +239,14 @@ public class WorkerAuthenticator {
 		return quizPolicy.quizPasses(qr);
 	}
 	
+	/**
+	 * Whether quiz records are needed to admit workers
+	 * @return
+	 */
+	public boolean usesQuiz() {
+		return quizPolicy != null;
+	}
+	
 	public QuizMaterials getQuiz() {		
 		return quizFactory.getQuiz();
 	}
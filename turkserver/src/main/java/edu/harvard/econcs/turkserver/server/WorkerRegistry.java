@@ -0,0 +1,109 @@
+package edu.harvard.econcs.turkserver.server;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.server.ServerSession;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
+
+/**
+ * HIT workers known to the server, by transport session and by HIT and worker.
+ *
+ * Workers that are still taking part stay until they are retired, when
+ * they complete or abandon their HIT. Retired workers are forgotten after
+ * a while, and are rebuilt from the tracker if they come back later.
+ * Transport sessions are weakly held, so sessions that are gone
+ * don't keep their workers around.
+ *
+ * @author mao
+ *
+ */
+public class WorkerRegistry {
+
+	private final ConcurrentMap<ServerSession, HITWorkerImpl> bySession;
+
+	private final ConcurrentMap<String, HITWorkerImpl> live;
+	private final Cache<String, HITWorkerImpl> retired;
+	
+	// Key each worker was added under, as its record can change
+	private final ConcurrentMap<HITWorkerImpl, String> keys;
+
+	public WorkerRegistry(long retiredTTL, TimeUnit unit) {
+		bySession = new MapMaker().weakKeys().makeMap();
+		live = new MapMaker().makeMap();
+		keys = new MapMaker().weakKeys().makeMap();
+
+		retired = CacheBuilder.newBuilder()
+				.expireAfterWrite(retiredTTL, unit)
+				.build();
+	}
+
+	static String key(String hitId, String workerId) {
+		return hitId + "/" + workerId;
+	}
+
+	/* ****************************************************
+	 * By transport session
+	 ******************************************************/
+
+	public HITWorkerImpl get(ServerSession conn) {
+		return bySession.get(conn);
+	}
+
+	public void put(ServerSession conn, HITWorkerImpl hitw) {
+		bySession.put(conn, hitw);
+	}
+
+	public HITWorkerImpl remove(ServerSession conn) {
+		return bySession.remove(conn);
+	}
+
+	/* ****************************************************
+	 * By HIT and worker
+	 ******************************************************/
+
+	public HITWorkerImpl get(String hitId, String workerId) {
+		String key = key(hitId, workerId);
+
+		HITWorkerImpl hitw = live.get(key);
+		return hitw != null ? hitw : retired.getIfPresent(key);
+	}
+
+	/**
+	 * Add a worker that is taking part, or bring back a retired one
+	 */
+	public void put(String hitId, String workerId, HITWorkerImpl hitw) {
+		String key = key(hitId, workerId);
+
+		live.put(key, hitw);
+		keys.put(hitw, key);
+		retired.invalidate(key);
+	}
+
+	/**
+	 * Forget a worker after a while, once it has completed or abandoned its HIT
+	 * @param hitw
+	 */
+	public void retire(HITWorkerImpl hitw) {
+		String key = keys.get(hitw);
+
+		if( key != null && live.remove(key, hitw) ) retired.put(key, hitw);
+	}
+
+	public int getLiveCount() {
+		return live.size();
+	}
+
+	public long getRetiredCount() {
+		retired.cleanUp();
+		return retired.size();
+	}
+
+	public int getSessionCount() {
+		return bySession.size();
+	}
+
+}
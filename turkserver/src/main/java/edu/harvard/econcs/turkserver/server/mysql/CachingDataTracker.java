@@ -0,0 +1,420 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import edu.harvard.econcs.turkserver.schema.Experiment;
+import edu.harvard.econcs.turkserver.schema.Quiz;
+import edu.harvard.econcs.turkserver.schema.Round;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+/**
+ * Keeps recently used sessions in memory in front of another tracker,
+ * by hitId and by worker within the set. Writes go through to the other
+ * tracker and update or invalidate the cached sessions.
+ *
+ * There is only ever one cached Session object for each hitId,
+ * which is what gets handed out and saved back.
+ *
+ * A write to a session or worker while it is being read from the other
+ * tracker makes that read stale, so whatever it cached is taken out again.
+ *
+ * @author mao
+ *
+ */
+public class CachingDataTracker extends ExperimentDataTracker {
+
+	static final long EXPIRE_MINUTES = 10;
+
+	static class CachedSession {
+		final Session record;
+		// Worker the session was indexed under, as the record can change
+		final String workerId;
+
+		CachedSession(Session record) {
+			this.record = record;
+			this.workerId = record == null ? null : record.getWorkerId();
+		}
+	}
+
+	/**
+	 * A read from the other tracker, and what it cached
+	 */
+	class Load {
+		final Object token = new Object();
+		final String hitId;
+		final String workerId;
+
+		final List<Map.Entry<String, Optional<CachedSession>>> sessions = new ArrayList<>();
+		List<Session> workerSessions;
+
+		Load(String hitId, String workerId) {
+			this.hitId = hitId;
+			this.workerId = workerId;
+
+			// Any write to these from now on replaces or removes the token
+			if( hitId != null ) hitLoads.put(hitId, token);
+			if( workerId != null ) workerLoads.put(workerId, token);
+		}
+
+		void cached(String hitId, Optional<CachedSession> entry) {
+			sessions.add(Maps.immutableEntry(hitId, entry));
+		}
+
+		void cachedWorker(List<Session> records) {
+			workerSessions = records;
+		}
+
+		/**
+		 * Take out what was cached if there were writes while loading
+		 */
+		void done() {
+			boolean stale = hitId != null && !hitLoads.remove(hitId, token);
+			stale |= workerId != null && !workerLoads.remove(workerId, token);
+			if( !stale ) return;
+
+			for( Map.Entry<String, Optional<CachedSession>> e : sessions )
+				byHit.asMap().remove(e.getKey(), e.getValue());
+			if( workerSessions != null )
+				byWorker.asMap().remove(workerId, workerSessions);
+		}
+	}
+
+	final ExperimentDataTracker delegate;
+
+	// Absent for sessions known not to exist
+	final Cache<String, Optional<CachedSession>> byHit;
+	final Cache<String, List<Session>> byWorker;
+
+	// Reads in progress from the other tracker
+	final ConcurrentMap<String, Object> hitLoads;
+	final ConcurrentMap<String, Object> workerLoads;
+
+	public CachingDataTracker(ExperimentDataTracker delegate, int maxSessions) {
+		this.delegate = delegate;
+
+		byHit = CacheBuilder.newBuilder()
+				.maximumSize(maxSessions)
+				.expireAfterWrite(EXPIRE_MINUTES, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+
+		byWorker = CacheBuilder.newBuilder()
+				.maximumSize(maxSessions)
+				.expireAfterWrite(EXPIRE_MINUTES, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+
+		MapMaker concMapMaker = new MapMaker();
+		hitLoads = concMapMaker.makeMap();
+		workerLoads = concMapMaker.makeMap();
+	}
+
+	public CacheStats getSessionStats() {
+		return byHit.stats();
+	}
+
+	public CacheStats getWorkerStats() {
+		return byWorker.stats();
+	}
+
+	/*
+	 * Lookups that aren't on behalf of a read go through asMap(), so they don't count in stats
+	 */
+
+	/**
+	 * Use the cached copy of a session if there is one, otherwise cache this one
+	 */
+	Session canonical(Session record, Load load) {
+		if( record == null ) return null;
+
+		ConcurrentMap<String, Optional<CachedSession>> map = byHit.asMap();
+		Optional<CachedSession> fresh = Optional.of(new CachedSession(record));
+
+		while(true) {
+			Optional<CachedSession> cached = map.putIfAbsent(record.getHitId(), fresh);
+			if( cached != null && cached.isPresent() ) return cached.get().record;
+
+			// Wasn't there before, but it is now
+			if( cached == null || map.replace(record.getHitId(), cached, fresh) ) {
+				load.cached(record.getHitId(), fresh);
+				return record;
+			}
+		}
+	}
+
+	List<Session> canonical(Collection<Session> records, Load load) {
+		ImmutableList.Builder<Session> builder = ImmutableList.builder();
+		for( Session s : records ) builder.add(canonical(s, load));
+		return builder.build();
+	}
+
+	void cacheAbsent(String hitId, Load load) {
+		Optional<CachedSession> absent = Optional.<CachedSession>absent();
+		if( byHit.asMap().putIfAbsent(hitId, absent) == null ) load.cached(hitId, absent);
+	}
+
+	void cacheWorker(String workerId, List<Session> records, Load load) {
+		if( byWorker.asMap().putIfAbsent(workerId, records) == null ) load.cachedWorker(records);
+	}
+
+	/**
+	 * Update the cache after a session was written
+	 */
+	void written(Session record) {
+		String hitId = record.getHitId();
+		hitLoads.remove(hitId);
+
+		Optional<CachedSession> old = byHit.asMap().get(hitId);
+		if( old != null && old.isPresent() && !Objects.equal(old.get().workerId, record.getWorkerId()) )
+			invalidateWorker(old.get().workerId);
+
+		byHit.put(hitId, Optional.of(new CachedSession(record)));
+		invalidateWorker(record.getWorkerId());
+	}
+
+	void invalidate(String hitId) {
+		hitLoads.remove(hitId);
+
+		Optional<CachedSession> old = byHit.asMap().get(hitId);
+		byHit.invalidate(hitId);
+
+		if( old != null && old.isPresent() ) {
+			invalidateWorker(old.get().workerId);
+			invalidateWorker(old.get().record.getWorkerId());
+		}
+	}
+
+	void invalidateWorker(String workerId) {
+		if( workerId == null ) return;
+
+		workerLoads.remove(workerId);
+		byWorker.invalidate(workerId);
+	}
+
+	/* ****************************************************
+	 * Cached reads
+	 ******************************************************/
+
+	@Override
+	public boolean hitExistsInDB(String hitID) {
+		return getStoredSessionInfo(hitID) != null;
+	}
+
+	@Override
+	public Session getStoredSessionInfo(String hitId) {
+		Optional<CachedSession> cached = byHit.getIfPresent(hitId);
+		if( cached != null ) return cached.isPresent() ? cached.get().record : null;
+
+		Load load = new Load(hitId, null);
+		try {
+			Session record = delegate.getStoredSessionInfo(hitId);
+			if( record == null ) {
+				cacheAbsent(hitId, load);
+				return null;
+			}
+			return canonical(record, load);
+		}
+		finally { load.done(); }
+	}
+
+	@Override
+	public Collection<Session> getSetSessionInfoForWorker(String workerId) {
+		List<Session> cached = byWorker.getIfPresent(workerId);
+		if( cached != null ) return cached;
+
+		Load load = new Load(null, workerId);
+		try {
+			Collection<Session> sessions = delegate.getSetSessionInfoForWorker(workerId);
+			if( sessions == null ) return null;
+
+			List<Session> records = canonical(sessions, load);
+			cacheWorker(workerId, records, load);
+			return records;
+		}
+		finally { load.done(); }
+	}
+
+	@Override
+	public Admission getAdmission(String hitId, String workerId, boolean withQuizzes) {
+		Optional<CachedSession> session = byHit.getIfPresent(hitId);
+		List<Session> workerSessions = byWorker.getIfPresent(workerId);
+
+		if( session != null && workerSessions != null ) {
+			return new Admission(session.isPresent() ? session.get().record : null, workerSessions,
+					withQuizzes ? delegate.getSetQuizRecords(workerId) : null);
+		}
+
+		Load load = new Load(hitId, workerId);
+		try {
+			Admission loaded = delegate.getAdmission(hitId, workerId, withQuizzes);
+
+			Session record = canonical(loaded.session, load);
+			if( record == null ) cacheAbsent(hitId, load);
+
+			if( loaded.workerSessions == null ) return new Admission(record, null, loaded.quizzes);
+
+			workerSessions = canonical(loaded.workerSessions, load);
+			cacheWorker(workerId, workerSessions, load);
+
+			return new Admission(record, workerSessions, loaded.quizzes);
+		}
+		finally { load.done(); }
+	}
+
+	/* ****************************************************
+	 * Other reads
+	 ******************************************************/
+
+	@Override
+	public Collection<Experiment> getSetExperiments() {
+		return delegate.getSetExperiments();
+	}
+
+	@Override
+	public Experiment getExperiment(String experimentId) {
+		return delegate.getExperiment(experimentId);
+	}
+
+	@Override
+	public Multimap<Experiment, Session> getAllExperimentSessions() {
+		return delegate.getAllExperimentSessions();
+	}
+
+	@Override
+	public List<Round> getExperimentRounds(String experimentId) {
+		return delegate.getExperimentRounds(experimentId);
+	}
+
+	@Override
+	public Multimap<Experiment, Round> getAllExperimentRounds() {
+		return delegate.getAllExperimentRounds();
+	}
+
+	@Override
+	public List<Session> getCompletedSessions() {
+		return delegate.getCompletedSessions();
+	}
+
+	@Override
+	public SessionSummary getSetSessionSummary() {
+		return delegate.getSetSessionSummary();
+	}
+
+	@Override
+	public SessionSummary getFreshSessionSummary() {
+		return delegate.getFreshSessionSummary();
+	}
+
+	@Override
+	public Collection<Quiz> getSetQuizRecords(String workerId) {
+		return delegate.getSetQuizRecords(workerId);
+	}
+
+	/* ****************************************************
+	 * Writes go through
+	 ******************************************************/
+
+	@Override
+	public void flush() {
+		delegate.flush();
+	}
+
+	@Override
+	protected void writeBatch(Runnable writes) {
+		delegate.writeBatch(writes);
+	}
+
+	@Override
+	public void saveSession(Session record) {
+		delegate.saveSession(record);
+		written(record);
+	}
+
+	@Override
+	protected void saveNewSession(Session record) {
+		delegate.saveNewSession(record);
+		written(record);
+	}
+
+	@Override
+	public void saveHITId(String hitId) {
+		delegate.saveHITId(hitId);
+
+		// Exists now, but we don't know what else is in it
+		hitLoads.remove(hitId);
+		Optional<CachedSession> cached = byHit.asMap().get(hitId);
+		if( cached != null && !cached.isPresent() ) byHit.invalidate(hitId);
+	}
+
+	@Override
+	public void saveQuizResults(String hitId, String workerId, Quiz qr) {
+		delegate.saveQuizResults(hitId, workerId, qr);
+	}
+
+	@Override
+	protected void saveExpStartTime(String expId, int size, String inputdata, long startTime) {
+		delegate.saveExpStartTime(expId, size, inputdata, startTime);
+	}
+
+	@Override
+	protected void saveExpRoundStart(String expId, int round, long startTime) {
+		delegate.saveExpRoundStart(expId, round, startTime);
+	}
+
+	@Override
+	protected void saveExpRoundInput(String expId, int currentRound, String inputData) {
+		delegate.saveExpRoundInput(expId, currentRound, inputData);
+	}
+
+	@Override
+	protected void saveExpRoundEnd(String expId, int round, long endTime, String roundLog) {
+		delegate.saveExpRoundEnd(expId, round, endTime, roundLog);
+	}
+
+	@Override
+	protected void saveExpEndInfo(String expId, long endTime, String logOutput) {
+		delegate.saveExpEndInfo(expId, endTime, logOutput);
+	}
+
+	@Override
+	public void clearWorkerForSession(String hitId) {
+		delegate.clearWorkerForSession(hitId);
+		invalidate(hitId);
+	}
+
+	@Override
+	public boolean deleteSession(String hitId) {
+		boolean deleted = delegate.deleteSession(hitId);
+		invalidate(hitId);
+		return deleted;
+	}
+
+	@Override
+	public List<Session> expireUnusedSessions() {
+		List<Session> expired = delegate.expireUnusedSessions();
+
+		if( expired != null ) {
+			for( Session s : expired ) {
+				invalidate(s.getHitId());
+				invalidateWorker(s.getWorkerId());
+			}
+		}
+		return expired;
+	}
+
+}
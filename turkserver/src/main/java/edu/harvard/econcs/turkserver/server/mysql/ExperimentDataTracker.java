@@ -51,6 +51,47 @@ public abstract class ExperimentDataTracker {
 		}
 	}
 
+	/**
+	 * Everything needed to decide whether to admit a worker to a HIT
+	 */
+	public static class Admission {
+		
+		/**
+		 * Stored session for the HIT, or null if none
+		 */
+		public final Session session;
+		/**
+		 * The worker's sessions in this set
+		 */
+		public final Collection<Session> workerSessions;
+		/**
+		 * The worker's quiz records in this set, if they were asked for
+		 */
+		public final Collection<Quiz> quizzes;
+		
+		Admission(Session session, Collection<Session> workerSessions, Collection<Quiz> quizzes) {
+			this.session = session;
+			this.workerSessions = workerSessions;
+			this.quizzes = quizzes;
+		}
+	}
+	
+	/**
+	 * Blocks until every write made before this call is durable.
+	 * Trackers that write synchronously are always flushed.
+	 */
+	public void flush() {
+		
+	}
+	
+	/**
+	 * Runs a group of writes, in a single transaction if the tracker supports it.
+	 * @param writes
+	 */
+	protected void writeBatch(Runnable writes) {
+		writes.run();
+	}
+
 	/**
 	 * Get all experiments in this set
 	 * @return
@@ -103,6 +144,15 @@ public abstract class ExperimentDataTracker {
 	 */
 	public abstract SessionSummary getSetSessionSummary();
 
+	/**
+	 * Like {@link #getSetSessionSummary()}, but read now instead of from a 
+	 * recent copy, e.g. to reconcile counts kept up to date elsewhere
+	 * @return
+	 */
+	public SessionSummary getFreshSessionSummary() {
+		return getSetSessionSummary();
+	}
+
 	/**
 	 * Get the quiz results in the current set for the worker in question
 	 * @param workerId
@@ -125,6 +175,18 @@ public abstract class ExperimentDataTracker {
 	 */	
 	public abstract Session getStoredSessionInfo(String hitId);
 	
+	/**
+	 * Load everything about a worker accepting a HIT at once
+	 * @param hitId
+	 * @param workerId
+	 * @param withQuizzes whether to load quiz records as well
+	 * @return
+	 */
+	public Admission getAdmission(String hitId, String workerId, boolean withQuizzes) {
+		return new Admission(getStoredSessionInfo(hitId), getSetSessionInfoForWorker(workerId),
+				withQuizzes ? getSetQuizRecords(workerId) : null);
+	}
+	
 	/**
 	 * To be implemented method to save the session for a tracker
 	 * @param record
@@ -160,6 +222,40 @@ public abstract class ExperimentDataTracker {
 		saveSession(record);
 	}
 
+	/**
+	 * Record an admitted worker's assignment and connection for a session,
+	 * which may not have been stored yet, in one go
+	 * @param session
+	 * @param assignmentId
+	 * @param workerId
+	 * @param remoteAddress
+	 * @param lobbyTime
+	 */
+	public void saveAdmission(HITWorkerImpl session, String assignmentId, String workerId, 
+			InetAddress remoteAddress, Date lobbyTime) {
+		Session record = session.getSessionRecord();
+		
+		record.setAssignmentId(assignmentId);
+		record.setWorkerId(workerId);
+		record.setIpAddr(remoteAddress.getHostAddress());
+		record.setLobbyTime(new Timestamp(lobbyTime.getTime()));
+		
+		saveNewSession(record);
+	}
+	
+	/**
+	 * Save a session, creating it in the current set if it doesn't exist
+	 * @param record
+	 */
+	protected void saveNewSession(final Session record) {
+		writeBatch(new Runnable() {
+			public void run() {
+				if( !hitExistsInDB(record.getHitId()) ) saveHITId(record.getHitId());
+				saveSession(record);
+			}			
+		});
+	}
+
 	/**
 	 * Associate a user name to a session (only for the lobby anyway)
 	 * Can also store the time this happened
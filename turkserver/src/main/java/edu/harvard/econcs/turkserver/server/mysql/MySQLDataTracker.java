@@ -2,7 +2,6 @@ package edu.harvard.econcs.turkserver.server.mysql;
 
 import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.schema.*;
-import edu.harvard.econcs.turkserver.server.HITWorkerImpl;
 import edu.harvard.econcs.turkserver.server.SessionRecord;
 import edu.harvard.econcs.turkserver.server.SessionRecord.SessionStatus;
 
@@ -11,12 +10,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.configuration.Configuration;
 
@@ -36,6 +41,7 @@ import com.mysema.query.sql.SQLTemplates;
 import com.mysema.query.sql.dml.SQLDeleteClause;
 import com.mysema.query.sql.dml.SQLInsertClause;
 import com.mysema.query.sql.dml.SQLUpdateClause;
+import com.mysema.query.types.Path;
 import com.mysema.query.types.TemplateExpressionImpl;
 import com.mysema.query.types.expr.Wildcard;
 import com.mysql.jdbc.jdbc2.optional.MysqlConnectionPoolDataSource;
@@ -65,10 +71,27 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 	QQuiz _quiz = QQuiz.quiz;
 	QWorker _worker = QWorker.worker;
 	
+	static final int SNAPSHOT_ROWS = 10000;
+	static final long SUMMARY_TTL_MILLIS = 1000;
+	
 	private String setID;		
 	
 	private final BoneCPDataSource pbds;	
 	private final SQLTemplates dialect;	
+	
+	private final ThreadLocal<Connection> batchConn = new ThreadLocal<>();
+	// Snapshot updates that only hold once the batch is committed
+	private final ThreadLocal<List<Runnable>> batchWritten = new ThreadLocal<>();
+	
+	// Last known contents of session rows, for writing only changed columns
+	private final SessionSnapshots snapshots = new SessionSnapshots(SNAPSHOT_ROWS);
+	
+	// Set summary shared by all callers for a short while, guarded by itself.
+	// Session writes don't clear it; it is at most SUMMARY_TTL_MILLIS out of date
+	private final Object summaryLock = new Object();
+	private SessionSummary summary = null;
+	private long summaryTime = 0;
+	private long summaryVersion = 0;
 
 	@Inject
 	public MySQLDataTracker(MysqlConnectionPoolDataSource ds) {
@@ -94,13 +117,107 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 		dialect = new MySQLTemplates();					
 	}
 	
+	/**
+	 * Connection for the current thread, which is shared 
+	 * (and left open on close) while a batch is being written
+	 */
+	private Connection getConnection() throws SQLException {
+		Connection conn = batchConn.get();
+		return conn != null ? conn : pbds.getConnection();
+	}
+	
+	@Override
+	protected void writeBatch(Runnable writes) {
+		// Already part of a batch
+		if( batchConn.get() != null ) {
+			writes.run();
+			return;
+		}
+		
+		try( final Connection conn = pbds.getConnection() ) {
+			conn.setAutoCommit(false);
+			
+			batchConn.set((Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, 
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							if( "close".equals(method.getName()) ) return null;
+							try { return method.invoke(conn, args); }
+							catch( InvocationTargetException e ) { throw e.getCause(); }
+						}
+					}));
+			
+			List<Runnable> written = new ArrayList<>();
+			batchWritten.set(written);
+			
+			try {
+				writes.run();
+				conn.commit();
+				
+				for( Runnable r : written ) r.run();
+			} catch( SQLException | RuntimeException e ) {
+				conn.rollback();
+				// Anything written in this batch is gone
+				snapshots.invalidateAll();
+				throw e;
+			} finally {
+				batchConn.remove();
+				batchWritten.remove();
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Inside a batch, a failed statement has to fail the whole batch
+	 */
+	private void failed(SQLException e) {
+		if( batchConn.get() != null ) throw new RuntimeException(e);
+		e.printStackTrace();
+	}
+	
+	/**
+	 * Remember the columns written to a session, once they are committed
+	 */
+	private void written(final String hitId, final Map<Path<?>, Object> columns, long generation) {
+		List<Runnable> batch = batchWritten.get();
+		if( batch == null ) {
+			snapshots.written(hitId, columns, generation);
+			return;
+		}
+		
+		// Not committed yet, so don't trust what anyone reads in the meantime either
+		snapshots.invalidate(hitId);
+		final long invalidated = snapshots.generation(hitId);
+		batch.add(new Runnable() {
+			public void run() { snapshots.written(hitId, columns, invalidated); }
+		});
+	}
+	
+	/**
+	 * Forget a session that was changed, now and when the batch is committed
+	 */
+	private void invalidate(final String hitId) {
+		snapshots.invalidate(hitId);
+		
+		List<Runnable> batch = batchWritten.get();
+		if( batch == null ) return;
+		
+		batch.add(new Runnable() {
+			public void run() { snapshots.invalidate(hitId); }
+		});
+	}
+	
 	@Inject
 	public void setSetId(@Named(TSConfig.EXP_SETID) String setID) {
 		this.setID = setID;		
+		summaryChanged();
 		
 		System.out.println("Experiment set ID is " + setID);
 		
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			// ensure this setId exists
 			new SQLInsertClause(conn, dialect, _sets)
@@ -109,46 +226,46 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.addFlag(Position.START_OVERRIDE, "INSERT IGNORE INTO ")
 			.execute();
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 	
 	public List<Sets> getAllSets() {
-		try( Connection conn = pbds.getConnection() ) {				
+		try( Connection conn = getConnection() ) {				
 			// ensure this setId exists
 			return new SQLQueryImpl(conn, dialect)
 			.from(_sets)			
 			.list(_sets);
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return null;
 	}
 
 	@Override
 	public Experiment getExperiment(String experimentId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			return new SQLQueryImpl(conn, dialect)
 			.from(_experiment)
 			.where(_experiment.id.eq(experimentId))
 			.singleResult(_experiment);
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 
 		return null;		
 	}
 
 	@Override
 	public Collection<Experiment> getSetExperiments() {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			return new SQLQueryImpl(conn, dialect)
 			.from(_experiment)
 			.where(_experiment.setId.eq(setID))
 			.list(_experiment);
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 
 		return null;
 	}
@@ -158,7 +275,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 		Multimap<Experiment, Session> result = HashMultimap.create();
 		Collection<Experiment> expsInSet = getSetExperiments();
 		
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			for( Experiment e : expsInSet ) {
 				List<Session> sessions = new SQLQueryImpl(conn, dialect)
 				.from(_session)
@@ -168,7 +285,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 				for( Session s : sessions ) result.put(e, s);
 			}			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 			return null;
 		} 
 		
@@ -177,7 +294,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 
 	@Override
 	public List<Round> getExperimentRounds(String experimentId) {
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			
 			return new SQLQueryImpl(conn, dialect)
 			.from(_round)
@@ -185,7 +302,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.list(_round);
 										
 		} catch (SQLException e) {			
-			e.printStackTrace();			
+			failed(e);			
 		} 		
 		return null;
 	}
@@ -195,7 +312,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 		Multimap<Experiment, Round> result = HashMultimap.create();
 		Collection<Experiment> expsInSet = getSetExperiments();
 		
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			for( Experiment e : expsInSet ) {
 				List<Round> rounds = new SQLQueryImpl(conn, dialect)
 				.from(_round)
@@ -205,7 +322,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 				for( Round r : rounds ) result.put(e, r);
 			}			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 			return null;
 		} 
 		
@@ -214,7 +331,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 
 	@Override
 	public List<Session> getCompletedSessions() {
-		try( Connection conn = pbds.getConnection() ) {
+		try( Connection conn = getConnection() ) {
 			
 //			"SELECT hitId, assignmentId, workerId " +				
 //			"FROM session " +				
@@ -222,21 +339,21 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 //			"AND setId=? " + // Use this line to filter by some set
 //			"AND paid IS NULL";
 			
-			return new SQLQueryImpl(conn, dialect)
+			return snapshot(new SQLQueryImpl(conn, dialect)
 			.from(_session)
 			.where(_session.setId.eq(setID),
 					_session.inactivePercent.isNotNull())
-			.list(_session);
+			.list(_session));
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 				
 		return null;
 	}
 
 	@Override
 	public boolean hitExistsInDB(String hitId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 						
 			long count = new SQLQueryImpl(conn, dialect)
 			.from(_session)
@@ -255,49 +372,85 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 //			else return false;
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 
 		return false;		
 	}
 
+	/**
+	 * Forget the cached summary when the set changes or is cleared
+	 */
+	private void summaryChanged() {
+		synchronized(summaryLock) {
+			summary = null;
+			summaryVersion++;
+		}
+	}
+	
 	@Override
 	public SessionSummary getSetSessionSummary() {
-		try( Connection conn = pbds.getConnection() ) {						
-			SQLQuery query;
-			
-			query = new SQLQueryImpl(conn, dialect);			
-			int created = query.from(_session)
-					.where(_session.setId.eq(setID))
-					.singleResult(Wildcard.countAsInt);
-			
-			query = new SQLQueryImpl(conn, dialect);
-			int assigned = query.from(_session)
-					.where(_session.setId.eq(setID),
-							_session.workerId.isNotNull())
-					.singleResult(Wildcard.countAsInt);
-			
-			query = new SQLQueryImpl(conn, dialect);
-			int completed = query.from(_session)
-					.where(_session.setId.eq(setID),
-							_session.inactivePercent.isNotNull())
-					.singleResult(Wildcard.countAsInt);
-			
-			query = new SQLQueryImpl(conn, dialect);
-			int submitted = query.from(_session)
-					.where(_session.setId.eq(setID),
-							_session.comment.isNotNull())
-					.singleResult(Wildcard.countAsInt);
-			
-			return new SessionSummary(created, assigned, completed, submitted);
+		long version;
+		synchronized(summaryLock) {
+			if( summary != null && System.currentTimeMillis() < summaryTime + SUMMARY_TTL_MILLIS )
+				return summary;
+			version = summaryVersion;
+		}
+		
+		return cacheSummary(querySessionSummary(), version);
+	}
+	
+	@Override
+	public SessionSummary getFreshSessionSummary() {
+		long version;
+		synchronized(summaryLock) {
+			version = summaryVersion;
+		}
+		
+		// Others may as well use it too
+		return cacheSummary(querySessionSummary(), version);
+	}
+	
+	private SessionSummary cacheSummary(SessionSummary current, long version) {
+		synchronized(summaryLock) {
+			// Don't cache if the set changed while we were reading
+			if( current != null && version == summaryVersion ) {
+				summary = current;
+				summaryTime = System.currentTimeMillis();
+			}
+		}
+		return current;
+	}
+	
+	private SessionSummary querySessionSummary() {
+		try( Connection conn = getConnection() ) {
+			
+			/*
+			 * One pass over the set, counting non-null columns:
+			 * SELECT COUNT(*), COUNT(workerId), COUNT(inactivePercent), COUNT(comment) 
+			 * FROM session WHERE setId=?
+			 */
+			Object[] counts = new SQLQueryImpl(conn, dialect)
+			.from(_session)
+			.where(_session.setId.eq(setID))
+			.singleResult(Wildcard.count, 
+					_session.workerId.count(), 
+					_session.inactivePercent.count(), 
+					_session.comment.count());
+			
+			return new SessionSummary(
+					((Number) counts[0]).intValue(), 
+					((Number) counts[1]).intValue(), 
+					((Number) counts[2]).intValue(), 
+					((Number) counts[3]).intValue());
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return null;
 	}
 
 	@Override
 	public Collection<Quiz> getSetQuizRecords(String workerId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			SQLQuery query = new SQLQueryImpl(conn, dialect);
 			
@@ -307,46 +460,91 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 					.list(_quiz);
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return null;		
 	}
 
 	@Override
 	public Collection<Session> getSetSessionInfoForWorker(String workerId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			SQLQuery query = new SQLQueryImpl(conn, dialect);
 			
-			return query.from(_session)
+			return snapshot(query.from(_session)
 					.where(_session.workerId.eq(workerId),
 							_session.setId.eq(setID))
-					.list(_session);
+					.list(_session));
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return null;
 	}
 
 	@Override
 	public Session getStoredSessionInfo(String hitId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
-			List<Session> result = new SQLQueryImpl(conn, dialect)
+			List<Session> result = snapshot(new SQLQueryImpl(conn, dialect)
 			.from(_session)
 			.where(_session.hitId.eq(hitId))
-			.list(_session);
+			.list(_session));
 				
 			// Return the first element if one exists
 			return (result == null || result.size() == 0 ? null : result.get(0));
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 
 		return null;
 	}
 
+	@Override
+	public Admission getAdmission(String hitId, String workerId, boolean withQuizzes) {
+		try( Connection conn = getConnection() ) {
+			
+			/*
+			 * SELECT * FROM session WHERE hitId=? OR (workerId=? AND setId=?)
+			 */
+			List<Session> sessions = snapshot(new SQLQueryImpl(conn, dialect)
+			.from(_session)
+			.where(_session.hitId.eq(hitId).or(
+					_session.workerId.eq(workerId).and(_session.setId.eq(setID))))
+			.list(_session));
+			
+			Session record = null;
+			List<Session> workerSessions = new ArrayList<>();
+			
+			for( Session s : sessions ) {
+				if( hitId.equals(s.getHitId()) ) record = s;
+				if( workerId.equals(s.getWorkerId()) && setID.equals(s.getSetId()) ) workerSessions.add(s);
+			}
+			
+			List<Quiz> quizzes = null;
+			if( withQuizzes ) {
+				quizzes = new SQLQueryImpl(conn, dialect)
+				.from(_quiz)
+				.where(_quiz.setId.eq(setID), 
+						_quiz.workerId.eq(workerId))
+				.list(_quiz);
+			}
+			
+			return new Admission(record, workerSessions, quizzes);
+			
+		} catch (SQLException e) {			
+			failed(e);
+		}
+		return new Admission(null, null, null);
+	}
+
+	private List<Session> snapshot(List<Session> sessions) {
+		if( sessions != null ) {
+			for( Session s : sessions ) snapshots.read(s);
+		}
+		return sessions;
+	}
+
 	private void ensureWorkerExists(Connection conn, String workerId) {
 		/* creates
 		 * INSERT IGNORE INTO worker(id) VALUES ("workerId");
@@ -360,10 +558,16 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 
 	@Override
 	public void saveSession(Session record) {
-		try( Connection conn = pbds.getConnection() ) {	
+		// Only write what changed since we last saw this row
+		long generation = snapshots.generation(record.getHitId());
+		Map<Path<?>, Object> dirty = snapshots.dirty(record);
+		if( dirty.isEmpty() ) return;
+		
+		try( Connection conn = getConnection() ) {	
 			
 			// Make sure worker exists
-			ensureWorkerExists(conn, record.getWorkerId());						
+			if( dirty.containsKey(_session.workerId) )
+				ensureWorkerExists(conn, record.getWorkerId());						
 			
 			/* TODO: INSERT ... ON DUPLICATE KEY UPDATE is the safest thing to do here
 			 * but not well supported yet. We're okay using saveHITId first.
@@ -375,19 +579,82 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 //					" ON DUPLICATE KEY UPDATE ", args))
 //			.execute();
 			
-			new SQLUpdateClause(conn, dialect, _session)
-			.where(_session.hitId.eq(record.getHitId()))
-			.populate(record)			
-			.execute();
+			SQLUpdateClause update = new SQLUpdateClause(conn, dialect, _session)
+			.where(_session.hitId.eq(record.getHitId()));
+			
+			for( Map.Entry<Path<?>, Object> e : dirty.entrySet() ) {
+				@SuppressWarnings("unchecked")
+				Path<Object> column = (Path<Object>) e.getKey();
+				update.set(column, e.getValue());
+			}
+			
+			update.execute();
+			
+			written(record.getHitId(), dirty, generation);
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 
 	}
 
+	@Override
+	protected void saveNewSession(final Session record) {
+		final long generation = snapshots.generation(record.getHitId());
+		final Map<Path<?>, Object> dirty = snapshots.dirty(record);
+		
+		writeBatch(new Runnable() {
+			public void run() {
+				try( Connection conn = getConnection() ) {
+					
+					if( dirty.containsKey(_session.workerId) )
+						ensureWorkerExists(conn, record.getWorkerId());
+					
+					/*
+					 * INSERT INTO session (hitId, setId, ...) VALUES (?, ?, ...)
+					 * ON DUPLICATE KEY UPDATE col=VALUES(col), ...
+					 */
+					List<Path<?>> columns = new ArrayList<>();
+					List<Object> values = new ArrayList<>();
+					StringBuilder updates = new StringBuilder();
+					
+					columns.add(_session.hitId);
+					values.add(record.getHitId());
+					if( !dirty.containsKey(_session.setId) ) {
+						// Only set for new sessions, like saveHITId
+						columns.add(_session.setId);
+						values.add(setID);
+					}
+					
+					for( Map.Entry<Path<?>, Object> e : dirty.entrySet() ) {
+						String name = e.getKey().getMetadata().getExpression().toString();
+						columns.add(e.getKey());
+						values.add(e.getValue());
+						
+						if( updates.length() > 0 ) updates.append(", ");
+						updates.append(name).append("=VALUES(").append(name).append(")");
+					}
+					
+					// Nothing to change if it exists
+					if( updates.length() == 0 ) updates.append("hitId=hitId");
+					
+					new SQLInsertClause(conn, dialect, _session)
+					.columns(columns.toArray(new Path<?>[columns.size()]))
+					.values(values.toArray())
+					.addFlag(Position.END, " ON DUPLICATE KEY UPDATE " + updates)
+					.execute();
+					
+					written(record.getHitId(), dirty, generation);
+					
+				} catch (SQLException e) {			
+					failed(e);
+				}
+			}			
+		});
+	}
+
 	@Override
 	public void saveHITId(String hitId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			/*
 			 * INSERT INTO session (hitId, setId) VALUES (?, ?)
@@ -401,30 +668,16 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 					String.class, " ON DUPLICATE KEY UPDATE {0}", _session.setId.eq(setID) ))
 			.execute();
 			
-		} catch (SQLException e) {			
-			e.printStackTrace();
-		} 
-	}
-
-	@Override
-	public void saveWorkerAssignment(HITWorkerImpl session,
-			String assignmentId, String workerId) {
-		try( Connection conn = pbds.getConnection() ) {				
-			// Make sure the worker table contains this workerId first, but ignore if already exists
-			/*
-			 * INSERT IGNORE INTO worker(id) VALUES (?)
-			 */
-			ensureWorkerExists(conn, workerId);
+			invalidate(hitId);
 			
-			super.saveWorkerAssignment(session, assignmentId, workerId);			
 		} catch (SQLException e) {			
-			e.printStackTrace();
-		} 		
+			failed(e);
+		} 
 	}
 
 	@Override
 	public void saveQuizResults(String hitId, String workerId, Quiz results) {						
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			ensureWorkerExists(conn, workerId);
 			
@@ -437,13 +690,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();		
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 				
 	}
 
 	@Override
 	protected void saveExpStartTime(String expId, int size, String inputdata, long startTime) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			new SQLInsertClause(conn, dialect, _experiment)
 			.columns(_experiment.id, _experiment.setId, _experiment.participants, _experiment.inputdata, _experiment.startTime)
@@ -451,13 +704,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		} 		
 	}
 
 	@Override
 	protected void saveExpRoundStart(String expId, int round, long startTime) {
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			
 			Round r = new Round();
 			
@@ -470,13 +723,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();							
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 
 	@Override
 	protected void saveExpRoundInput(String expId, int round, String inputData) {
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			
 			new SQLUpdateClause(conn, dialect, _round)
 			.where(_round.experimentId.eq(expId), _round.roundnum.eq(round))
@@ -484,13 +737,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();							
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 
 	@Override
 	protected void saveExpRoundEnd(String expId, int round, long endTime, String roundLog) {
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 		
 			new SQLUpdateClause(conn, dialect, _round)
 			.where(_round.experimentId.eq(expId), _round.roundnum.eq(round))
@@ -499,13 +752,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();							
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 
 	@Override
 	protected void saveExpEndInfo(String expId, long endTime, String logOutput) {			
-		try( Connection conn = pbds.getConnection() ) {			
+		try( Connection conn = getConnection() ) {			
 			
 			new SQLUpdateClause(conn, dialect, _experiment)
 			.where(_experiment.id.eq(expId))
@@ -514,13 +767,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.execute();							
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 
 	@Override
 	public void clearWorkerForSession(String hitId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			/*
 			 * TODO this used to be set to default but not sure how to do with QueryDSL
@@ -532,15 +785,17 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.where(_session.hitId.eq(hitId))
 			.execute();
 			
+			invalidate(hitId);
+			
 			logger.info(String.format("HIT %s has workerId cleared", hitId));
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}	
 	}
 	
 	@Override
 	public boolean deleteSession(String hitId) {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			Session record = new SQLQueryImpl(conn, dialect)
 			.from(_session)
@@ -559,17 +814,19 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.where(_session.hitId.eq(hitId))
 			.execute();
 			
+			invalidate(hitId);
+			
 			return deleted > 0;						
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return false;
 	}
 
 	@Override
 	public List<Session> expireUnusedSessions() {
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			/*
 			 * SELECT * FROM session WHERE setId=? AND experimentId IS NULL
@@ -591,10 +848,12 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			.where(_session.setId.eq(setID), _session.experimentId.isNull())
 			.execute();
 			
+			for( Session s : expired ) invalidate(s.getHitId());
+			
 			return expired;
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 		return null;
 	}
@@ -655,7 +914,7 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 	}
 
 	public void clearDatabase() {		
-		try( Connection conn = pbds.getConnection() ) {	
+		try( Connection conn = getConnection() ) {	
 			
 			// clear all tables						
 			new SQLDeleteClause(conn, dialect, _round).execute();
@@ -666,10 +925,13 @@ public class MySQLDataTracker extends ExperimentDataTracker {
 			new SQLDeleteClause(conn, dialect, _worker).execute();
 			new SQLDeleteClause(conn, dialect, _sets).execute();
 			
+			snapshots.invalidateAll();
+			summaryChanged();
+			
 			System.out.println("Database emptied.");
 			
 		} catch (SQLException e) {			
-			e.printStackTrace();
+			failed(e);
 		}
 	}
 	
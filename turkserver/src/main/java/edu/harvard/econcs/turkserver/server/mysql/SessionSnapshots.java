@@ -0,0 +1,136 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mysema.query.sql.dml.DefaultMapper;
+import com.mysema.query.types.Path;
+
+import edu.harvard.econcs.turkserver.schema.QSession;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+/**
+ * Remembers the column values of session rows as last read or written,
+ * so that saving a session only needs to update the columns that changed.
+ *
+ * Like populate(), null fields are never written, so they are never dirty.
+ * Forgotten rows are written in full, which is always safe.
+ *
+ * Two writes of the same row at once can reach the database in either
+ * order, so a write is only remembered if nothing else happened to its row
+ * since it was compared; otherwise the row is forgotten.
+ *
+ * @author mao
+ *
+ */
+class SessionSnapshots {
+
+	static final QSession _session = QSession.session;
+
+	static final int STRIPES = 4096;
+
+	final Cache<String, Map<Path<?>, Object>> rows;
+	// Bumped whenever a row is remembered or forgotten. Rows sharing 
+	// a stripe only cost each other a full write now and then.
+	final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+	SessionSnapshots(int maxRows) {
+		rows = CacheBuilder.newBuilder()
+				.maximumSize(maxRows)
+				// Don't trust anything for too long, if someone else edits the db
+				.expireAfterWrite(1, TimeUnit.HOURS)
+				.build();
+	}
+
+	static Map<Path<?>, Object> columns(Session record) {
+		Map<Path<?>, Object> values = DefaultMapper.DEFAULT.createMap(_session, record);
+		values.remove(_session.hitId);
+		return values;
+	}
+
+	private static int stripe(String hitId) {
+		return (hitId.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
+
+	private void changed(String hitId) {
+		generations.incrementAndGet(stripe(hitId));
+	}
+
+	/**
+	 * Take before comparing a session, to pass to {@link #written(String, Map, long)}
+	 * @param hitId
+	 * @return
+	 */
+	long generation(String hitId) {
+		return generations.get(stripe(hitId));
+	}
+
+	/**
+	 * Get the columns of this session that need to be written
+	 * @param record
+	 * @return
+	 */
+	Map<Path<?>, Object> dirty(Session record) {
+		Map<Path<?>, Object> values = columns(record);
+		Map<Path<?>, Object> last = rows.getIfPresent(record.getHitId());
+		if( last == null ) return values;
+
+		Map<Path<?>, Object> dirty = new HashMap<>();
+		for( Map.Entry<Path<?>, Object> e : values.entrySet() ) {
+			if( !Objects.equal(e.getValue(), last.get(e.getKey())) )
+				dirty.put(e.getKey(), e.getValue());
+		}
+		return dirty;
+	}
+
+	/**
+	 * Record that some columns of a session were written
+	 * @param hitId
+	 * @param written
+	 * @param generation as taken before the columns were compared
+	 */
+	synchronized void written(String hitId, Map<Path<?>, Object> written, long generation) {
+		int stripe = stripe(hitId);
+		if( generations.getAndIncrement(stripe) != generation ) {
+			// Another write may have landed after this one
+			rows.invalidate(hitId);
+			return;
+		}
+
+		Map<Path<?>, Object> last = rows.getIfPresent(hitId);
+		if( last == null ) {
+			// Only know what we just wrote
+			rows.put(hitId, new HashMap<>(written));
+			return;
+		}
+
+		Map<Path<?>, Object> updated = new HashMap<>(last);
+		updated.putAll(written);
+		rows.put(hitId, updated);
+	}
+
+	/**
+	 * Record the session as read from the database
+	 * @param record
+	 */
+	synchronized void read(Session record) {
+		changed(record.getHitId());
+		rows.put(record.getHitId(), columns(record));
+	}
+
+	synchronized void invalidate(String hitId) {
+		changed(hitId);
+		rows.invalidate(hitId);
+	}
+
+	synchronized void invalidateAll() {
+		for( int i = 0; i < STRIPES; i++ ) generations.incrementAndGet(i);
+		rows.invalidateAll();
+	}
+
+}
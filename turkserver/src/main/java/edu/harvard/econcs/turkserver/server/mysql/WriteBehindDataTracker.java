@@ -0,0 +1,432 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Multimap;
+
+import edu.harvard.econcs.turkserver.schema.Experiment;
+import edu.harvard.econcs.turkserver.schema.Quiz;
+import edu.harvard.econcs.turkserver.schema.Round;
+import edu.harvard.econcs.turkserver.schema.Session;
+import edu.harvard.econcs.turkserver.util.Histogram;
+
+/**
+ * Queues writes to another tracker and commits them in batches on a
+ * background thread, so that callers (cometd and experiment threads)
+ * don't wait on the database.
+ *
+ * Back-to-back saves of the same session are merged into one write.
+ * Reads flush pending writes first, so they always see everything
+ * written before them. Use {@link #flush()} when a write must be
+ * durable before going on, e.g. before paying for a session.
+ *
+ * @author mao
+ *
+ */
+public class WriteBehindDataTracker extends ExperimentDataTracker {
+
+	static final int BATCH_SIZE = 100;
+
+	final ExperimentDataTracker delegate;
+	final long commitDelayMillis;
+
+	// Guarded by pending
+	private final Deque<Write> pending;
+	private long enqueued = 0;
+	private long committed = 0;
+	private int flushing = 0;
+	private boolean running = true;
+
+	private final Thread writer;
+
+	final AtomicLong merged = new AtomicLong();
+	final Histogram batchSizes = new Histogram();
+
+	abstract class Write {
+		// Session row that this affects, if any
+		final String hitId;
+
+		Write(String hitId) { this.hitId = hitId; }
+
+		abstract void apply();
+	}
+
+	class SessionWrite extends Write {
+		// A copy, so later changes to the session aren't written halfway
+		volatile Session record;
+
+		SessionWrite(Session record) {
+			super(record.getHitId());
+			this.record = copyOf(record);
+		}
+
+		void apply() { delegate.saveSession(record); }
+	}
+
+	/**
+	 * Session values as of now, as the record keeps changing after it is queued
+	 */
+	static Session copyOf(Session s) {
+		Session copy = new Session();
+		copy.setHitId(s.getHitId());
+		copy.setAssignmentId(s.getAssignmentId());
+		copy.setWorkerId(s.getWorkerId());
+		copy.setSetId(s.getSetId());
+		copy.setExperimentId(s.getExperimentId());
+		copy.setUsername(s.getUsername());
+		copy.setIpAddr(s.getIpAddr());
+		copy.setLobbyTime(s.getLobbyTime() == null ? null : new Timestamp(s.getLobbyTime().getTime()));
+		copy.setNumDisconnects(s.getNumDisconnects());
+		copy.setInactivePercent(s.getInactivePercent());
+		copy.setInactiveData(s.getInactiveData());
+		copy.setComment(s.getComment());
+		copy.setHitStatus(s.getHitStatus());
+		copy.setPayment(s.getPayment());
+		copy.setPaid(s.getPaid());
+		copy.setBonus(s.getBonus());
+		copy.setBonusPaid(s.getBonusPaid());
+		return copy;
+	}
+
+	public WriteBehindDataTracker(ExperimentDataTracker delegate, long commitDelayMillis) {
+		this.delegate = delegate;
+		this.commitDelayMillis = commitDelayMillis;
+
+		pending = new ArrayDeque<>();
+
+		writer = new Thread(this.getClass().getSimpleName()) {
+			public void run() { writeLoop(); }
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	void enqueue(Write w) {
+		synchronized(pending) {
+			if( running ) {
+				pending.add(w);
+				enqueued++;
+				pending.notifyAll();
+				return;
+			}
+		}
+
+		logger.warn("Writing through after stop");
+		w.apply();
+	}
+
+	void writeLoop() {
+		final List<Write> batch = new ArrayList<>(BATCH_SIZE);
+
+		while(true) {
+			long target;
+
+			synchronized(pending) {
+				try {
+					while( pending.isEmpty() && running ) pending.wait();
+
+					// Give other writes a chance to join this commit, unless someone is waiting
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitDelayMillis);
+					long left;
+					while( running && flushing == 0 && pending.size() < BATCH_SIZE &&
+							(left = deadline - System.nanoTime()) > 0 )
+						TimeUnit.NANOSECONDS.timedWait(pending, left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if( pending.isEmpty() && !running ) return;
+
+				while( batch.size() < BATCH_SIZE && !pending.isEmpty() ) {
+					batch.add(pending.poll());
+				}
+				target = committed + batch.size();
+			}
+
+			commit(batch);
+			batchSizes.record(batch.size());
+			batch.clear();
+
+			synchronized(pending) {
+				committed = target;
+				pending.notifyAll();
+			}
+		}
+	}
+
+	void commit(final List<Write> batch) {
+		try {
+			delegate.writeBatch(new Runnable() {
+				public void run() {
+					for( Write w : batch ) w.apply();
+				}
+			});
+			return;
+		} catch( RuntimeException e ) {
+			logger.warn("Batch of {} writes failed, retrying one at a time: {}", batch.size(), e.toString());
+		}
+
+		// Don't lose the rest of the batch because of one bad write
+		for( Write w : batch ) {
+			try {
+				w.apply();
+			} catch( RuntimeException e ) {
+				logger.error("Dropping failed write", e);
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		synchronized(pending) {
+			if( Thread.currentThread() == writer ) return;
+
+			long target = enqueued;
+			flushing++;
+			pending.notifyAll();
+
+			boolean interrupted = false;
+			while( committed < target && writer.isAlive() ) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			flushing--;
+			if( interrupted ) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes everything pending and stops the writer thread.
+	 * Writes after this go directly to the underlying tracker.
+	 */
+	public void stop() {
+		synchronized(pending) {
+			running = false;
+			pending.notifyAll();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getQueueSize() {
+		synchronized(pending) {
+			return pending.size();
+		}
+	}
+
+	public long getMergedWrites() {
+		return merged.get();
+	}
+
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/* ****************************************************
+	 * Reads wait for pending writes
+	 ******************************************************/
+
+	@Override
+	public Collection<Experiment> getSetExperiments() {
+		flush();
+		return delegate.getSetExperiments();
+	}
+
+	@Override
+	public Experiment getExperiment(String experimentId) {
+		flush();
+		return delegate.getExperiment(experimentId);
+	}
+
+	@Override
+	public Multimap<Experiment, Session> getAllExperimentSessions() {
+		flush();
+		return delegate.getAllExperimentSessions();
+	}
+
+	@Override
+	public List<Round> getExperimentRounds(String experimentId) {
+		flush();
+		return delegate.getExperimentRounds(experimentId);
+	}
+
+	@Override
+	public Multimap<Experiment, Round> getAllExperimentRounds() {
+		flush();
+		return delegate.getAllExperimentRounds();
+	}
+
+	@Override
+	public List<Session> getCompletedSessions() {
+		flush();
+		return delegate.getCompletedSessions();
+	}
+
+	@Override
+	public boolean hitExistsInDB(String hitID) {
+		flush();
+		return delegate.hitExistsInDB(hitID);
+	}
+
+	@Override
+	public SessionSummary getSetSessionSummary() {
+		flush();
+		return delegate.getSetSessionSummary();
+	}
+
+	@Override
+	public SessionSummary getFreshSessionSummary() {
+		flush();
+		return delegate.getFreshSessionSummary();
+	}
+
+	@Override
+	public Collection<Quiz> getSetQuizRecords(String workerId) {
+		flush();
+		return delegate.getSetQuizRecords(workerId);
+	}
+
+	@Override
+	public Collection<Session> getSetSessionInfoForWorker(String workerId) {
+		flush();
+		return delegate.getSetSessionInfoForWorker(workerId);
+	}
+
+	@Override
+	public Session getStoredSessionInfo(String hitId) {
+		flush();
+		return delegate.getStoredSessionInfo(hitId);
+	}
+
+	@Override
+	public Admission getAdmission(String hitId, String workerId, boolean withQuizzes) {
+		flush();
+		return delegate.getAdmission(hitId, workerId, withQuizzes);
+	}
+
+	/* ****************************************************
+	 * Writes are queued
+	 ******************************************************/
+
+	@Override
+	public void saveSession(Session record) {
+		synchronized(pending) {
+			/*
+			 * Only merged into the last write, as moving it ahead of anything 
+			 * queued since could break ordering, e.g. setting an experiment 
+			 * id before the experiment is inserted.
+			 */
+			Write last = pending.peekLast();
+			if( last instanceof SessionWrite && record.getHitId().equals(last.hitId) ) {
+				((SessionWrite) last).record = copyOf(record);
+				merged.incrementAndGet();
+				return;
+			}
+
+			if( running ) {
+				pending.add(new SessionWrite(record));
+				enqueued++;
+				pending.notifyAll();
+				return;
+			}
+		}
+
+		delegate.saveSession(record);
+	}
+
+	@Override
+	protected void saveNewSession(Session session) {
+		final Session record = copyOf(session);
+		enqueue(new Write(record.getHitId()) {
+			void apply() { delegate.saveNewSession(record); }
+		});
+	}
+
+	@Override
+	public void saveHITId(final String hitId) {
+		enqueue(new Write(hitId) {
+			void apply() { delegate.saveHITId(hitId); }
+		});
+	}
+
+	@Override
+	public void saveQuizResults(final String hitId, final String workerId, final Quiz qr) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveQuizResults(hitId, workerId, qr); }
+		});
+	}
+
+	@Override
+	protected void saveExpStartTime(final String expId, final int size, final String inputdata, final long startTime) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveExpStartTime(expId, size, inputdata, startTime); }
+		});
+	}
+
+	@Override
+	protected void saveExpRoundStart(final String expId, final int round, final long startTime) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveExpRoundStart(expId, round, startTime); }
+		});
+	}
+
+	@Override
+	protected void saveExpRoundInput(final String expId, final int currentRound, final String inputData) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveExpRoundInput(expId, currentRound, inputData); }
+		});
+	}
+
+	@Override
+	protected void saveExpRoundEnd(final String expId, final int round, final long endTime, final String roundLog) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveExpRoundEnd(expId, round, endTime, roundLog); }
+		});
+	}
+
+	@Override
+	protected void saveExpEndInfo(final String expId, final long endTime, final String logOutput) {
+		enqueue(new Write(null) {
+			void apply() { delegate.saveExpEndInfo(expId, endTime, logOutput); }
+		});
+	}
+
+	@Override
+	public void clearWorkerForSession(final String hitId) {
+		enqueue(new Write(hitId) {
+			void apply() { delegate.clearWorkerForSession(hitId); }
+		});
+	}
+
+	/* ****************************************************
+	 * Need results, so these go through after a flush
+	 ******************************************************/
+
+	@Override
+	public boolean deleteSession(String hitId) {
+		flush();
+		return delegate.deleteSession(hitId);
+	}
+
+	@Override
+	public List<Session> expireUnusedSessions() {
+		flush();
+		return delegate.expireUnusedSessions();
+	}
+
+}
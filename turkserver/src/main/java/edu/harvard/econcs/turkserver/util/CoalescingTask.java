@@ -0,0 +1,65 @@
+package edu.harvard.econcs.turkserver.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A task that is marked as needed any number of times, but runs at most
+ * once per interval. Marks that come in while a run is waiting are folded
+ * into it, and marks during a run cause one more run an interval later.
+ *
+ * Runs are scheduled on a timer and handed off to an executor.
+ *
+ * @author mao
+ *
+ */
+public class CoalescingTask implements Runnable {
+
+	final HashedWheelTimer timer;
+	final Executor executor;
+	final Runnable task;
+	final long intervalNanos;
+
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile long lastRun;
+
+	/**
+	 * @param timer
+	 * @param executor where the task runs
+	 * @param task
+	 * @param interval least time between runs
+	 * @param unit
+	 */
+	public CoalescingTask(HashedWheelTimer timer, Executor executor, Runnable task, long interval, TimeUnit unit) {
+		this.timer = timer;
+		this.executor = executor;
+		this.task = task;
+		this.intervalNanos = unit.toNanos(interval);
+
+		lastRun = System.nanoTime() - intervalNanos;
+	}
+
+	/**
+	 * Make sure the task runs after this, as soon as the interval allows
+	 */
+	public void mark() {
+		if( !scheduled.compareAndSet(false, true) ) return;
+
+		long delay = Math.max(0, lastRun + intervalNanos - System.nanoTime());
+
+		timer.schedule(new Runnable() {
+			public void run() { executor.execute(CoalescingTask.this); }
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void run() {
+		// Marks from here on need another run
+		lastRun = System.nanoTime();
+		scheduled.set(false);
+
+		task.run();
+	}
+
+}
@@ -0,0 +1,279 @@
+package edu.harvard.econcs.turkserver.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer for large numbers of approximate timeouts, such as experiment
+ * intervals and time limits. Inserting and cancelling a timeout is O(1),
+ * and the timer has a single thread no matter how many timeouts it holds.
+ *
+ * Timeouts are hashed into a ring of buckets by their deadline, and the
+ * thread visits one bucket each tick. A timeout fires on the first tick
+ * at or after its deadline, so tasks run late by at most one tick.
+ *
+ * Tasks run on the timer thread and should only hand off work elsewhere.
+ *
+ * @author mao
+ *
+ */
+public class HashedWheelTimer {
+
+	protected final Logger logger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+	static final int ST_WAITING = 0;
+	static final int ST_EXPIRED = 1;
+	static final int ST_CANCELLED = 2;
+
+	final long tickNanos;
+	final Bucket[] wheel;
+	final int mask;
+
+	final Queue<Timeout> pending;
+	final Queue<Timeout> cancelled;
+
+	final Thread worker;
+	final long startTime;
+	volatile boolean running;
+
+	long tick = 0;
+
+	/**
+	 * @param tickDuration granularity of the timer
+	 * @param unit
+	 * @param ticksPerWheel number of buckets, rounded up to a power of 2
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if( tickDuration <= 0 || ticksPerWheel <= 0 )
+			throw new IllegalArgumentException("tick duration and wheel size must be positive");
+
+		this.tickNanos = unit.toNanos(tickDuration);
+
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if( size < ticksPerWheel ) size <<= 1;
+
+		this.wheel = new Bucket[size];
+		for( int i = 0; i < size; i++ ) wheel[i] = new Bucket();
+		this.mask = size - 1;
+
+		this.pending = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+		this.startTime = System.nanoTime();
+		this.running = true;
+
+		this.worker = new Thread(new Worker(), this.getClass().getSimpleName());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Handle to a scheduled task, which can be cancelled.
+	 */
+	public final class Timeout {
+		final Runnable task;
+		final long periodNanos;
+		final AtomicInteger state = new AtomicInteger(ST_WAITING);
+
+		long deadline;
+		long remainingRounds;
+
+		// Only touched by the timer thread
+		Bucket bucket;
+		Timeout prev, next;
+
+		Timeout(Runnable task, long deadline, long periodNanos) {
+			this.task = task;
+			this.deadline = deadline;
+			this.periodNanos = periodNanos;
+		}
+
+		/**
+		 * Cancel this timeout. A periodic timeout will not run again.
+		 * @return true if this call cancelled it
+		 */
+		public boolean cancel() {
+			if( !state.compareAndSet(ST_WAITING, ST_CANCELLED) ) return false;
+			// Unlinked by the timer thread on its next tick
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts, so removal is O(1)
+	 */
+	static final class Bucket {
+		Timeout head, tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if( head == null ) {
+				head = tail = t;
+			}
+			else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		Timeout remove(Timeout t) {
+			Timeout next = t.next;
+			if( t.prev != null ) t.prev.next = next;
+			if( t.next != null ) t.next.prev = t.prev;
+			if( t == head ) head = next;
+			if( t == tail ) tail = t.prev;
+
+			t.prev = t.next = null;
+			t.bucket = null;
+			return next;
+		}
+	}
+
+	/**
+	 * Run a task once after a delay
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return add(new Timeout(task, now() + unit.toNanos(delay), 0));
+	}
+
+	/**
+	 * Run a task repeatedly, until cancelled
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+		if( period <= 0 )
+			throw new IllegalArgumentException("period must be positive");
+
+		return add(new Timeout(task, now() + unit.toNanos(initialDelay), unit.toNanos(period)));
+	}
+
+	private Timeout add(Timeout t) {
+		if( !running )
+			throw new IllegalStateException("Timer has been stopped");
+
+		pending.add(t);
+		return t;
+	}
+
+	/**
+	 * Stop the timer thread. Timeouts that have not fired are dropped.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	long now() {
+		return System.nanoTime() - startTime;
+	}
+
+	/*
+	 * Everything below runs only on the timer thread
+	 */
+
+	void place(Timeout t) {
+		// Bucket whose tick ends at or just after the deadline
+		long calculated = (t.deadline - 1) / tickNanos;
+		t.remainingRounds = (calculated - tick) / wheel.length;
+
+		// Deadlines already past go in the current bucket
+		long ticks = Math.max(calculated, tick);
+		wheel[(int) (ticks & mask)].add(t);
+	}
+
+	/**
+	 * Run expired timeouts in a bucket.
+	 * @return periodic timeouts to place again once the tick is over
+	 */
+	List<Timeout> expire(Bucket bucket, long deadline) {
+		List<Timeout> rearm = null;
+		
+		Timeout t = bucket.head;
+		while( t != null ) {
+			if( t.remainingRounds > 0 ) {
+				t.remainingRounds--;
+				t = t.next;
+				continue;
+			}
+
+			Timeout next = bucket.remove(t);
+
+			boolean live = t.periodNanos > 0 ? 
+					t.state.get() == ST_WAITING : t.state.compareAndSet(ST_WAITING, ST_EXPIRED);
+			if( !live ) {
+				t = next;
+				continue;
+			}
+
+			try { t.task.run(); }
+			catch (RuntimeException e) {
+				logger.warn("Timer task threw exception, ignoring");
+				e.printStackTrace();
+			}
+
+			if( t.periodNanos > 0 && t.state.get() == ST_WAITING ) {
+				// Next run is relative to the deadline, not to when it fired
+				t.deadline += t.periodNanos;
+				if( t.deadline < deadline ) t.deadline = deadline;
+				
+				if( rearm == null ) rearm = new ArrayList<Timeout>();
+				rearm.add(t);
+			}
+
+			t = next;
+		}
+		
+		return rearm;
+	}
+
+	class Worker implements Runnable {
+		@Override
+		public void run() {
+			while( running ) {
+				long deadline = tickNanos * (tick + 1);
+				long sleepNanos;
+				while( (sleepNanos = deadline - now()) > 0 ) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(sleepNanos);
+					} catch (InterruptedException e) {
+						if( !running ) return;
+					}
+				}
+
+				Timeout t;
+				while( (t = cancelled.poll()) != null ) {
+					if( t.bucket != null ) t.bucket.remove(t);
+				}
+
+				while( (t = pending.poll()) != null ) {
+					if( t.state.get() == ST_WAITING ) place(t);
+				}
+
+				List<Timeout> rearm = expire(wheel[(int) (tick & mask)], deadline);
+				tick++;
+				
+				// After the tick, in case one lands back in the same bucket
+				if( rearm != null ) {
+					for( Timeout r : rearm ) place(r);
+				}
+			}
+		}
+	}
+
+}
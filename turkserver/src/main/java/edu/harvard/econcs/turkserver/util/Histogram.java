@@ -0,0 +1,70 @@
+package edu.harvard.econcs.turkserver.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of non-negative values, such as latencies in millis.
+ * Buckets are powers of 2, so percentiles are only accurate to within a factor of 2.
+ *
+ * @author mao
+ *
+ */
+public class Histogram {
+
+	// Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0
+	static final int BUCKETS = 64;
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	final AtomicLong total = new AtomicLong();
+	final AtomicLong sum = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if( value < 0 ) value = 0;
+
+		counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m;
+		while( value > (m = max.get()) && !max.compareAndSet(m, value) );
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.get();
+		return n == 0 ? 0 : 1.0 * sum.get() / n;
+	}
+
+	/**
+	 * @param p between 0 and 1
+	 * @return upper bound of the bucket containing the p-th percentile
+	 */
+	public long getPercentile(double p) {
+		long n = total.get();
+		if( n == 0 ) return 0;
+
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			seen += counts.get(i);
+			if( seen >= rank ) return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+				getCount(), getMean(), getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getMax());
+	}
+
+}
@@ -0,0 +1,216 @@
+package edu.harvard.econcs.turkserver.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Runs tasks on a shared thread pool with one ordered lane per key.
+ * Tasks for the same key run one at a time in submission order,
+ * while different keys run in parallel.
+ *
+ * A lane only occupies a pool thread while it has queued tasks, and gives
+ * up its thread after a batch so that busy lanes can't starve the others.
+ *
+ * With a capacity, {@link #offer(Object, Runnable)} refuses tasks once that
+ * many are queued over all lanes, so callers can push back instead of waiting.
+ *
+ * @author mao
+ *
+ * @param <K>
+ */
+public class StripedExecutor<K> {
+
+	static final int LANE_BATCH = 16;
+
+	protected final Logger logger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+	final ExecutorService pool;
+	final ConcurrentMap<K, Lane> lanes;
+
+	final int capacity;
+	// Tasks queued or running over all lanes
+	final AtomicInteger queued = new AtomicInteger();
+
+	public StripedExecutor(int threads) {
+		this(threads, Integer.MAX_VALUE);
+	}
+
+	public StripedExecutor(int threads, int capacity) {
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.lanes = new MapMaker().makeMap();
+		this.capacity = capacity;
+	}
+
+	class Lane implements Runnable {
+		final K key;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		final AtomicInteger depth = new AtomicInteger();
+		volatile int maxDepth = 0;
+		volatile boolean retired = false;
+
+		Lane(K key) {
+			this.key = key;
+		}
+
+		void submit(Runnable task) {
+			tasks.add(task);
+			int d = depth.incrementAndGet();
+			if( d > maxDepth ) maxDepth = d;
+
+			// Lane was idle, so nothing is draining it right now
+			if( d != 1 ) return;
+			
+			try { pool.execute(this); }
+			catch (RejectedExecutionException e) {
+				// Nothing will run it, so don't leave it counted as queued
+				tasks.remove(task);
+				depth.decrementAndGet();
+				throw e;
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean more = true;
+			try {
+				for( int i = 0; i < LANE_BATCH && more; i++ ) {
+					Runnable task = tasks.poll();
+
+					try { task.run(); }
+					catch (RuntimeException e) {
+						logger.warn("Task for {} threw exception, continuing", key);
+						e.printStackTrace();
+					}
+					finally {
+						queued.decrementAndGet();
+						more = depth.decrementAndGet() > 0;
+					}
+				}
+			}
+			finally {
+				// Still more work, but let other lanes have a turn, even after an error
+				if( more ) reschedule();
+				else if( retired ) lanes.remove(key, this);
+			}
+		}
+
+		private void reschedule() {
+			try { pool.execute(this); }
+			catch (RejectedExecutionException e) {
+				queued.addAndGet(-depth.get());
+				logger.warn("Executor is shut down, dropping {} tasks for {}", depth.get(), key);
+			}
+		}
+	}
+
+	/**
+	 * Queue a task to run after all previously submitted tasks for the same key
+	 * @param key
+	 * @param task
+	 */
+	public void execute(K key, Runnable task) {
+		queued.incrementAndGet();
+		submit(key, task);
+	}
+
+	/**
+	 * Queue a task like {@link #execute(Object, Runnable)}, unless the executor is full
+	 * @param key
+	 * @param task
+	 * @return false if the task was refused
+	 */
+	public boolean offer(K key, Runnable task) {
+		if( queued.incrementAndGet() > capacity ) {
+			queued.decrementAndGet();
+			return false;
+		}
+		submit(key, task);
+		return true;
+	}
+
+	void submit(K key, Runnable task) {
+		Lane lane = lanes.get(key);
+		if( lane == null ) {
+			Lane newLane = new Lane(key);
+			lane = lanes.putIfAbsent(key, newLane);
+			if( lane == null ) lane = newLane;
+		}
+
+		try { lane.submit(task); }
+		catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			logger.warn("Executor is shut down, dropping task for {}", key);
+		}
+	}
+
+	/**
+	 * Stop tracking the lane for a key once its queued tasks are done.
+	 * Should be called when nothing else will be submitted for the key.
+	 * @param key
+	 */
+	public void retire(K key) {
+		Lane lane = lanes.get(key);
+		if( lane == null ) return;
+
+		lane.retired = true;
+		if( lane.depth.get() == 0 ) lanes.remove(key, lane);
+	}
+
+	/**
+	 * @param key
+	 * @return number of tasks queued or running for a key
+	 */
+	public int getQueueDepth(K key) {
+		Lane lane = lanes.get(key);
+		return lane == null ? 0 : lane.depth.get();
+	}
+
+	/**
+	 * @return number of tasks queued or running over all lanes
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return current number of tasks queued or running for each lane
+	 */
+	public Map<K, Integer> getQueueDepths() {
+		ImmutableMap.Builder<K, Integer> depths = ImmutableMap.builder();
+		for( Lane lane : lanes.values() )
+			depths.put(lane.key, lane.depth.get());
+		return depths.build();
+	}
+
+	/**
+	 * @return largest number of tasks ever waiting at once in each lane
+	 */
+	public Map<K, Integer> getMaxQueueDepths() {
+		ImmutableMap.Builder<K, Integer> depths = ImmutableMap.builder();
+		for( Lane lane : lanes.values() )
+			depths.put(lane.key, lane.maxDepth);
+		return depths.build();
+	}
+
+	/**
+	 * Stop accepting new tasks. Already queued tasks still run.
+	 * @return the pool, to wait for termination on
+	 */
+	public ExecutorService shutdown() {
+		pool.shutdown();
+		return pool;
+	}
+
+}
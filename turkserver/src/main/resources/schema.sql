@@ -165,6 +165,9 @@ CREATE TABLE `session` (
   KEY `fk_session_1_idx` (`experimentId`),
   KEY `fk_session_2_idx` (`setId`),
   KEY `fk_session_3_idx` (`workerId`),
+  KEY `set_worker` (`setId`,`workerId`),
+  KEY `set_inactive` (`setId`,`inactivePercent`),
+  KEY `set_comment` (`setId`,`comment`(1)),
   CONSTRAINT `fk_session_1` FOREIGN KEY (`experimentId`) REFERENCES `experiment` (`id`) ON DELETE NO ACTION ON UPDATE NO ACTION,
   CONSTRAINT `fk_session_2` FOREIGN KEY (`setId`) REFERENCES `sets` (`name`) ON DELETE NO ACTION ON UPDATE NO ACTION,
   CONSTRAINT `fk_session_3` FOREIGN KEY (`workerId`) REFERENCES `worker` (`id`) ON DELETE NO ACTION ON UPDATE NO ACTION
@@ -0,0 +1,125 @@
+package edu.harvard.econcs.turkserver.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import edu.harvard.econcs.turkserver.Codec;
+
+public class LobbyStateTest {
+
+	static Map<String, Object> delta(String status, long version, String id, Boolean ready) {
+		Map<String, Object> data = new TreeMap<String, Object>();
+		data.put("status", status);
+		data.put("version", version);
+		data.put("id", id);
+		data.put("username", "user " + id);
+		data.put("ready", ready);
+		data.put("numusers", 0);
+		return data;
+	}
+
+	static Map<String, Object> snapshot(long version, Object... users) {
+		Map<String, Object> data = new TreeMap<String, Object>();
+		data.put("status", Codec.lobby_update);
+		data.put("version", version);
+		data.put("servermsg", "hello");
+		data.put("users", users);
+		return data;
+	}
+
+	static List<?> users(LobbyState state) {
+		return (List<?>) state.toMap().get("users");
+	}
+
+	@Test
+	public void testApplyDeltas() {
+		LobbyState state = new LobbyState();
+
+		// Nothing to apply a change to yet
+		assertFalse(state.apply(delta(Codec.lobby_join, 3, "a", false)));
+
+		assertTrue(state.apply(snapshot(3, ImmutableMap.of("id", "a", "username", "user a", "ready", false))));
+		assertEquals(1, state.getUserCount());
+
+		// Already part of the snapshot
+		assertTrue(state.apply(delta(Codec.lobby_join, 3, "a", false)));
+
+		assertTrue(state.apply(delta(Codec.lobby_join, 4, "b", false)));
+		assertTrue(state.apply(delta(Codec.lobby_ready, 5, "a", true)));
+		assertTrue(state.apply(delta(Codec.lobby_quit, 6, "b", null)));
+
+		Map<String, Object> lobby = state.toMap();
+		assertEquals(Codec.lobby_update, lobby.get("status"));
+		assertEquals("hello", lobby.get("servermsg"));
+		assertEquals(Arrays.asList(ImmutableMap.of("id", "a", "username", "user a", "ready", true)), users(state));
+	}
+
+	@Test
+	public void testBatch() {
+		LobbyState state = new LobbyState();
+		state.apply(snapshot(1));
+
+		Map<String, Object> batch = new TreeMap<String, Object>();
+		batch.put("status", Codec.lobby_batch);
+		batch.put("changes", Arrays.asList(
+				delta(Codec.lobby_join, 1, "a", false),
+				delta(Codec.lobby_join, 2, "b", false),
+				delta(Codec.lobby_quit, 3, "a", null)));
+
+		assertTrue(state.apply(batch));
+		assertEquals(3, state.getVersion());
+		assertEquals(1, state.getUserCount());
+	}
+
+	@Test
+	public void testGap() {
+		LobbyState state = new LobbyState();
+		state.apply(snapshot(1));
+
+		assertFalse(state.apply(delta(Codec.lobby_join, 3, "a", false)));
+		assertEquals(1, state.getVersion());
+
+		// A stale snapshot doesn't go back in time
+		state.apply(snapshot(4, ImmutableMap.of("id", "a", "username", "user a", "ready", false)));
+		state.apply(snapshot(2));
+		assertEquals(4, state.getVersion());
+		assertEquals(1, state.getUserCount());
+	}
+
+	@Test
+	public void testShards() {
+		LobbyState state = new LobbyState();
+
+		Map<String, Object> first = snapshot(10, ImmutableMap.of("id", "a", "username", "user a", "ready", false));
+		first.put("shard", "0");
+		assertTrue(state.apply(first));
+
+		// Moved to a shard that hasn't seen as many changes
+		Map<String, Object> moved = snapshot(2, ImmutableMap.of("id", "b", "username", "user b", "ready", true));
+		moved.put("shard", "1");
+		assertTrue(state.apply(moved));
+		assertEquals(2, state.getVersion());
+		assertEquals(1, state.getUserCount());
+
+		// Late change from the old shard
+		Map<String, Object> old = delta(Codec.lobby_join, 3, "c", false);
+		old.put("shard", "0");
+		assertTrue(state.apply(old));
+		assertEquals(1, state.getUserCount());
+
+		Map<String, Object> next = delta(Codec.lobby_join, 3, "d", false);
+		next.put("shard", "1");
+		assertTrue(state.apply(next));
+		assertEquals(2, state.getUserCount());
+		assertEquals(3, state.getVersion());
+	}
+
+}
@@ -2,6 +2,7 @@ package edu.harvard.econcs.turkserver.cometd;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cometd.bayeux.Session;
 import org.cometd.bayeux.server.LocalSession;
@@ -11,6 +12,10 @@ import org.cometd.bayeux.server.ServerSession;
 
 public class MockServerSession implements ServerSession {
 
+	static final AtomicInteger ids = new AtomicInteger();
+	
+	final String id = "mock" + ids.incrementAndGet();
+	
 	public boolean isConnected = true;
 	
 	public String lastChannel;
@@ -18,8 +23,7 @@ public class MockServerSession implements ServerSession {
 	
 	@Override
 	public String getId() {
-		// TODO Auto-generated method stub
-		return null;
+		return id;
 	}
 
 	@Override
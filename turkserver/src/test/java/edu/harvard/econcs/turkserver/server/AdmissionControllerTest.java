@@ -0,0 +1,112 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.util.HashedWheelTimer;
+
+public class AdmissionControllerTest {
+
+	static class TestTurn implements AdmissionController.Turn {
+		final CountDownLatch admitted = new CountDownLatch(1);
+		final CountDownLatch shed = new CountDownLatch(1);
+
+		@Override
+		public void admitted() { admitted.countDown(); }
+		@Override
+		public void shed() { shed.countDown(); }
+
+		boolean wasAdmitted() { return admitted.getCount() == 0; }
+		boolean wasShed() { return shed.getCount() == 0; }
+	}
+
+	HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 64);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void testLimitAndShed() throws Exception {
+		AdmissionController ac = new AdmissionController(timer, 2, 1, 5000, 1000);
+
+		assertTrue(ac.acquire(new TestTurn()));
+		assertTrue(ac.acquire(new TestTurn()));
+		assertEquals(2, ac.getInFlight());
+
+		// One can wait for a turn, without holding up this thread
+		TestTurn waiting = new TestTurn();
+		assertFalse(ac.acquire(waiting));
+		assertEquals(1, ac.getWaiting());
+		assertFalse(waiting.wasAdmitted() || waiting.wasShed());
+
+		// But no more than that
+		TestTurn full = new TestTurn();
+		assertFalse(ac.acquire(full));
+		assertTrue(full.wasShed());
+		assertEquals(1, ac.getShed());
+
+		ac.release();
+		assertTrue(waiting.wasAdmitted());
+		assertEquals(0, ac.getWaiting());
+		assertEquals(2, ac.getInFlight());
+
+		assertEquals(3, ac.getAdmitted());
+		assertEquals(1, ac.getQueued());
+	}
+
+	@Test
+	public void testWaitTimesOut() throws Exception {
+		AdmissionController ac = new AdmissionController(timer, 1, 1, 50, 1000);
+
+		assertTrue(ac.acquire(new TestTurn()));
+
+		TestTurn waiting = new TestTurn();
+		assertFalse(ac.acquire(waiting));
+		assertEquals(1, ac.getQueued());
+
+		assertTrue(waiting.shed.await(1000, TimeUnit.MILLISECONDS));
+		assertEquals(1, ac.getShed());
+		assertEquals(0, ac.getWaiting());
+
+		// Too late to get the turn it waited for
+		ac.release();
+		assertFalse(waiting.wasAdmitted());
+		assertEquals(0, ac.getInFlight());
+	}
+
+	@Test
+	public void testSlowTracker() {
+		AdmissionController ac = new AdmissionController(timer, 4, 2, 5000, 100);
+
+		ac.recordLatency(TimeUnit.MILLISECONDS.toNanos(500));
+
+		// One at a time while the tracker is slow
+		assertTrue(ac.acquire(new TestTurn()));
+
+		TestTurn a = new TestTurn(), b = new TestTurn();
+		assertFalse(ac.acquire(a));
+		assertFalse(ac.acquire(b));
+
+		// Both get in once it speeds up
+		for( int i = 0; i < 20; i++ )
+			ac.recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+
+		assertTrue(a.wasAdmitted());
+		assertTrue(b.wasAdmitted());
+		assertEquals(3, ac.getInFlight());
+	}
+
+}
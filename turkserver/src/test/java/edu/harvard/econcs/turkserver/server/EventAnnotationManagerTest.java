@@ -2,12 +2,22 @@ package edu.harvard.econcs.turkserver.server;
 
 import static org.junit.Assert.*;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
+import edu.harvard.econcs.turkserver.api.BroadcastMessage;
+import edu.harvard.econcs.turkserver.api.ExperimentServer;
+import edu.harvard.econcs.turkserver.api.HITWorker;
+import edu.harvard.econcs.turkserver.api.ServiceMessage;
+
 public class EventAnnotationManagerTest {
 
 	EventAnnotationManager m;
@@ -27,7 +37,7 @@ public class EventAnnotationManagerTest {
 		TestExperiment e = new TestExperiment(null, null, null);		
 		m.processExperiment("test", e);
 		
-		Method interval = m.getIntervalEvents("test").get(0);
+		EventAnnotationManager.Callback interval = m.getIntervalEvents("test").get(0);
 		
 		/*
 		 * Test all callbacks
@@ -67,13 +77,16 @@ public class EventAnnotationManagerTest {
 		assertEquals(2, m.beanClasses.size());
 		assertEquals(1, m.beanClasses.keySet().size());
 		
-		assertEquals(1, m.starts.size());
-		assertEquals(1, m.rounds.size());
-		assertEquals(1, m.timeouts.size());
-		assertEquals(1, m.connects.size());
-		assertEquals(1, m.disconnects.size());
-		assertEquals(1, m.broadcasts.size());
-		assertEquals(1, m.services.size());
+		assertEquals(1, m.callbacks.size());
+		EventAnnotationManager.ClassCallbacks cbs = m.callbacks.get(TestExperiment.class);
+		assertEquals(1, cbs.starts.size());
+		assertEquals(1, cbs.rounds.size());
+		assertEquals(1, cbs.intervals.size());
+		assertEquals(1, cbs.timeouts.size());
+		assertEquals(1, cbs.connects.size());
+		assertEquals(1, cbs.disconnects.size());
+		assertEquals(1, cbs.broadcasts.size());
+		assertEquals(1, cbs.services.size());
 		
 		m.deprocessExperiment("test2");
 		
@@ -84,13 +97,8 @@ public class EventAnnotationManagerTest {
 		assertEquals(1, m.beanClasses.size());
 		assertEquals(1, m.beanClasses.keySet().size());
 		
-		assertEquals(1, m.starts.size());
-		assertEquals(1, m.rounds.size());
-		assertEquals(1, m.timeouts.size());
-		assertEquals(1, m.connects.size());
-		assertEquals(1, m.disconnects.size());
-		assertEquals(1, m.broadcasts.size());
-		assertEquals(1, m.services.size());
+		assertEquals(1, m.callbacks.size());
+		assertSame(cbs, m.callbacks.get(TestExperiment.class));
 		
 		m.deprocessExperiment("test");						
 		
@@ -101,12 +109,84 @@ public class EventAnnotationManagerTest {
 		assertEquals(0, m.beanClasses.size());
 		assertEquals(0, m.beanClasses.keySet().size());
 		
-		assertEquals(0, m.starts.size());
-		assertEquals(0, m.rounds.size());
-		assertEquals(0, m.timeouts.size());
-		assertEquals(0, m.connects.size());
-		assertEquals(0, m.disconnects.size());
-		assertEquals(0, m.broadcasts.size());
-		assertEquals(0, m.services.size());
+		assertEquals(0, m.callbacks.size());
+	}
+	
+	@ExperimentServer
+	static class RoutedExperiment {
+		List<String> calls = new ArrayList<>();
+		
+		@BroadcastMessage
+		boolean any(HITWorker worker, Map<String, Object> msg) {
+			calls.add("any");
+			return false;
+		}
+		
+		@BroadcastMessage(key="chat")
+		boolean chat(HITWorker worker, Map<String, Object> msg) {
+			calls.add("chat");
+			return false;
+		}
+		
+		@BroadcastMessage(key="type", value="move")
+		boolean move(HITWorker worker, Map<String, Object> msg) {
+			calls.add("move");
+			return true;
+		}
+		
+		@ServiceMessage(key="type", value="quit")
+		void quit(HITWorker worker, Map<String, Object> msg) {
+			calls.add("quit");
+		}
+	}
+	
+	@Test
+	public void testRouting() {
+		RoutedExperiment e = new RoutedExperiment();
+		m.processExperiment("routed", e);
+		
+		assertEquals(3, m.callbacks.get(RoutedExperiment.class).broadcasts.size());
+		assertEquals(1, m.callbacks.get(RoutedExperiment.class).services.size());
+		
+		// Only the catch-all gets a null message
+		assertFalse(m.deliverBroadcastMsg("routed", null, null));
+		assertEquals("[any]", e.calls.toString());
+		e.calls.clear();
+		
+		// Handlers run in the order they were found on the class
+		String[] declared = new String[3];
+		for( Map.Entry<EventAnnotationManager.Callback, Integer> c :
+			m.callbacks.get(RoutedExperiment.class).broadcasts.order.entrySet() )
+			declared[c.getValue()] = c.getKey().method.getName();
+		
+		assertFalse(m.deliverBroadcastMsg("routed", null, ImmutableMap.<String, Object>of("chat", "hi")));
+		assertEquals(inOrder(declared, "any", "chat"), e.calls);
+		e.calls.clear();
+		
+		assertTrue(m.deliverBroadcastMsg("routed", null, ImmutableMap.<String, Object>of("type", "move")));
+		assertEquals(inOrder(declared, "any", "move"), e.calls);
+		e.calls.clear();
+		
+		assertTrue(m.deliverBroadcastMsg("routed", null, ImmutableMap.<String, Object>of("type", "move", "chat", "hi")));
+		assertEquals(inOrder(declared, "any", "chat", "move"), e.calls);
+		e.calls.clear();
+		
+		assertFalse(m.deliverBroadcastMsg("routed", null, ImmutableMap.<String, Object>of("type", "stay")));
+		assertEquals("[any]", e.calls.toString());
+		e.calls.clear();
+		
+		m.deliverServiceMsg("routed", null, ImmutableMap.<String, Object>of("type", "move"));
+		assertTrue(e.calls.isEmpty());
+		
+		m.deliverServiceMsg("routed", null, ImmutableMap.<String, Object>of("type", "quit"));
+		assertEquals("[quit]", e.calls.toString());
+		
+		m.deprocessExperiment("routed");
+	}
+	
+	static List<String> inOrder(String[] declared, String... names) {
+		List<String> l = new ArrayList<>(Arrays.asList(declared));
+		l.retainAll(Arrays.asList(names));
+		return l;
 	}
 }
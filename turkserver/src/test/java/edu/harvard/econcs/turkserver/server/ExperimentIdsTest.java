@@ -0,0 +1,95 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class ExperimentIdsTest {
+
+	@Test
+	public void testFormat() {
+		String id = new ExperimentIds(370).next();
+
+		assertEquals(24, id.length());
+		assertTrue(id, id.matches("\\d{8} \\d{6}\\.\\d{3} aa[0-9a-z]{2}"));
+	}
+
+	@Test
+	public void testUtc() throws Exception {
+		TimeZone local = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+		try {
+			long before = System.currentTimeMillis();
+			String id = new ExperimentIds(0).next();
+
+			// Same time whatever the server's zone, so daylight saving can't repeat it
+			SimpleDateFormat utc = new SimpleDateFormat("yyyyMMdd HHmmss.SSS");
+			utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+			long time = utc.parse(id.substring(0, 19)).getTime();
+			assertTrue(time >= before && time <= System.currentTimeMillis());
+		}
+		finally {
+			TimeZone.setDefault(local);
+		}
+	}
+
+	@Test
+	public void testIncreasing() {
+		ExperimentIds ids = new ExperimentIds(0);
+
+		// Far more than fit in a millisecond
+		List<String> made = new ArrayList<String>();
+		for( int i = 0; i < 10000; i++ ) made.add(ids.next());
+
+		List<String> sorted = new ArrayList<String>(made);
+		Collections.sort(sorted);
+		assertEquals(made, sorted);
+		assertEquals(made.size(), new HashSet<String>(made).size());
+	}
+
+	@Test
+	public void testUnique() throws InterruptedException {
+		final ExperimentIds first = new ExperimentIds(1);
+		final ExperimentIds second = new ExperimentIds(2);
+		final Set<String> made = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		int threads = 8;
+		final int each = 5000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for( int t = 0; t < threads; t++ ) {
+			final ExperimentIds ids = t % 2 == 0 ? first : second;
+			new Thread() {
+				public void run() {
+					try { start.await(); }
+					catch (InterruptedException e) { return; }
+
+					for( int i = 0; i < each; i++ ) made.add(ids.next());
+					done.countDown();
+				}
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+
+		assertEquals(threads * each, made.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNodeRange() {
+		new ExperimentIds(36 * 36);
+	}
+
+}
@@ -2,11 +2,17 @@ package edu.harvard.econcs.turkserver.server;
 
 import static org.junit.Assert.*;
 
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.configuration.Configuration;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.harvard.econcs.turkserver.Codec;
 import edu.harvard.econcs.turkserver.cometd.MockServerSession;
+import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.logging.FakeExperimentLog;
 import edu.harvard.econcs.turkserver.schema.Session;
 import edu.harvard.econcs.turkserver.server.mysql.MockDataTracker;
@@ -22,7 +28,8 @@ public class ExperimentsTest {
 				TestExperiment.class,
 				new DummyConfigurator(1),				
 				new MockDataTracker(),
-				new EventAnnotationManager()
+				new EventAnnotationManager(),
+				TSConfig.getDefault()
 				);
 		
 		record = new Session();
@@ -46,18 +53,177 @@ public class ExperimentsTest {
 		
 		// Check that worker is mapped
 		assertTrue(exps.currentExps.containsKey(worker));		
-		Thread.sleep(5000);
+		// Timer runs intervals up to a tick late
+		Thread.sleep(5000 + 2 * Experiments.TIMER_TICK_MILLIS);
 		
 		exps.scheduleFinishExperiment(cont);		
 		Thread.sleep(500); // Allow for time to finish
 
-		// check that scheduledIntervals is cleared
-		assertTrue(exps.scheduledIntervals.size() == 0);		
+		// check that scheduled timeouts are cleared
+		assertTrue(exps.expTimeouts.size() == 0);		
 		// Check that worker is unmapped
 		assertFalse(exps.currentExps.containsKey(worker));		
 		// check that there were approx 5 interval calls
 		assertEquals(5, bean.intervalCalls, 1);		
 
 	}
+	
+	@Test
+	public void testTimeLimit() throws InterruptedException {
+		Configuration conf = TSConfig.getDefault();
+		conf.setProperty(TSConfig.EXP_TIMELIMIT, 1);
+		
+		exps = new Experiments(
+				TestExperiment.class,
+				new DummyConfigurator(1),				
+				new MockDataTracker(),
+				new EventAnnotationManager(),
+				conf
+				);
+		
+		HITWorkerImpl worker = new HITWorkerImpl(new MockServerSession(), record);
+		FakeExperimentLog log = new FakeExperimentLog();
+		ExperimentControllerImpl cont = new ExperimentControllerImpl(log, worker, exps);
+		
+		TestExperiment bean = new TestExperiment(worker, log, cont);
+		
+		exps.startExperiment(worker, cont, bean);
+		
+		// No clients to wait for, so starts right away with a 1 second limit
+		Thread.sleep(500);
+		assertEquals(0, bean.timeLimitCalls);
+		Thread.sleep(1000);
+		assertEquals(1, bean.timeLimitCalls);
+		assertEquals(1, exps.getSubscribeLatency().getCount());
+		
+		exps.scheduleFinishExperiment(cont);		
+		Thread.sleep(500);
+		
+		assertTrue(exps.expTimeouts.size() == 0);
+	}
+
+	@Test
+	public void testStartLater() throws InterruptedException {
+		final CountDownLatch setUp = new CountDownLatch(1);
+		
+		// Setting up waits until the test says so
+		exps = new Experiments(
+				TestExperiment.class,
+				new DummyConfigurator(1),				
+				new MockDataTracker(),
+				new EventAnnotationManager(),
+				TSConfig.getDefault()
+				) {
+			@Override
+			ExperimentControllerImpl startGroup(HITWorkerGroupImpl group) {
+				try { setUp.await(); } 
+				catch (InterruptedException e) { throw new RuntimeException(e); }
+				
+				FakeExperimentLog log = new FakeExperimentLog();
+				ExperimentControllerImpl cont = new ExperimentControllerImpl(log, group, this);
+				group.setExperiment(cont);
+				startExperiment(group, cont, new TestExperiment(group, log, cont));
+				return cont;
+			}
+		};
+		
+		HITWorkerImpl worker = new HITWorkerImpl(new MockServerSession(), record);
+		HITWorkerGroupImpl group = new HITWorkerGroupImpl();
+		group.add(worker);
+		
+		exps.startGroupLater(group);
+		
+		// Out of the lobby's hands before the experiment is set up
+		assertTrue(exps.workerIsInProgress(worker));
+		assertFalse(exps.currentExps.containsKey(worker));
+		
+		// Caught up after starting
+		exps.workerReconnected(worker);
+		assertTrue(exps.starting.get(worker));
+		
+		setUp.countDown();
+		Thread.sleep(500);
+		
+		assertTrue(exps.currentExps.containsKey(worker));
+		assertTrue(exps.starting.isEmpty());
+		assertTrue(exps.workerIsInProgress(worker));
+	}
+	
+	@Test
+	public void testStartFailed() throws InterruptedException {
+		exps = new Experiments(
+				TestExperiment.class,
+				new DummyConfigurator(1),				
+				new MockDataTracker(),
+				new EventAnnotationManager(),
+				TSConfig.getDefault()
+				) {
+			@Override
+			ExperimentControllerImpl startGroup(HITWorkerGroupImpl group) {
+				throw new IllegalStateException("Can't set up experiment");
+			}
+		};
+		
+		MockServerSession session = new MockServerSession();
+		HITWorkerImpl worker = new HITWorkerImpl(session, record);
+		HITWorkerGroupImpl group = new HITWorkerGroupImpl();
+		group.add(worker);
+		
+		exps.startGroupLater(group);
+		Thread.sleep(500);
+		
+		// Free to go back to the lobby, and told to
+		assertFalse(exps.workerIsInProgress(worker));
+		assertTrue(exps.starting.isEmpty());
+		assertEquals("/service/user", session.lastChannel);
+		assertEquals(Codec.status_error, ((Map<?, ?>) session.lastData).get("status"));
+	}
+	
+	@Test
+	public void testStartUndone() throws InterruptedException {
+		exps = new Experiments(
+				TestExperiment.class,
+				new DummyConfigurator(1),				
+				new MockDataTracker(),
+				new EventAnnotationManager(),
+				TSConfig.getDefault()
+				) {
+			@Override
+			ExperimentControllerImpl startGroup(HITWorkerGroupImpl group) {
+				FakeExperimentLog log = new FakeExperimentLog();
+				ExperimentControllerImpl cont = new ExperimentControllerImpl(log, group, this);
+				group.setExperiment(cont);
+				startExperiment(group, cont, new TestExperiment(group, log, cont));
+				return cont;
+			}
+		};
+		
+		// Fails after the experiment is set up and recorded
+		exps.registerListener(new ExperimentListener() {
+			public void experimentStarted(ExperimentControllerImpl exp) { 
+				throw new IllegalStateException("Listener failed");
+			}
+			public void roundStarted(ExperimentControllerImpl exp) {}
+			public void experimentFinished(ExperimentControllerImpl exp) {}
+		});
+		
+		MockServerSession session = new MockServerSession();
+		HITWorkerImpl worker = new HITWorkerImpl(session, record);
+		HITWorkerGroupImpl group = new HITWorkerGroupImpl();
+		group.add(worker);
+		
+		exps.startGroupLater(group);
+		Thread.sleep(500);
+		
+		// Nothing left of the experiment, so reloading goes back to the lobby
+		assertFalse(exps.workerIsInProgress(worker));
+		assertTrue(exps.currentExps.isEmpty());
+		assertTrue(exps.expTimeouts.isEmpty());
+		assertTrue(exps.barriers.isEmpty());
+		assertTrue(exps.manager.beans.isEmpty());
+		assertNull(worker.expCont);
+		assertNull(record.getExperimentId());
+		assertEquals(Codec.status_error, ((Map<?, ?>) session.lastData).get("status"));
+	}
 
 }
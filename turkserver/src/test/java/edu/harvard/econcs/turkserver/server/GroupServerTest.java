@@ -2,7 +2,9 @@ package edu.harvard.econcs.turkserver.server;
 
 import static org.junit.Assert.*;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.configuration.Configuration;
 import org.junit.After;
@@ -47,7 +49,7 @@ public class GroupServerTest {
 				tracker,
 				new FakeHITController(),
 				workerAuth,
-				new Experiments(null, null, tracker, null),			
+				new Experiments(null, null, tracker, null, conf),			
 				conf,
 				lobby = new Lobby.NullLobby()
 				);		
@@ -211,9 +213,9 @@ public class GroupServerTest {
 		
 		// Pretend that we have a previous HITWorker for this guy
 		HITWorkerImpl hitw = new HITWorkerImpl(null, s);
-		server.hitWorkerTable.put(hitId, workerId, hitw);
+		server.workers.put(hitId, workerId, hitw);
 		
-		assertEquals(0, server.completedHITs);
+		assertEquals(0, server.counts.getCompleted());
 		assertEquals(SessionStatus.COMPLETED, SessionRecord.status(s));		
 		
 		MockServerSession conn = new MockServerSession();
@@ -224,20 +226,21 @@ public class GroupServerTest {
 		assertEquals(Codec.status_expfinished, ((Map<String, Object>) conn.lastData).get("status"));				
 		
 		// Try to submit the HIT and ensure it goes through
-		server.updateCompletion();
+		server.reconcileCounts();
 		server.sessionSubmit(conn, "some random results");
 				
 		assertEquals(conn.lastChannel, USER_CHANNEL);
 		assertEquals(Codec.status_completed, ((Map<String, Object>) conn.lastData).get("status"));
-		assertEquals(1, server.completedHITs);
+		assertEquals(1, server.counts.getCompleted());
 		
 		// Make sure that a double-submit doesn't count twice
-		server.updateCompletion();
+		server.reconcileCounts();
 		server.sessionSubmit(conn, "some random results");
 		
 		assertEquals(conn.lastChannel, USER_CHANNEL);
 		assertEquals(Codec.status_completed, ((Map<String, Object>) conn.lastData).get("status") );
-		assertEquals(1, server.completedHITs);
+		assertEquals(1, server.counts.getCompleted());
+		assertEquals(1, server.counts.getSubmitted());
 	}
 	
 	/*
@@ -284,6 +287,94 @@ public class GroupServerTest {
 		assertEquals(record.getWorkerId(), workerId);
 	}
 	
+	@Test
+	public void testReconnectGrace() {
+		String hitId = "testHITId";
+		String workerId = "testWorkerId";		
+		String assignmentId = "testAssignmentId";
+		
+		Quiz passedQuiz = new Quiz();		
+		passedQuiz.setNumCorrect(1);
+		passedQuiz.setNumTotal(1);
+		passedQuiz.setScore(1d);		
+		tracker.saveQuizResults(hitId, workerId, passedQuiz);
+		
+		MockServerSession conn = new MockServerSession();
+		HITWorkerImpl hitw = server.sessionAccept(conn, hitId, assignmentId, workerId);
+		assertNotNull(hitw);
+		
+		Session record = tracker.getStoredSessionInfo(hitId);
+		
+		// Reload: session goes away and a new one accepts
+		server.park(conn);
+		assertEquals(1, server.getParkedCount());
+		assertEquals(workerId, record.getWorkerId());
+		
+		MockServerSession conn2 = new MockServerSession();
+		assertSame(hitw, server.sessionAccept(conn2, hitId, assignmentId, workerId));
+		
+		assertEquals(Codec.status_connectlobby, ((Map<String, Object>) conn2.lastData).get("status"));
+		assertEquals(1, server.getReconnectsAbsorbed());
+		assertEquals(0, server.getParkedCount());
+		
+		assertSame(conn2, hitw.cometdSession.get());
+		assertSame(hitw, server.workers.get(conn2));
+		
+		// Still assigned, no disconnect happened
+		assertEquals(workerId, record.getWorkerId());
+		assertEquals(1, server.counts.getAssigned());
+	}
+	
+	@Test
+	public void testReconnectGraceRunsOut() throws Exception {
+		Configuration conf = TSConfig.getDefault();
+		conf.setProperty(TSConfig.EXP_REPEAT_LIMIT, 1);
+		conf.setProperty(TSConfig.SERVER_HITGOAL, 2);
+		conf.setProperty(TSConfig.SERVER_RECONNECT_GRACE, 100);
+		
+		final List<String> lobbyCalls = new CopyOnWriteArrayList<String>();
+		GroupServer server = new GroupServer(tracker, new FakeHITController(), 
+				new WorkerAuthenticator(tracker, new QuizFactory.NullQuizFactory(), 
+						new QuizPolicy.PercentageQuizPolicy(1d, 1), conf),
+				new Experiments(null, null, tracker, null, conf), conf, 
+				new Lobby.NullLobby() {
+					public void userParked(HITWorkerImpl hitw) { lobbyCalls.add("parked"); }
+					public boolean userQuit(HITWorkerImpl hitw) { lobbyCalls.add("quit"); return false; }
+				});
+		
+		String hitId = "testHITId";
+		String workerId = "testWorkerId";		
+		String assignmentId = "testAssignmentId";
+		
+		Quiz passedQuiz = new Quiz();		
+		passedQuiz.setNumCorrect(1);
+		passedQuiz.setNumTotal(1);
+		passedQuiz.setScore(1d);		
+		tracker.saveQuizResults(hitId, workerId, passedQuiz);
+		
+		MockServerSession conn = new MockServerSession();
+		HITWorkerImpl hitw = server.sessionAccept(conn, hitId, assignmentId, workerId);
+		assertNotNull(hitw);
+		
+		// Held out of groups while parked
+		server.park(conn);
+		assertEquals(1, server.getParkedCount());
+		assertEquals("[parked]", lobbyCalls.toString());
+		
+		for( int i = 0; i < 100 && server.getParkedCount() > 0; i++ ) Thread.sleep(20);
+		assertEquals(0, server.getParkedCount());
+		
+		// Then taken out of the lobby and disconnected as usual
+		for( int i = 0; i < 100 && lobbyCalls.size() < 2; i++ ) Thread.sleep(20);
+		assertEquals("[parked, quit]", lobbyCalls.toString());
+		assertEquals(0, server.getReconnectsAbsorbed());
+		
+		// Too late to resume, so the accept goes through admission again
+		MockServerSession conn2 = new MockServerSession();
+		server.sessionAccept(conn2, hitId, assignmentId, workerId);
+		assertEquals(0, server.getReconnectsAbsorbed());
+	}
+	
 	@Test
 	public void testAcceptBatchFinished() {
 		String hitId = "testHITId";		
@@ -310,9 +401,9 @@ public class GroupServerTest {
 		assertEquals(SessionStatus.COMPLETED, SessionRecord.status(s));
 		assertEquals(SessionStatus.COMPLETED, SessionRecord.status(s2));
 		
-		server.updateCompletion();
+		server.reconcileCounts();
 		
-		assertEquals(2, server.completedHITs);		
+		assertEquals(2, server.counts.getCompleted());		
 		
 		MockServerSession conn = new MockServerSession();
 		
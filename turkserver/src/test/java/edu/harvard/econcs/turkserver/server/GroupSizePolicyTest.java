@@ -0,0 +1,113 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.api.FlexibleConfigurator;
+import edu.harvard.econcs.turkserver.cometd.MockServerSession;
+import edu.harvard.econcs.turkserver.config.TSConfig;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class GroupSizePolicyTest {
+
+	static final long SEC = TimeUnit.SECONDS.toNanos(1);
+
+	static class FlexibleDummyConfigurator extends DummyConfigurator implements FlexibleConfigurator {
+		final int min, max;
+
+		FlexibleDummyConfigurator(int min, int groupSize, int max) {
+			super(groupSize);
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public int minGroupSize() { return min; }
+		@Override
+		public int maxGroupSize() { return max; }
+	}
+
+	@Test
+	public void testShrink() {
+		GroupSizePolicy policy = new GroupSizePolicy(new FlexibleDummyConfigurator(2, 4, 5), 10000);
+
+		// Arrivals a second apart
+		for( int i = 0; i <= 3; i++ ) policy.arrived(i * SEC);
+
+		// Full groups as usual
+		assertEquals(4, policy.groupSize(4, 0, 3 * SEC));
+
+		// Not waited long enough, or the rest will come soon
+		assertEquals(4, policy.groupSize(3, 5 * SEC, 4 * SEC));
+		assertEquals(4, policy.groupSize(3, 20 * SEC, 4 * SEC));
+
+		// Long since anyone arrived
+		assertEquals(3, policy.groupSize(3, 20 * SEC, 20 * SEC));
+		assertEquals(2, policy.groupSize(2, 20 * SEC, 20 * SEC));
+
+		// Never below the minimum
+		assertEquals(4, policy.groupSize(1, 20 * SEC, 20 * SEC));
+	}
+
+	@Test
+	public void testLeftovers() {
+		GroupSizePolicy policy = new GroupSizePolicy(new FlexibleDummyConfigurator(2, 4, 5), 10000);
+
+		policy.arrived(0);
+		policy.arrived(100 * SEC);
+
+		// One left over that would wait a long time
+		assertEquals(5, policy.groupSize(5, 0, 100 * SEC));
+
+		// Enough left over for a group of their own, or too many to take
+		assertEquals(4, policy.groupSize(6, 0, 100 * SEC));
+		assertEquals(4, policy.groupSize(9, 0, 100 * SEC));
+	}
+
+	@Test
+	public void testLobby() throws InterruptedException {
+		Configuration conf = TSConfig.getDefault();
+		conf.setProperty(TSConfig.SERVER_LOBBY_BUDGET, 200);
+
+		ReadyStateLobby lobby = new ReadyStateLobby(new FlexibleDummyConfigurator(2, 3, 3), conf);
+
+		final LinkedBlockingQueue<HITWorkerGroupImpl> groups = new LinkedBlockingQueue<HITWorkerGroupImpl>();
+		lobby.setListener(new LobbyListener() {
+			public void broadcastLobbyMessage(Object data) {}
+			public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {}
+			public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {}
+			public void createNewExperiment(HITWorkerGroupImpl group) { groups.add(group); }
+			public int getNumExperimentsRunning() { return 0; }
+			public int getNumUsersConnected() { return 0; }
+		});
+
+		// Workers only hold on to their sessions weakly
+		List<MockServerSession> sessions = new ArrayList<MockServerSession>();
+
+		for( int i = 0; i < 2; i++ ) {
+			Session record = new Session();
+			record.setHitId("HIT " + i);
+			record.setUsername("user " + i);
+
+			MockServerSession session = new MockServerSession();
+			sessions.add(session);
+			lobby.userJoined(new HITWorkerImpl(session, record));
+		}
+		assertTrue(groups.isEmpty());
+
+		// Nobody else comes, so the two start on their own
+		HITWorkerGroupImpl group = groups.poll(2000, TimeUnit.MILLISECONDS);
+		assertNotNull(group);
+		assertEquals(2, group.groupSize());
+		assertEquals(2, lobby.getWaitMillis().getCount());
+	}
+
+}
@@ -2,10 +2,14 @@ package edu.harvard.econcs.turkserver.server;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.PropertiesConfiguration;
@@ -16,6 +20,7 @@ import org.junit.Test;
 import com.google.common.collect.ImmutableMap;
 
 import edu.harvard.econcs.turkserver.api.HITWorkerGroup;
+import edu.harvard.econcs.turkserver.client.LobbyState;
 import edu.harvard.econcs.turkserver.cometd.MockServerSession;
 import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.schema.Session;
@@ -25,8 +30,27 @@ public class LobbySyncTest {
 	class TestLobbyListener implements LobbyListener {		
 		ConcurrentLinkedQueue<HITWorkerGroup> groups = new ConcurrentLinkedQueue<HITWorkerGroup>();		
 
+		// What a client that has been in the lobby since the start would see
+		LobbyState state = new LobbyState();
+		AtomicInteger gaps = new AtomicInteger();
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public void broadcastLobbyMessage(Object data) {
+			if( !state.apply((Map<String, Object>) data) && state.getVersion() >= 0 )
+				gaps.incrementAndGet();
+		}
+
 		@Override
-		public void broadcastLobbyMessage(Object data) {}
+		public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {
+			broadcastLobbyMessage(data);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {
+			state.apply((Map<String, Object>) data);
+		}
 
 		@Override
 		public void createNewExperiment(HITWorkerGroupImpl group) {
@@ -128,5 +152,131 @@ public class LobbySyncTest {
 		assertEquals(this.total, ids.size());		
 		assertEquals(this.total, totalUsers);
 	}
+	
+	@Test
+	public void testDeltas() throws InterruptedException {
+		Configuration conf = new PropertiesConfiguration();
+		conf.addProperty(TSConfig.SERVER_LOBBY_DEFAULT, false);
+		
+		lobby = new ReadyStateLobby(new DummyConfigurator(groupsize), conf);		
+		lobby.setListener(listener = new TestLobbyListener());
+		
+		Set<Thread> threadz = new HashSet<>();
+		List<MockServerSession> sessions = new ArrayList<>();
+		
+		final Map<String, Object> lobbyReady = ImmutableMap.<String, Object>of("ready", true);
+		
+		for( int i = 0; i < total; i++ ) {
+			final Session record = new Session();
+			record.setHitId("HIT " + i);
+			record.setWorkerId("Worker " + i);
+			record.setUsername("User " + i);
+			
+			final String id = "session " + i;
+			final MockServerSession session = new MockServerSession() {
+				@Override
+				public String getId() { return id; }
+			};
+			// Workers only hold on to their sessions weakly
+			sessions.add(session);
+			
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					HITWorkerImpl hitw = new HITWorkerImpl(session, record);
+					lobby.userJoined(hitw);
+					
+					if( Math.random() < 0.5 )
+						lobby.updateStatus(hitw, lobbyReady);
+					if( Math.random() < 0.2 )
+						lobby.userQuit(hitw);
+				}
+			});
+			
+			t.start();
+			threadz.add(t);
+		}
+		
+		for( Thread t : threadz ) t.join();
+		
+		// The changes add up to what is actually in the lobby
+		assertEquals(0, listener.gaps.get());
+		
+		Map<String, Object> seen = listener.state.toMap();
+		Object[] users = ((List<?>) seen.get("users")).toArray();
+		
+		assertEquals(lobby.getLobbyUsers().size(), users.length);
+		assertEquals(lobby.getLobbyUsers().size(), seen.get("numusers"));
+		
+		for( HITWorkerImpl hitw : lobby.getLobbyUsers() ) {
+			boolean found = false;
+			for( Object o : users ) {
+				Map<?, ?> user = (Map<?, ?>) o;
+				if( !hitw.cometdSession.get().getId().equals(user.get("id")) ) continue;
+				
+				assertEquals(lobby.getStatus(hitw), user.get("ready"));
+				found = true;
+			}
+			assertTrue(found);
+		}
+	}
+	
+	HITWorkerImpl join(List<MockServerSession> sessions, int i) {
+		Session record = new Session();
+		record.setHitId("HIT " + i);
+		record.setWorkerId("Worker " + i);
+		
+		MockServerSession session = new MockServerSession();
+		sessions.add(session);
+		
+		HITWorkerImpl hitw = new HITWorkerImpl(session, record);
+		lobby.userJoined(hitw);
+		return hitw;
+	}
+	
+	@Test
+	public void testParked() {
+		List<MockServerSession> sessions = new ArrayList<>();
+		
+		HITWorkerImpl away = join(sessions, 0);
+		lobby.userParked(away);
+		
+		// Still listed, but not grouped while their session is gone
+		join(sessions, 1);
+		join(sessions, 2);
+		assertTrue(listener.groups.isEmpty());
+		assertEquals(3, lobby.getLobbyUsers().size());
+		assertEquals(Boolean.TRUE, lobby.getStatus(away));
+		
+		// Back with the status they had
+		assertTrue(lobby.userReconnected(away));
+		assertEquals(1, listener.groups.size());
+		assertTrue(listener.groups.peek().contains(away));
+		
+		// Never came back
+		HITWorkerImpl gone = join(sessions, 3);
+		lobby.userParked(gone);
+		assertTrue(lobby.userQuit(gone));
+		assertFalse(lobby.userReconnected(gone));
+		assertEquals(0, lobby.readyCount());
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testUsername() {
+		List<MockServerSession> sessions = new ArrayList<>();
+		
+		HITWorkerImpl hitw = join(sessions, 0);
+		lobby.sendSnapshot(hitw);
+		
+		// Name comes in after joining
+		hitw.getSessionRecord().setUsername("user 0");
+		lobby.userUpdated(hitw);
+		
+		List<Map<String, Object>> users = (List<Map<String, Object>>) listener.state.toMap().get("users");
+		assertEquals(1, users.size());
+		assertEquals("user 0", users.get(0).get("username"));
+		assertEquals(0, listener.gaps.get());
+	}
 
 }
@@ -0,0 +1,149 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+import edu.harvard.econcs.turkserver.api.GroupMatcher;
+import edu.harvard.econcs.turkserver.api.HITWorker;
+import edu.harvard.econcs.turkserver.cometd.MockServerSession;
+import edu.harvard.econcs.turkserver.config.TSConfig;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class MatchmakingLobbyTest {
+
+	class TestLobbyListener implements LobbyListener {
+		LinkedBlockingQueue<HITWorkerGroupImpl> groups = new LinkedBlockingQueue<HITWorkerGroupImpl>();
+
+		@Override
+		public void broadcastLobbyMessage(Object data) {}
+		@Override
+		public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {}
+		@Override
+		public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {}
+
+		@Override
+		public void createNewExperiment(HITWorkerGroupImpl group) {
+			groups.add(group);
+		}
+
+		@Override
+		public int getNumExperimentsRunning() { return 0; }
+		@Override
+		public int getNumUsersConnected() { return 0; }
+	}
+
+	// First letter of the username
+	static final Function<HITWorker, String> kind = new Function<HITWorker, String>() {
+		public String apply(HITWorker worker) { return worker.getUsername().substring(0, 1); }
+	};
+
+	// Workers only hold on to their sessions weakly
+	List<MockServerSession> sessions = new ArrayList<MockServerSession>();
+
+	TestLobbyListener listener;
+
+	MatchmakingLobby lobby(GroupMatcher matcher, long relaxMillis) {
+		Configuration conf = new PropertiesConfiguration();
+		conf.addProperty(TSConfig.SERVER_LOBBY_DEFAULT, true);
+		conf.addProperty(TSConfig.SERVER_LOBBY_RELAX, relaxMillis);
+
+		MatchmakingLobby lobby = new MatchmakingLobby(new DummyConfigurator(2), matcher, conf);
+		lobby.setListener(listener = new TestLobbyListener());
+		return lobby;
+	}
+
+	HITWorkerImpl join(MatchmakingLobby lobby, String username) {
+		Session record = new Session();
+		record.setHitId("HIT " + username);
+		record.setWorkerId("Worker " + username);
+		record.setUsername(username);
+
+		MockServerSession session = new MockServerSession();
+		sessions.add(session);
+
+		HITWorkerImpl hitw = new HITWorkerImpl(session, record);
+		lobby.userJoined(hitw);
+		return hitw;
+	}
+
+	@Test
+	public void testSameValue() {
+		MatchmakingLobby lobby = lobby(GroupMatchers.sameValue(kind), 0);
+
+		HITWorkerImpl a1 = join(lobby, "a1");
+		HITWorkerImpl b1 = join(lobby, "b1");
+		assertTrue(listener.groups.isEmpty());
+
+		HITWorkerImpl a2 = join(lobby, "a2");
+		HITWorkerGroupImpl group = listener.groups.poll();
+		assertEquals(2, group.groupSize());
+		assertTrue(group.contains(a1));
+		assertTrue(group.contains(a2));
+
+		assertEquals(1, lobby.getLobbyUsers().size());
+		assertNotNull(lobby.getStatus(b1));
+	}
+
+	@Test
+	public void testBalanced() {
+		MatchmakingLobby lobby = lobby(GroupMatchers.balanced(kind, "a", "b"), 0);
+
+		HITWorkerImpl a1 = join(lobby, "a1");
+		join(lobby, "a2");
+		assertTrue(listener.groups.isEmpty());
+
+		// Leaving the lobby takes a worker out of their bucket
+		lobby.userQuit(a1);
+
+		HITWorkerImpl b1 = join(lobby, "b1");
+		HITWorkerGroupImpl group = listener.groups.poll();
+		assertEquals(2, group.groupSize());
+		assertTrue(group.contains(b1));
+		assertFalse(group.contains(a1));
+
+		assertEquals(2, lobby.getWaitMillis().getCount());
+	}
+
+	@Test
+	public void testRelax() throws InterruptedException {
+		MatchmakingLobby lobby = lobby(GroupMatchers.sameValue(kind), 200);
+
+		join(lobby, "a1");
+		join(lobby, "b1");
+		assertTrue(listener.groups.isEmpty());
+
+		// Nobody else comes, so they end up together
+		HITWorkerGroupImpl group = listener.groups.poll(2000, TimeUnit.MILLISECONDS);
+		assertNotNull(group);
+		assertEquals(2, group.groupSize());
+
+		assertTrue(lobby.getWaitMillis().getPercentile(0.5) >= 100);
+	}
+
+	@Test
+	public void testBinned() {
+		Function<HITWorker, Integer> bins = GroupMatchers.binned(new Function<HITWorker, Integer>() {
+			public Integer apply(HITWorker worker) { return worker.getUsername().length(); }
+		}, 2, 4);
+
+		Session s = new Session();
+		for( String name : Arrays.asList("a", "ab", "abc", "abcd", "abcde") ) {
+			s.setUsername(name);
+			int expected = name.length() < 2 ? 0 : name.length() < 4 ? 1 : 2;
+			assertEquals(expected, (int) bins.apply(new HITWorkerImpl(null, s)));
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+public class ReadyQueueTest {
+
+	@Test
+	public void testOrder() {
+		ReadyQueue<String> q = new ReadyQueue<String>();
+
+		for( String s : Arrays.asList("a", "b", "c", "d", "e") ) q.add(s);
+
+		// Already waiting, keeps its place
+		assertFalse(q.add("a"));
+
+		q.remove("b");
+		assertEquals(4, q.size());
+
+		assertEquals(Arrays.asList("a", "c"), q.poll(2, Predicates.alwaysTrue()));
+		assertEquals(Arrays.asList("d", "e"), q.poll(2, Predicates.alwaysTrue()));
+		assertNull(q.poll(1, Predicates.alwaysTrue()));
+	}
+
+	@Test
+	public void testShortGroup() {
+		ReadyQueue<String> q = new ReadyQueue<String>();
+		q.add("a");
+		q.add("b");
+
+		assertNull(q.poll(3, Predicates.alwaysTrue()));
+
+		// Still at the front after coming back
+		q.add("c");
+		assertEquals(Arrays.asList("a", "b", "c"), q.poll(3, Predicates.alwaysTrue()));
+		assertEquals(0, q.size());
+	}
+
+	@Test
+	public void testInvalid() {
+		ReadyQueue<String> q = new ReadyQueue<String>();
+		for( String s : Arrays.asList("a", "b", "c") ) q.add(s);
+
+		final Set<String> gone = new HashSet<String>(Arrays.asList("b"));
+		List<String> group = q.poll(2, new Predicate<String>() {
+			public boolean apply(String s) { return !gone.contains(s); }
+		});
+
+		assertEquals(Arrays.asList("a", "c"), group);
+		assertFalse(q.contains("b"));
+	}
+
+}
@@ -0,0 +1,37 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SessionCountsTest {
+
+	@Test
+	public void testAwaitChange() throws Exception {
+		final SessionCounts counts = new SessionCounts();
+
+		long seen = counts.getVersion();
+		assertFalse(counts.awaitChange(seen, 10, TimeUnit.MILLISECONDS));
+
+		// A change before waiting is not missed
+		counts.submitted();
+		assertTrue(counts.awaitChange(seen, 0, TimeUnit.MILLISECONDS));
+		assertEquals(1, counts.getSubmitted());
+
+		seen = counts.getVersion();
+		new Thread() {
+			public void run() {
+				try { Thread.sleep(50); } catch (InterruptedException e) {}
+				counts.completed(3);
+			}
+		}.start();
+
+		long start = System.currentTimeMillis();
+		assertTrue(counts.awaitChange(seen, 5000, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(3, counts.getCompleted());
+	}
+
+}
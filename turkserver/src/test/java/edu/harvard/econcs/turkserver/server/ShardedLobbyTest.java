@@ -0,0 +1,161 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.client.LobbyState;
+import edu.harvard.econcs.turkserver.cometd.MockServerSession;
+import edu.harvard.econcs.turkserver.config.TSConfig;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class ShardedLobbyTest {
+
+	class TestLobbyListener implements LobbyListener {
+		ConcurrentLinkedQueue<HITWorkerGroupImpl> groups = new ConcurrentLinkedQueue<HITWorkerGroupImpl>();
+
+		// What each worker's client sees
+		ConcurrentMap<HITWorkerImpl, LobbyState> states = new ConcurrentHashMap<HITWorkerImpl, LobbyState>();
+
+		@Override
+		public void broadcastLobbyMessage(Object data) {
+			fail("Sharded lobby shouldn't broadcast to everyone");
+		}
+
+		@Override
+		public void broadcastShardMessage(String shard, Collection<HITWorkerImpl> to, Object data) {
+			for( HITWorkerImpl hitw : to ) sendLobbyMessage(hitw, data);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void sendLobbyMessage(HITWorkerImpl hitw, Object data) {
+			LobbyState state = states.get(hitw);
+			if( state == null ) states.putIfAbsent(hitw, new LobbyState());
+
+			states.get(hitw).apply((Map<String, Object>) data);
+		}
+
+		@Override
+		public void createNewExperiment(HITWorkerGroupImpl group) {
+			groups.add(group);
+		}
+
+		@Override
+		public int getNumExperimentsRunning() { return 0; }
+		@Override
+		public int getNumUsersConnected() { return 0; }
+	}
+
+	static final int SHARDS = 4;
+	static final int GROUPSIZE = 3;
+
+	ShardedLobby lobby;
+	TestLobbyListener listener;
+
+	// Workers only hold on to their sessions weakly
+	List<MockServerSession> sessions = new ArrayList<MockServerSession>();
+
+	@Before
+	public void setUp() {
+		Configuration conf = TSConfig.getDefault();
+		conf.setProperty(TSConfig.SERVER_LOBBY_DEFAULT, false);
+		// Rebalance by hand
+		conf.setProperty(TSConfig.SERVER_LOBBY_REBALANCE, 0);
+
+		DummyConfigurator configurator = new DummyConfigurator(GROUPSIZE);
+		List<Lobby> shards = new ArrayList<Lobby>();
+		for( int i = 0; i < SHARDS; i++ ) shards.add(new ReadyStateLobby(configurator, conf));
+
+		lobby = new ShardedLobby(configurator, shards, conf);
+		lobby.setListener(listener = new TestLobbyListener());
+	}
+
+	HITWorkerImpl join(final String id) {
+		Session record = new Session();
+		record.setHitId("HIT " + id);
+		record.setUsername("user " + id);
+
+		MockServerSession session = new MockServerSession() {
+			@Override
+			public String getId() { return id; }
+		};
+		sessions.add(session);
+
+		HITWorkerImpl hitw = new HITWorkerImpl(session, record);
+		lobby.userJoined(hitw);
+		return hitw;
+	}
+
+	@Test
+	public void testShardsSeeOwnChanges() {
+		List<HITWorkerImpl> workers = new ArrayList<HITWorkerImpl>();
+		for( int i = 0; i < 40; i++ ) workers.add(join("w" + i));
+
+		assertEquals(40, lobby.getLobbyUsers().size());
+
+		int total = 0;
+		for( Lobby shard : lobby.shards ) {
+			int n = shard.getLobbyUsers().size();
+			total += n;
+
+			// Each worker sees exactly their own shard
+			for( HITWorkerImpl hitw : shard.getLobbyUsers() )
+				assertEquals(n, listener.states.get(hitw).getUserCount());
+		}
+		assertEquals(40, total);
+	}
+
+	@Test
+	public void testRebalance() {
+		/*
+		 * Fewer than a group in each shard, so nobody can get ready
+		 * until they are put together
+		 */
+		List<HITWorkerImpl> workers = new ArrayList<HITWorkerImpl>();
+		for( int i = 0; workers.size() < GROUPSIZE; i++ ) {
+			HITWorkerImpl hitw = join("w" + i);
+			workers.add(hitw);
+
+			for( Lobby shard : lobby.shards ) {
+				if( shard.getLobbyUsers().size() < GROUPSIZE ) continue;
+
+				// Leave no shard with a group's worth
+				lobby.userQuit(hitw);
+				workers.remove(hitw);
+				break;
+			}
+		}
+
+		lobby.rebalance();
+
+		Lobby together = null;
+		for( Lobby shard : lobby.shards )
+			if( shard.getLobbyUsers().size() == GROUPSIZE ) together = shard;
+		assertNotNull(together);
+
+		// Moved workers see their new shard
+		for( HITWorkerImpl hitw : workers )
+			assertEquals(GROUPSIZE, listener.states.get(hitw).getUserCount());
+
+		for( HITWorkerImpl hitw : workers )
+			assertTrue(lobby.updateStatus(hitw, Collections.<String, Object>singletonMap("ready", true)));
+
+		HITWorkerGroupImpl group = listener.groups.poll();
+		assertNotNull(group);
+		assertEquals(GROUPSIZE, group.groupSize());
+		assertTrue(lobby.getLobbyUsers().isEmpty());
+	}
+
+}
@@ -35,6 +35,7 @@ class TestExperiment {
 	Set<String> uniqueMessages;
 	
 	int intervalCalls = 0;
+	volatile int timeLimitCalls = 0;
 	
 	@Inject
 	public TestExperiment(
@@ -80,6 +81,7 @@ class TestExperiment {
 	
 	@TimeLimit
 	void timeLimit() {
+		timeLimitCalls++;
 		lastCall = "timeLimit";
 	}
 	
@@ -19,6 +19,7 @@ import edu.harvard.econcs.turkserver.config.TSConfig;
 import edu.harvard.econcs.turkserver.schema.Session;
 import edu.harvard.econcs.turkserver.server.SessionRecord.SessionStatus;
 import edu.harvard.econcs.turkserver.server.mysql.MockDataTracker;
+import edu.harvard.econcs.turkserver.server.mysql.ExperimentDataTracker.Admission;
 
 public class WorkerAuthenticatorTest {
 
@@ -169,4 +170,28 @@ public class WorkerAuthenticatorTest {
 		workerAuth.checkWorkerLimits(hitId2, workerId, tracker.getStoredSessionInfo(hitId2));
 	}
 
+	@Test(expected=SimultaneousSessionsException.class)
+	public void testAdmissionLimits() throws Exception {
+		String hitId = "testHITId";
+		String hitId2 = "testHITId2";
+		
+		String workerId = "testWorkerId";
+		
+		Session takenSession = new Session();
+		takenSession.setHitId(hitId);
+		takenSession.setWorkerId(workerId);
+		takenSession.setAssignmentId("testAssignmentId");
+		
+		tracker.saveSession(takenSession);
+		
+		Admission admission = tracker.getAdmission(hitId2, workerId, workerAuth.usesQuiz());
+		
+		assertNull(admission.session);
+		assertEquals(1, admission.workerSessions.size());
+		assertNull(admission.quizzes);
+		
+		workerAuth.checkSessionReuse(hitId2, workerId, admission.session);
+		workerAuth.checkWorkerLimits(workerId, admission.session, admission.workerSessions);
+	}
+
 }
@@ -0,0 +1,69 @@
+package edu.harvard.econcs.turkserver.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.cometd.MockServerSession;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class WorkerRegistryTest {
+
+	static HITWorkerImpl worker(String hitId, String workerId) {
+		Session s = new Session();
+		s.setHitId(hitId);
+		s.setWorkerId(workerId);
+		return new HITWorkerImpl(null, s);
+	}
+
+	@Test
+	public void testRetireAndExpire() throws Exception {
+		WorkerRegistry workers = new WorkerRegistry(100, TimeUnit.MILLISECONDS);
+
+		HITWorkerImpl hitw = worker("hit", "worker");
+		workers.put("hit", "worker", hitw);
+
+		// Record changes don't lose track of the worker
+		hitw.record.setWorkerId("someone else");
+		workers.retire(hitw);
+
+		assertEquals(0, workers.getLiveCount());
+		assertSame(hitw, workers.get("hit", "worker"));
+
+		Thread.sleep(200);
+		assertNull(workers.get("hit", "worker"));
+		assertEquals(0, workers.getRetiredCount());
+	}
+
+	@Test
+	public void testComeBack() {
+		WorkerRegistry workers = new WorkerRegistry(1, TimeUnit.HOURS);
+
+		HITWorkerImpl hitw = worker("hit", "worker");
+		workers.put("hit", "worker", hitw);
+		workers.retire(hitw);
+
+		workers.put("hit", "worker", hitw);
+		assertEquals(1, workers.getLiveCount());
+		assertEquals(0, workers.getRetiredCount());
+
+		// Still live, so not forgotten
+		assertSame(hitw, workers.get("hit", "worker"));
+	}
+
+	@Test
+	public void testSessions() {
+		WorkerRegistry workers = new WorkerRegistry(1, TimeUnit.HOURS);
+
+		MockServerSession conn = new MockServerSession();
+		HITWorkerImpl hitw = worker("hit", "worker");
+
+		workers.put(conn, hitw);
+		assertSame(hitw, workers.get(conn));
+		assertSame(hitw, workers.remove(conn));
+		assertNull(workers.get(conn));
+	}
+
+}
@@ -0,0 +1,98 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class CachingDataTrackerTest {
+
+	static class CountingTracker extends MockDataTracker {
+		final AtomicInteger reads = new AtomicInteger();
+		// Happens after a read, as if written by someone else at the same time
+		Runnable duringRead = null;
+
+		@Override
+		public Session getStoredSessionInfo(String hitId) {
+			reads.incrementAndGet();
+			Session s = super.getStoredSessionInfo(hitId);
+
+			Runnable r = duringRead;
+			duringRead = null;
+			if( r != null ) r.run();
+
+			return s;
+		}
+
+		@Override
+		public Collection<Session> getSetSessionInfoForWorker(String workerId) {
+			reads.incrementAndGet();
+			return super.getSetSessionInfoForWorker(workerId);
+		}
+	}
+
+	CountingTracker mock;
+	CachingDataTracker tracker;
+
+	@Before
+	public void setUp() throws Exception {
+		mock = new CountingTracker();
+		tracker = new CachingDataTracker(mock, 100);
+	}
+
+	@Test
+	public void testRepeatedViews() {
+		for( int i = 0; i < 5; i++ ) {
+			if( !tracker.hitExistsInDB("hit") )
+				tracker.saveHITId("hit");
+		}
+
+		// One miss before saving, one after
+		assertEquals(2, mock.reads.get());
+		assertEquals(3, tracker.getSessionStats().hitCount());
+		assertTrue(tracker.hitExistsInDB("hit"));
+	}
+
+	@Test
+	public void testWriteThrough() {
+		tracker.saveHITId("hit");
+
+		Session s = tracker.getStoredSessionInfo("hit");
+		assertEquals(0, tracker.getSetSessionInfoForWorker("worker").size());
+
+		s.setWorkerId("worker");
+		tracker.saveSession(s);
+
+		int reads = mock.reads.get();
+		assertSame(s, tracker.getStoredSessionInfo("hit"));
+		assertEquals(reads, mock.reads.get());
+
+		// Worker index was invalidated by the write
+		Collection<Session> sessions = tracker.getSetSessionInfoForWorker("worker");
+		assertEquals(1, sessions.size());
+		assertSame(s, sessions.iterator().next());
+
+		tracker.clearWorkerForSession("hit");
+		assertEquals(0, tracker.getSetSessionInfoForWorker("worker").size());
+	}
+
+	@Test
+	public void testWriteWhileLoading() {
+		tracker.saveHITId("hit");
+
+		mock.duringRead = new Runnable() {
+			public void run() { tracker.deleteSession("hit"); }
+		};
+		assertNotNull(tracker.getStoredSessionInfo("hit"));
+
+		// What was read before the delete isn't kept
+		assertNull(tracker.getStoredSessionInfo("hit"));
+		assertFalse(tracker.hitExistsInDB("hit"));
+	}
+
+}
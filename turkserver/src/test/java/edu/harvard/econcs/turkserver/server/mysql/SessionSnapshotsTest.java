@@ -0,0 +1,84 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mysema.query.types.Path;
+
+import edu.harvard.econcs.turkserver.schema.QSession;
+import edu.harvard.econcs.turkserver.schema.Session;
+
+public class SessionSnapshotsTest {
+
+	static final QSession _session = QSession.session;
+
+	SessionSnapshots snapshots;
+	Session record;
+
+	@Before
+	public void setUp() throws Exception {
+		snapshots = new SessionSnapshots(10);
+
+		record = new Session();
+		record.setHitId("hit");
+		record.setSetId("set");
+		record.setComment("a long comment");
+	}
+
+	@Test
+	public void testUnknownRow() {
+		// Everything non-null, except the key
+		Map<Path<?>, Object> dirty = snapshots.dirty(record);
+
+		assertEquals(2, dirty.size());
+		assertEquals("set", dirty.get(_session.setId));
+		assertFalse(dirty.containsKey(_session.hitId));
+	}
+
+	@Test
+	public void testChanges() {
+		snapshots.read(record);
+		assertTrue(snapshots.dirty(record).isEmpty());
+
+		record.setWorkerId("worker");
+		record.setUsername("user");
+
+		long generation = snapshots.generation("hit");
+		Map<Path<?>, Object> dirty = snapshots.dirty(record);
+		assertEquals(2, dirty.size());
+		assertEquals("worker", dirty.get(_session.workerId));
+		assertFalse(dirty.containsKey(_session.comment));
+
+		snapshots.written("hit", dirty, generation);
+		assertTrue(snapshots.dirty(record).isEmpty());
+
+		snapshots.invalidate("hit");
+		assertEquals(4, snapshots.dirty(record).size());
+	}
+
+	@Test
+	public void testOverlappingWrites() {
+		snapshots.read(record);
+
+		// Two saves compared against the same snapshot
+		long first = snapshots.generation("hit");
+		record.setUsername("first");
+		Map<Path<?>, Object> firstDirty = snapshots.dirty(record);
+
+		long second = snapshots.generation("hit");
+		record.setUsername("second");
+		Map<Path<?>, Object> secondDirty = snapshots.dirty(record);
+
+		// Either could have been written last, so neither can be trusted
+		snapshots.written("hit", firstDirty, first);
+		snapshots.written("hit", secondDirty, second);
+
+		record.setUsername("first");
+		assertEquals(3, snapshots.dirty(record).size());
+	}
+
+}
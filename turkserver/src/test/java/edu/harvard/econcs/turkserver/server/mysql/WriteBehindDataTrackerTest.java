@@ -0,0 +1,147 @@
+package edu.harvard.econcs.turkserver.server.mysql;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.econcs.turkserver.schema.Session;
+import edu.harvard.econcs.turkserver.server.ExperimentControllerImpl;
+import edu.harvard.econcs.turkserver.server.HITWorkerImpl;
+
+public class WriteBehindDataTrackerTest {
+
+	static class CountingTracker extends MockDataTracker {
+		final AtomicInteger saves = new AtomicInteger();
+		final AtomicInteger batches = new AtomicInteger();
+		// Writes in the order they were applied
+		final List<String> applied = new CopyOnWriteArrayList<String>();
+
+		@Override
+		public void saveSession(Session record) {
+			saves.incrementAndGet();
+			applied.add("session " + record.getUsername() + " " + record.getExperimentId());
+			super.saveSession(record);
+		}
+
+		@Override
+		protected void saveExpStartTime(String expId, int groupsize, String inputData, long startTime) {
+			applied.add("experiment " + expId);
+			super.saveExpStartTime(expId, groupsize, inputData, startTime);
+		}
+
+		@Override
+		protected void writeBatch(Runnable writes) {
+			batches.incrementAndGet();
+			super.writeBatch(writes);
+		}
+	}
+
+	CountingTracker mock;
+	WriteBehindDataTracker tracker;
+
+	@Before
+	public void setUp() throws Exception {
+		mock = new CountingTracker();
+		// Long delay so that everything ends up in one batch unless flushed
+		tracker = new WriteBehindDataTracker(mock, 1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tracker.stop();
+	}
+
+	@Test
+	public void testMerge() {
+		tracker.saveHITId("hit");
+
+		Session s = new Session();
+		s.setHitId("hit");
+
+		for( int i = 0; i < 10; i++ ) {
+			s.setUsername("user " + i);
+			tracker.saveSession(s);
+		}
+
+		assertEquals(9, tracker.getMergedWrites());
+
+		tracker.flush();
+
+		assertEquals(0, tracker.getQueueSize());
+		assertEquals(1, mock.saves.get());
+		assertEquals(1, mock.batches.get());
+		assertEquals("user 9", mock.getStoredSessionInfo("hit").getUsername());
+	}
+
+	@Test
+	public void testOrdering() {
+		Session s = new Session();
+		s.setHitId("hit");
+		s.setWorkerId("worker");
+		tracker.saveSession(s);
+
+		tracker.clearWorkerForSession("hit");
+
+		// Can't be merged into the save before the clear
+		Session s2 = new Session();
+		s2.setHitId("hit");
+		s2.setWorkerId("worker2");
+		tracker.saveSession(s2);
+
+		assertEquals(0, tracker.getMergedWrites());
+
+		// Reads see everything written before them
+		assertEquals("worker2", tracker.getStoredSessionInfo("hit").getWorkerId());
+		assertEquals(2, mock.saves.get());
+	}
+
+	@Test
+	public void testCopy() {
+		Session s = new Session();
+		s.setHitId("hit");
+		s.setUsername("user");
+		tracker.saveSession(s);
+
+		// Not saved, so it shouldn't be written
+		s.setUsername("changed");
+		s.setWorkerId("worker");
+
+		tracker.flush();
+
+		Session stored = mock.getStoredSessionInfo("hit");
+		assertEquals("user", stored.getUsername());
+		assertNull(stored.getWorkerId());
+	}
+
+	@Test
+	public void testMergeAfterOtherWrites() {
+		Session s = new Session();
+		s.setHitId("hit");
+		HITWorkerImpl hitw = new HITWorkerImpl(null, s);
+
+		ExperimentControllerImpl cont = new ExperimentControllerImpl(null, hitw, null) {
+			@Override
+			public String getExpId() { return "exp"; }
+			@Override
+			public String getInputData() { return "input"; }
+			@Override
+			public long getStartTime() { return 0; }
+		};
+
+		tracker.saveUsername(hitw, "user");
+		tracker.newExperimentStarted(cont);
+
+		// Session can't refer to the experiment before it is inserted
+		assertEquals(0, tracker.getMergedWrites());
+		tracker.flush();
+
+		assertEquals("[session user null, experiment exp, session user exp]", mock.applied.toString());
+	}
+
+}
@@ -0,0 +1,59 @@
+package edu.harvard.econcs.turkserver.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoalescingTaskTest {
+
+	HashedWheelTimer timer;
+
+	Executor direct = new Executor() {
+		public void execute(Runnable command) { command.run(); }
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+
+		CoalescingTask task = new CoalescingTask(timer, direct, new Runnable() {
+			public void run() { runs.incrementAndGet(); }
+		}, 200, TimeUnit.MILLISECONDS);
+
+		// A burst of marks is one run
+		for( int i = 0; i < 1000; i++ ) task.mark();
+
+		Thread.sleep(100);
+		assertEquals(1, runs.get());
+
+		// Marks right after a run wait for the interval
+		task.mark();
+		task.mark();
+		Thread.sleep(50);
+		assertEquals(1, runs.get());
+
+		Thread.sleep(250);
+		assertEquals(2, runs.get());
+
+		// Nothing more without marks
+		Thread.sleep(300);
+		assertEquals(2, runs.get());
+	}
+
+}
@@ -0,0 +1,84 @@
+package edu.harvard.econcs.turkserver.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	HashedWheelTimer timer;
+
+	@Before
+	public void setUp() throws Exception {
+		// Small wheel so that timeouts wrap around it
+		timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	@Test
+	public void testSchedule() throws InterruptedException {
+		final CountDownLatch fired = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+
+		HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+			public void run() {
+				fired.countDown();
+			}
+		}, 200, TimeUnit.MILLISECONDS);
+
+		assertTrue(fired.await(1000, TimeUnit.MILLISECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue(elapsed >= 200);
+		assertTrue(elapsed < 300);
+		assertTrue(t.isExpired());
+		assertFalse(t.cancel());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		final AtomicInteger calls = new AtomicInteger();
+
+		HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+			public void run() {
+				calls.incrementAndGet();
+			}
+		}, 100, TimeUnit.MILLISECONDS);
+
+		assertTrue(t.cancel());
+		assertTrue(t.isCancelled());
+
+		Thread.sleep(200);
+		assertEquals(0, calls.get());
+	}
+
+	@Test
+	public void testFixedRate() throws InterruptedException {
+		final AtomicInteger calls = new AtomicInteger();
+
+		HashedWheelTimer.Timeout t = timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				calls.incrementAndGet();
+			}
+		}, 100, 100, TimeUnit.MILLISECONDS);
+
+		Thread.sleep(1050);
+		t.cancel();
+		assertEquals(10, calls.get(), 1);
+
+		int stopped = calls.get();
+		Thread.sleep(300);
+		assertEquals(stopped, calls.get());
+	}
+
+}
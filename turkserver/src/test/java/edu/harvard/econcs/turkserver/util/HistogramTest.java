@@ -0,0 +1,34 @@
+package edu.harvard.econcs.turkserver.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testEmpty() {
+		Histogram h = new Histogram();
+
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(0.5));
+		assertEquals(0, h.getMean(), 0);
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram h = new Histogram();
+
+		for( int i = 1; i <= 100; i++ ) h.record(i);
+
+		assertEquals(100, h.getCount());
+		assertEquals(100, h.getMax());
+		assertEquals(50.5, h.getMean(), 1e-9);
+
+		// Bucket bounds are within a factor of 2
+		long p50 = h.getPercentile(0.5);
+		assertTrue(p50 >= 50 && p50 < 100);
+		assertEquals(100, h.getPercentile(1.0));
+	}
+
+}
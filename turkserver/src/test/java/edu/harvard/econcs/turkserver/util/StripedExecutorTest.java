@@ -0,0 +1,158 @@
+package edu.harvard.econcs.turkserver.util;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StripedExecutorTest {
+
+	StripedExecutor<String> exec;
+
+	@Before
+	public void setUp() throws Exception {
+		exec = new StripedExecutor<>(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ExecutorService pool = exec.shutdown();
+		pool.awaitTermination(1000, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testOrderedPerKey() throws InterruptedException {
+		final int tasks = 100;
+		final List<Integer> seen = new CopyOnWriteArrayList<>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean(false);
+		final CountDownLatch done = new CountDownLatch(tasks);
+
+		for( int i = 0; i < tasks; i++ ) {
+			final int n = i;
+			exec.execute("exp", new Runnable() {
+				public void run() {
+					// Nothing else in this lane should be running
+					if( running.incrementAndGet() != 1 ) overlapped.set(true);
+					seen.add(n);
+					running.decrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+
+		assertTrue(done.await(1000, TimeUnit.MILLISECONDS));
+		assertFalse(overlapped.get());
+
+		for( int i = 0; i < tasks; i++ )
+			assertEquals(i, seen.get(i).intValue());
+	}
+
+	@Test
+	public void testKeysRunInParallel() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch other = new CountDownLatch(1);
+
+		exec.execute("slow", new Runnable() {
+			public void run() {
+				try { blocked.await(); }
+				catch (InterruptedException e) {}
+			}
+		});
+
+		exec.execute("fast", new Runnable() {
+			public void run() {
+				other.countDown();
+			}
+		});
+
+		// A blocked lane shouldn't hold up a different one
+		assertTrue(other.await(1000, TimeUnit.MILLISECONDS));
+		assertEquals(1, exec.getQueueDepth("slow"));
+
+		blocked.countDown();
+	}
+
+	@Test
+	public void testRetire() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+
+		exec.execute("exp", new Runnable() {
+			public void run() {
+				exec.retire("exp");
+				done.countDown();
+			}
+		});
+
+		assertTrue(done.await(1000, TimeUnit.MILLISECONDS));
+		Thread.sleep(100);
+
+		assertTrue(exec.getQueueDepths().isEmpty());
+	}
+
+	@Test
+	public void testOfferRefusesWhenFull() throws InterruptedException {
+		StripedExecutor<String> bounded = new StripedExecutor<>(1, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(2);
+
+		Runnable blocked = new Runnable() {
+			public void run() {
+				try { release.await(); } catch (InterruptedException e) {}
+				done.countDown();
+			}
+		};
+
+		assertTrue(bounded.offer("a", blocked));
+		assertTrue(bounded.offer("b", blocked));
+		assertFalse(bounded.offer("c", blocked));
+		assertEquals(2, bounded.getQueued());
+
+		release.countDown();
+		assertTrue(done.await(1000, TimeUnit.MILLISECONDS));
+
+		bounded.shutdown().awaitTermination(1000, TimeUnit.MILLISECONDS);
+		assertEquals(0, bounded.getQueued());
+	}
+
+	@Test
+	public void testErrorKeepsLaneRunning() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+
+		exec.execute("exp", new Runnable() {
+			public void run() { throw new AssertionError("Thrown on purpose"); }
+		});
+		exec.execute("exp", new Runnable() {
+			public void run() { done.countDown(); }
+		});
+
+		assertTrue(done.await(1000, TimeUnit.MILLISECONDS));
+
+		Thread.sleep(50);
+		assertEquals(0, exec.getQueueDepth("exp"));
+		assertEquals(0, exec.getQueued());
+	}
+
+	@Test
+	public void testRejectedAfterShutdown() {
+		exec.shutdown();
+
+		exec.execute("exp", new Runnable() {
+			public void run() { fail("Shouldn't run after shutdown"); }
+		});
+
+		// Not left looking busy
+		assertEquals(0, exec.getQueueDepth("exp"));
+		assertEquals(0, exec.getQueued());
+	}
+
+}